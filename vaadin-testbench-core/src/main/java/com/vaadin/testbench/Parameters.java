@@ -20,9 +20,29 @@ public class Parameters {
     private static boolean isScreenshotComparisonCursorDetection;
     private static String screenshotReferenceDirectory;
     private static String screenshotErrorDirectory;
+    private static boolean isScreenshotReferenceRawCache;
+    private static String screenshotReferenceCacheDirectory;
+    private static int screenshotReferenceCacheMegabytes;
+    private static boolean isScreenshotReferenceIndex;
+    private static String screenshotReferenceStore;
+    private static boolean isScreenshotReferenceCacheOffHeap;
+    private static boolean isScreenshotReferencePrefetch;
     private static double screenshotComparisonTolerance;
     private static int maxScreenshotRetries;
     private static int screenshotRetryDelay = 500;
+    private static boolean isScreenshotComparisonParallel;
+    private static int screenshotComparisonParallelism;
+    private static int screenshotComparisonParallelThreshold;
+    private static boolean isScreenshotComparisonParallelCandidates;
+    private static boolean isScreenshotComparisonStreaming;
+    private static boolean isScreenshotDigestCache;
+    private static boolean isScreenshotReferenceFingerprints;
+    private static int screenshotReferenceFingerprintMaxDistance;
+    private static int screenshotComparisonBlockSize;
+    private static boolean isScreenshotComparisonAdaptiveBlockSize;
+    private static boolean isScreenshotComparisonPyramid;
+    private static boolean isScreenshotComparisonShiftDetection;
+    private static int screenshotComparisonMaxShift;
     private static int testsInParallel;
     private static int testSuitesInParallel;
     private static int maxAttempts;
@@ -35,11 +55,57 @@ public class Parameters {
                 "screenshotReferenceDirectory", "reference-screenshots");
         screenshotErrorDirectory = getSystemPropertyString(
                 "screenshotErrorDirectory", "error-screenshots");
+        isScreenshotReferenceRawCache = getSystemPropertyBoolean(
+                "screenshotReferenceRawCache", false);
+        screenshotReferenceCacheDirectory = getSystemPropertyString(
+                "screenshotReferenceCacheDirectory", null);
+        screenshotReferenceCacheMegabytes = getSystemPropertyInt(
+                "screenshotReferenceCacheMegabytes", 0);
+        isScreenshotReferenceCacheOffHeap = getSystemPropertyBoolean(
+                "screenshotReferenceCacheOffHeap", false);
+        isScreenshotReferencePrefetch = getSystemPropertyBoolean(
+                "screenshotReferencePrefetch", false);
+        isScreenshotReferenceIndex = getSystemPropertyBoolean(
+                "screenshotReferenceIndex", false);
+        screenshotReferenceStore = getSystemPropertyString(
+                "screenshotReferenceStore", null);
         screenshotComparisonTolerance = getSystemPropertyDouble(
                 "screenshotComparisonTolerance", 0.01);
         maxScreenshotRetries = getSystemPropertyInt("maxScreenshotRetries", 2);
         screenshotRetryDelay = getSystemPropertyInt("screenshotRetryDelay",
                 500);
+        isScreenshotComparisonParallel = getSystemPropertyBoolean(
+                "screenshotComparisonParallel", false);
+        screenshotComparisonParallelism = getSystemPropertyInt(
+                "screenshotComparisonParallelism",
+                Runtime.getRuntime().availableProcessors());
+        screenshotComparisonParallelThreshold = getSystemPropertyInt(
+                "screenshotComparisonParallelThreshold", 512 * 512);
+        isScreenshotComparisonParallelCandidates = getSystemPropertyBoolean(
+                "screenshotComparisonParallelCandidates", false);
+        isScreenshotComparisonStreaming = getSystemPropertyBoolean(
+                "screenshotComparisonStreaming", false);
+        isScreenshotDigestCache = getSystemPropertyBoolean(
+                "screenshotDigestCache", false);
+        isScreenshotReferenceFingerprints = getSystemPropertyBoolean(
+                "screenshotReferenceFingerprints", false);
+        screenshotReferenceFingerprintMaxDistance = getSystemPropertyInt(
+                "screenshotReferenceFingerprintMaxDistance", 0);
+        screenshotComparisonBlockSize = getSystemPropertyInt(
+                "screenshotComparisonBlockSize", 16);
+        if (!isValidBlockSize(screenshotComparisonBlockSize)) {
+            System.err.println("Unsupported screenshot comparison block size "
+                    + screenshotComparisonBlockSize + ", using 16");
+            screenshotComparisonBlockSize = 16;
+        }
+        isScreenshotComparisonAdaptiveBlockSize = getSystemPropertyBoolean(
+                "screenshotComparisonAdaptiveBlockSize", false);
+        isScreenshotComparisonPyramid = getSystemPropertyBoolean(
+                "screenshotComparisonPyramid", false);
+        isScreenshotComparisonShiftDetection = getSystemPropertyBoolean(
+                "screenshotComparisonShiftDetection", false);
+        screenshotComparisonMaxShift = getSystemPropertyInt(
+                "screenshotComparisonMaxShift", 64);
 
         testSuitesInParallel = getSystemPropertyInt("testSuitesInParallel", 20);
         maxAttempts = getSystemPropertyInt("maxAttempts", 1);
@@ -190,6 +256,176 @@ public class Parameters {
         return screenshotErrorDirectory;
     }
 
+    /**
+     * Turns the cache of decoded reference images on/off. If on, each
+     * reference image is stored uncompressed the first time it is read, and
+     * later reads use the uncompressed copy as long as the reference image
+     * file has the same size and modification time. The uncompressed copies
+     * are stored in {@link #getScreenshotReferenceCacheDirectory()}.
+     *
+     * @param isScreenshotReferenceRawCache
+     *            true to cache decoded reference images
+     */
+    public static void setScreenshotReferenceRawCache(
+            boolean isScreenshotReferenceRawCache) {
+        Parameters.isScreenshotReferenceRawCache = isScreenshotReferenceRawCache;
+    }
+
+    /**
+     * @return true if decoded reference images are cached. The default is
+     *         false.
+     */
+    public static boolean isScreenshotReferenceRawCache() {
+        return isScreenshotReferenceRawCache;
+    }
+
+    /**
+     * Sets the directory where decoded reference images are cached, see
+     * {@link #isScreenshotReferenceRawCache()}.
+     *
+     * @param screenshotReferenceCacheDirectory
+     *            the cache directory or null to store the cached images next
+     *            to the reference images
+     */
+    public static void setScreenshotReferenceCacheDirectory(
+            String screenshotReferenceCacheDirectory) {
+        Parameters.screenshotReferenceCacheDirectory = screenshotReferenceCacheDirectory;
+    }
+
+    /**
+     * @return the directory where decoded reference images are cached or null
+     *         if they are stored next to the reference images. The default is
+     *         null.
+     */
+    public static String getScreenshotReferenceCacheDirectory() {
+        return screenshotReferenceCacheDirectory;
+    }
+
+    /**
+     * Sets the amount of memory used for keeping decoded reference images in
+     * memory. Reference images used again, e.g. when a screen shot comparison
+     * is retried or when parallel tests use the same reference, are then not
+     * read again. The least recently used images are evicted when the limit
+     * is reached.
+     *
+     * @param megabytes
+     *            the memory limit in megabytes or 0 to not keep reference
+     *            images in memory
+     * @see com.vaadin.testbench.screenshot.ReferenceImageCache
+     */
+    public static void setScreenshotReferenceCacheMegabytes(int megabytes) {
+        screenshotReferenceCacheMegabytes = megabytes;
+    }
+
+    /**
+     * @return the memory limit for decoded reference images kept in memory,
+     *         in megabytes. The default is 0, i.e. reference images are read
+     *         every time.
+     */
+    public static int getScreenshotReferenceCacheMegabytes() {
+        return screenshotReferenceCacheMegabytes;
+    }
+
+    /**
+     * Sets whether decoded reference images kept in memory are stored outside
+     * the Java heap. Images stored outside the heap are copied for every
+     * comparison but do not add to garbage collection work.
+     *
+     * @param isScreenshotReferenceCacheOffHeap
+     *            true to store reference images outside the Java heap
+     */
+    public static void setScreenshotReferenceCacheOffHeap(
+            boolean isScreenshotReferenceCacheOffHeap) {
+        Parameters.isScreenshotReferenceCacheOffHeap = isScreenshotReferenceCacheOffHeap;
+    }
+
+    /**
+     * @return true if decoded reference images kept in memory are stored
+     *         outside the Java heap. The default is false.
+     */
+    public static boolean isScreenshotReferenceCacheOffHeap() {
+        return isScreenshotReferenceCacheOffHeap;
+    }
+
+    /**
+     * Turns the prefetching of reference images on/off. If on, the reference
+     * images used by each test are recorded in the reference directory, and
+     * when the tests are run again the reference images of the tests are
+     * read into the reference image cache in the background while browsers
+     * are started, so that they need not be decoded when the screen shots
+     * are compared. Only tests run with
+     * {@link com.vaadin.testbench.parallel.ParallelRunner} are prefetched,
+     * and only when the reference image cache is in use, see
+     * {@link #setScreenshotReferenceCacheMegabytes(int)}.
+     *
+     * @param isScreenshotReferencePrefetch
+     *            true to prefetch the reference images of upcoming tests
+     * @see com.vaadin.testbench.screenshot.ReferencePrefetcher
+     */
+    public static void setScreenshotReferencePrefetch(
+            boolean isScreenshotReferencePrefetch) {
+        Parameters.isScreenshotReferencePrefetch = isScreenshotReferencePrefetch;
+    }
+
+    /**
+     * @return true if the reference images of upcoming tests are prefetched.
+     *         The default is false.
+     */
+    public static boolean isScreenshotReferencePrefetch() {
+        return isScreenshotReferencePrefetch;
+    }
+
+    /**
+     * Sets whether the reference directory is listed once and kept in memory
+     * for finding reference images, instead of checking the existence of
+     * every possible reference image file. The listing is updated when the
+     * modification time of the directory changes. This makes finding the
+     * reference images much faster on network file systems, especially when
+     * looking for the reference image of an older browser version.
+     *
+     * @param isScreenshotReferenceIndex
+     *            true to keep a listing of the reference directory in memory
+     */
+    public static void setScreenshotReferenceIndex(
+            boolean isScreenshotReferenceIndex) {
+        Parameters.isScreenshotReferenceIndex = isScreenshotReferenceIndex;
+    }
+
+    /**
+     * @return true if a listing of the reference directory is kept in memory
+     *         for finding reference images. The default is false.
+     */
+    public static boolean isScreenshotReferenceIndex() {
+        return isScreenshotReferenceIndex;
+    }
+
+    /**
+     * Sets where reference images are read from instead of the reference
+     * directory. Reference images can be read from the classpath, given as
+     * {@code classpath:<path>}, e.g.
+     * {@code classpath:com/example/reference-screenshots}, or from a packed
+     * archive file, given as {@code archive:<file>}. Error screen shots are
+     * still written to the error directory.
+     *
+     * @param screenshotReferenceStore
+     *            the reference store or null to read reference images from
+     *            the reference directory
+     * @see com.vaadin.testbench.screenshot.ClasspathReferenceStore
+     * @see com.vaadin.testbench.screenshot.ArchiveReferenceStore
+     */
+    public static void setScreenshotReferenceStore(
+            String screenshotReferenceStore) {
+        Parameters.screenshotReferenceStore = screenshotReferenceStore;
+    }
+
+    /**
+     * @return where reference images are read from, or null if they are read
+     *         from the reference directory. The default is null.
+     */
+    public static String getScreenshotReferenceStore() {
+        return screenshotReferenceStore;
+    }
+
     /**
      * Sets the error tolerance for screen shot comparisons. The tolerance is a
      * value between 0 and 1, where 0 means that the images must be a pixel
@@ -271,6 +507,321 @@ public class Parameters {
         return screenshotRetryDelay;
     }
 
+    /**
+     * Turns parallel screen shot comparison on/off. If on, large screen shots
+     * are split into horizontal stripes of blocks which are compared
+     * concurrently using {@link #getScreenshotComparisonParallelism()}
+     * threads.
+     *
+     * @param isScreenshotComparisonParallel
+     *            true to compare large screen shots in parallel
+     */
+    public static void setScreenshotComparisonParallel(
+            boolean isScreenshotComparisonParallel) {
+        Parameters.isScreenshotComparisonParallel = isScreenshotComparisonParallel;
+    }
+
+    /**
+     * @return true if large screen shots are compared in parallel. The default
+     *         is false.
+     */
+    public static boolean isScreenshotComparisonParallel() {
+        return isScreenshotComparisonParallel;
+    }
+
+    /**
+     * Sets the number of threads used for parallel screen shot comparison.
+     * The default is the number of available processors.
+     *
+     * @param parallelism
+     *            the number of threads
+     */
+    public static void setScreenshotComparisonParallelism(int parallelism) {
+        screenshotComparisonParallelism = parallelism;
+    }
+
+    /**
+     * @return the number of threads used for parallel screen shot comparison.
+     */
+    public static int getScreenshotComparisonParallelism() {
+        return screenshotComparisonParallelism;
+    }
+
+    /**
+     * Turns concurrent comparison of alternative reference images on/off. If
+     * on and there are several reference images for a screen shot (e.g.
+     * name.png, name_1.png, ...), up to
+     * {@link #getScreenshotComparisonParallelism()} of them are read and
+     * compared at the same time, and the rest are cancelled as soon as one
+     * matches. This needs memory for several decoded reference images at
+     * once.
+     *
+     * @param isScreenshotComparisonParallelCandidates
+     *            true to compare alternative reference images concurrently
+     */
+    public static void setScreenshotComparisonParallelCandidates(
+            boolean isScreenshotComparisonParallelCandidates) {
+        Parameters.isScreenshotComparisonParallelCandidates = isScreenshotComparisonParallelCandidates;
+    }
+
+    /**
+     * @return true if alternative reference images are compared
+     *         concurrently. The default is false.
+     */
+    public static boolean isScreenshotComparisonParallelCandidates() {
+        return isScreenshotComparisonParallelCandidates;
+    }
+
+    /**
+     * Turns streaming screen shot comparison on/off. If on, screen shots of
+     * the whole browser window are compared to the reference images while
+     * decoding them, a few rows at a time, and the comparison stops at the
+     * first row of blocks that differs. The screen shot is decoded
+     * completely only if it does not match, for cursor detection and the
+     * error report. This reduces the time and memory used for comparing
+     * large matching screen shots.
+     *
+     * @param isScreenshotComparisonStreaming
+     *            true to compare screen shots while decoding them
+     */
+    public static void setScreenshotComparisonStreaming(
+            boolean isScreenshotComparisonStreaming) {
+        Parameters.isScreenshotComparisonStreaming = isScreenshotComparisonStreaming;
+    }
+
+    /**
+     * @return true if screen shots are compared while decoding them. The
+     *         default is false.
+     */
+    public static boolean isScreenshotComparisonStreaming() {
+        return isScreenshotComparisonStreaming;
+    }
+
+    /**
+     * Turns the screen shot digest cache on/off. If on, the digests of screen
+     * shots of the whole browser window that match a reference image are
+     * stored in the reference directory. A screen shot identical to one that
+     * has already matched is then accepted without decoding and comparing
+     * it, as long as the reference image and the comparison settings have
+     * not changed.
+     *
+     * @param isScreenshotDigestCache
+     *            true to accept previously matched screen shots by their
+     *            digest
+     * @see com.vaadin.testbench.screenshot.ScreenshotDigestCache
+     */
+    public static void setScreenshotDigestCache(
+            boolean isScreenshotDigestCache) {
+        Parameters.isScreenshotDigestCache = isScreenshotDigestCache;
+    }
+
+    /**
+     * @return true if previously matched screen shots are accepted by their
+     *         digest. The default is false.
+     */
+    public static boolean isScreenshotDigestCache() {
+        return isScreenshotDigestCache;
+    }
+
+    /**
+     * Turns the reference image fingerprints on/off. If on, a small
+     * perceptual fingerprint of every compared reference image is stored in
+     * the reference directory. When there are several reference images to
+     * compare a screen shot to, the ones most similar to the screen shot are
+     * then compared first, and reference images of a different size than the
+     * screen shot are not decoded unless needed for the error report.
+     *
+     * @param isScreenshotReferenceFingerprints
+     *            true to use fingerprints for choosing the reference images to
+     *            compare to
+     * @see com.vaadin.testbench.screenshot.ReferenceFingerprints
+     */
+    public static void setScreenshotReferenceFingerprints(
+            boolean isScreenshotReferenceFingerprints) {
+        Parameters.isScreenshotReferenceFingerprints = isScreenshotReferenceFingerprints;
+    }
+
+    /**
+     * @return true if fingerprints are used for choosing the reference images
+     *         to compare to. The default is false.
+     */
+    public static boolean isScreenshotReferenceFingerprints() {
+        return isScreenshotReferenceFingerprints;
+    }
+
+    /**
+     * Sets the largest fingerprint distance, in bits of 64, for which a
+     * reference image is compared to a screen shot when fingerprints are
+     * used. Reference images whose fingerprint differs more are assumed not
+     * to match and are only compared if needed for the error report. As a
+     * fingerprint only describes the image coarsely, a too small distance
+     * can make a matching screen shot fail.
+     *
+     * @param screenshotReferenceFingerprintMaxDistance
+     *            the largest distance or 0 to compare to every reference
+     *            image
+     * @see #setScreenshotReferenceFingerprints(boolean)
+     */
+    public static void setScreenshotReferenceFingerprintMaxDistance(
+            int screenshotReferenceFingerprintMaxDistance) {
+        Parameters.screenshotReferenceFingerprintMaxDistance = screenshotReferenceFingerprintMaxDistance;
+    }
+
+    /**
+     * @return the largest fingerprint distance for which a reference image
+     *         is compared, or 0 if every reference image is compared. The
+     *         default is 0.
+     */
+    public static int getScreenshotReferenceFingerprintMaxDistance() {
+        return screenshotReferenceFingerprintMaxDistance;
+    }
+
+    /**
+     * Sets the minimum image size, in pixels, for which parallel screen shot
+     * comparison is used. Smaller images are always compared sequentially as
+     * the overhead of splitting the work would exceed the gain. The default is
+     * 262144 (512x512).
+     *
+     * @param pixels
+     *            the minimum number of pixels in an image for parallel
+     *            comparison
+     */
+    public static void setScreenshotComparisonParallelThreshold(int pixels) {
+        screenshotComparisonParallelThreshold = pixels;
+    }
+
+    /**
+     * @return the minimum number of pixels in an image for parallel screen
+     *         shot comparison.
+     */
+    public static int getScreenshotComparisonParallelThreshold() {
+        return screenshotComparisonParallelThreshold;
+    }
+
+    /**
+     * Sets the size of the square blocks screen shots are compared in. The
+     * error tolerance is applied to each block separately, so with larger
+     * blocks small local differences are more easily tolerated. Supported
+     * sizes are 8, 16, 32 and 64 pixels. The default is 16.
+     *
+     * @param blockSize
+     *            the width and height of a block in pixels
+     * @throws IllegalArgumentException
+     *             if the block size is not supported
+     */
+    public static void setScreenshotComparisonBlockSize(int blockSize) {
+        if (!isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException(
+                    "Block size must be 8, 16, 32 or 64, was " + blockSize);
+        }
+        screenshotComparisonBlockSize = blockSize;
+    }
+
+    /**
+     * @return the width and height of the blocks screen shots are compared
+     *         in. Not used if
+     *         {@link #isScreenshotComparisonAdaptiveBlockSize()} is true.
+     */
+    public static int getScreenshotComparisonBlockSize() {
+        return screenshotComparisonBlockSize;
+    }
+
+    private static boolean isValidBlockSize(int blockSize) {
+        return blockSize == 8 || blockSize == 16 || blockSize == 32
+                || blockSize == 64;
+    }
+
+    /**
+     * Turns adaptive block size on/off. If on, the block size for screen shot
+     * comparison is chosen based on the size of the image: 64 pixels for
+     * 2560x1440 and larger, 32 pixels for full HD and larger, 8 pixels for
+     * element screen shots up to 256x256 and 16 pixels otherwise.
+     *
+     * @param isScreenshotComparisonAdaptiveBlockSize
+     *            true to choose the block size based on the image size
+     */
+    public static void setScreenshotComparisonAdaptiveBlockSize(
+            boolean isScreenshotComparisonAdaptiveBlockSize) {
+        Parameters.isScreenshotComparisonAdaptiveBlockSize = isScreenshotComparisonAdaptiveBlockSize;
+    }
+
+    /**
+     * @return true if the block size is chosen based on the image size. The
+     *         default is false.
+     */
+    public static boolean isScreenshotComparisonAdaptiveBlockSize() {
+        return isScreenshotComparisonAdaptiveBlockSize;
+    }
+
+    /**
+     * Turns coarse-to-fine screen shot comparison on/off. If on, the mean
+     * color and a 64-bit hash of each block are compared first and only
+     * blocks with differing signatures are compared pixel by pixel. Blocks
+     * with equal signatures are assumed to be equal, so a difference is
+     * missed only in the unlikely case of a hash collision. The signatures of
+     * a reference image are reused as long as the same
+     * {@link java.awt.image.BufferedImage} instance is compared, so reference
+     * images must not be modified.
+     *
+     * @param isScreenshotComparisonPyramid
+     *            true to compare block signatures before pixels
+     */
+    public static void setScreenshotComparisonPyramid(
+            boolean isScreenshotComparisonPyramid) {
+        Parameters.isScreenshotComparisonPyramid = isScreenshotComparisonPyramid;
+    }
+
+    /**
+     * @return true if block signatures are compared before pixels. The
+     *         default is false.
+     */
+    public static boolean isScreenshotComparisonPyramid() {
+        return isScreenshotComparisonPyramid;
+    }
+
+    /**
+     * Turns shift detection on/off for failed screen shot comparisons. If on,
+     * the area of the failed blocks is searched for content that has moved
+     * vertically or horizontally, e.g. pushed down by a notification. Blocks
+     * that match the reference at the detected offset are left out of the
+     * error report, which instead describes the shift. The comparison still
+     * fails.
+     *
+     * @param isScreenshotComparisonShiftDetection
+     *            true to look for shifted content in failed comparisons
+     */
+    public static void setScreenshotComparisonShiftDetection(
+            boolean isScreenshotComparisonShiftDetection) {
+        Parameters.isScreenshotComparisonShiftDetection = isScreenshotComparisonShiftDetection;
+    }
+
+    /**
+     * @return true if failed comparisons are checked for shifted content.
+     *         The default is false.
+     */
+    public static boolean isScreenshotComparisonShiftDetection() {
+        return isScreenshotComparisonShiftDetection;
+    }
+
+    /**
+     * Sets the largest offset, in pixels, searched for when shift detection
+     * is enabled. The default is 64.
+     *
+     * @param maxShift
+     *            the largest offset in pixels
+     */
+    public static void setScreenshotComparisonMaxShift(int maxShift) {
+        screenshotComparisonMaxShift = maxShift;
+    }
+
+    /**
+     * @return the largest offset searched for when shift detection is
+     *         enabled.
+     */
+    public static int getScreenshotComparisonMaxShift() {
+        return screenshotComparisonMaxShift;
+    }
+
     /**
      *
      * @return maximum number of tests to run in parallel.
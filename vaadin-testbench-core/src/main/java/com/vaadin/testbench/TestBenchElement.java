@@ -16,6 +16,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -48,6 +49,7 @@ import com.vaadin.testbench.commands.ScreenshotComparator;
 import com.vaadin.testbench.commands.TestBenchCommandExecutor;
 import com.vaadin.testbench.commands.TestBenchElementCommands;
 import com.vaadin.testbench.elementsbase.AbstractElement;
+import com.vaadin.testbench.screenshot.ComparisonResult;
 
 /**
  * TestBenchElement is a WebElement wrapper. It provides Vaadin specific helper
@@ -488,6 +490,32 @@ public class TestBenchElement extends AbstractHasTestBenchCommandExecutor
                 (HasCapabilities) getDriver());
     }
 
+    @Override
+    public boolean compareScreen(String referenceId,
+            java.awt.Rectangle... ignoredAreas) throws IOException {
+        return ScreenshotComparator.compareScreen(referenceId,
+                Arrays.asList(ignoredAreas),
+                getCommandExecutor().getReferenceNameGenerator(),
+                getCommandExecutor().getImageComparison(), this,
+                (HasCapabilities) getDriver());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the parts of the ignored elements inside this element are
+     * ignored.
+     */
+    @Override
+    public boolean compareScreen(String referenceId,
+            WebElement... ignoredElements) throws IOException {
+        return ScreenshotComparator.compareScreen(referenceId,
+                ignoredElements,
+                getCommandExecutor().getReferenceNameGenerator(),
+                getCommandExecutor().getImageComparison(), this,
+                (HasCapabilities) getDriver());
+    }
+
     @Override
     public boolean compareScreen(File reference) throws IOException {
         return ScreenshotComparator.compareScreen(reference,
@@ -504,4 +532,29 @@ public class TestBenchElement extends AbstractHasTestBenchCommandExecutor
                 (TakesScreenshot) this, (HasCapabilities) getDriver());
     }
 
+    @Override
+    public ComparisonResult compareScreenWithResult(String referenceId)
+            throws IOException {
+        return ScreenshotComparator.compareScreenWithResult(referenceId,
+                getCommandExecutor().getReferenceNameGenerator(),
+                getCommandExecutor().getImageComparison(), this,
+                (HasCapabilities) getDriver());
+    }
+
+    @Override
+    public ComparisonResult compareScreenWithResult(File reference)
+            throws IOException {
+        return ScreenshotComparator.compareScreenWithResult(reference,
+                getCommandExecutor().getImageComparison(), this,
+                (HasCapabilities) getDriver());
+    }
+
+    @Override
+    public ComparisonResult compareScreenWithResult(BufferedImage reference,
+            String referenceName) throws IOException {
+        return ScreenshotComparator.compareScreenWithResult(reference,
+                referenceName, getCommandExecutor().getImageComparison(),
+                this, (HasCapabilities) getDriver());
+    }
+
 }
@@ -1,9 +1,14 @@
 package com.vaadin.testbench.commands;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
+import org.openqa.selenium.WebElement;
+
+import com.vaadin.testbench.screenshot.ComparisonResult;
+
 public interface CanCompareScreenshots {
 
     /**
@@ -22,6 +27,43 @@ public interface CanCompareScreenshots {
      */
     boolean compareScreen(String referenceId) throws IOException;
 
+    /**
+     * Tests that a screen shot is equal to the specified reference image like
+     * {@link #compareScreen(String)}, ignoring the given areas of the screen
+     * shot. The ignored areas are never compared, e.g. for areas showing the
+     * current time. Areas outside the screen shot are ignored.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredAreas
+     *            the areas not to compare, in pixels relative to the top left
+     *            corner of the screen shot
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    boolean compareScreen(String referenceId, Rectangle... ignoredAreas)
+            throws IOException;
+
+    /**
+     * Tests that a screen shot is equal to the specified reference image like
+     * {@link #compareScreen(String)}, ignoring the areas covered by the given
+     * elements. The positions of all the elements are queried from the
+     * browser at once.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredElements
+     *            the elements whose areas are not compared
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    boolean compareScreen(String referenceId, WebElement... ignoredElements)
+            throws IOException;
+
     /**
      * Tests that a screen shot is equal to the specified reference image. The
      * comparison tolerance can be specified by setting the
@@ -56,4 +98,51 @@ public interface CanCompareScreenshots {
     boolean compareScreen(BufferedImage reference, String referenceName)
             throws IOException;
 
+    /**
+     * Compares a screen shot to the specified reference image like
+     * {@link #compareScreen(String)} and returns the details of the
+     * comparison, such as the errors of the compared blocks and the time
+     * spent. If the screen shot is retaken, the result describes the last
+     * comparison.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @return the result of the comparison
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    ComparisonResult compareScreenWithResult(String referenceId)
+            throws IOException;
+
+    /**
+     * Compares a screen shot to the specified reference image like
+     * {@link #compareScreen(File)} and returns the details of the
+     * comparison.
+     *
+     * @param reference
+     *            the reference image file
+     * @return the result of the comparison
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    ComparisonResult compareScreenWithResult(File reference)
+            throws IOException;
+
+    /**
+     * Compares a screen shot to the specified reference image like
+     * {@link #compareScreen(BufferedImage, String)} and returns the details
+     * of the comparison.
+     *
+     * @param reference
+     *            the reference image
+     * @param referenceName
+     *            the filename of the reference image. Used when writing the
+     *            error files.
+     * @return the result of the comparison
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    ComparisonResult compareScreenWithResult(BufferedImage reference,
+            String referenceName) throws IOException;
+
 }
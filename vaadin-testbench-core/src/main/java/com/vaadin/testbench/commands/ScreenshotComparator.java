@@ -1,9 +1,13 @@
 package com.vaadin.testbench.commands;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.imageio.IIOException;
@@ -12,6 +16,7 @@ import javax.imageio.ImageIO;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.Dimension;
 import org.openqa.selenium.HasCapabilities;
+import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.TakesScreenshot;
@@ -21,9 +26,13 @@ import org.openqa.selenium.WebElement;
 
 import com.vaadin.testbench.Parameters;
 import com.vaadin.testbench.parallel.BrowserUtil;
+import com.vaadin.testbench.screenshot.ComparisonResult;
 import com.vaadin.testbench.screenshot.ImageComparison;
 import com.vaadin.testbench.screenshot.ImageFileUtil;
+import com.vaadin.testbench.screenshot.ReferenceImages;
 import com.vaadin.testbench.screenshot.ReferenceNameGenerator;
+import com.vaadin.testbench.screenshot.ReferencePrefetcher;
+import com.vaadin.testbench.screenshot.ScreenshotDigestCache;
 
 public class ScreenshotComparator {
 
@@ -37,14 +46,123 @@ public class ScreenshotComparator {
         String referenceName = referenceNameGenerator.generateName(referenceId,
                 capabilities);
 
+        // Only the screenshot changes between retries, the reference images
+        // are decoded at most once
+        ReferenceImages references = imageComparison.getReferenceImages(
+                referenceName, capabilities);
+        ReferencePrefetcher.recordUsed(references);
+
+        // Element screenshots may need to be cropped so they are always
+        // decoded
+        boolean wholeWindow = !(takesScreenshot instanceof WebElement);
+        boolean streaming = Parameters.isScreenshotComparisonStreaming()
+                && wholeWindow;
+        boolean digests = Parameters.isScreenshotDigestCache() && wholeWindow;
         for (int times = 0; times < Parameters
                 .getMaxScreenshotRetries(); times++) {
+            double tolerance = Parameters.getScreenshotComparisonTolerance();
+            boolean equal;
+            if (streaming || digests) {
+                byte[] screenshotPng = takesScreenshot
+                        .getScreenshotAs(OutputType.BYTES);
+                if (digests && ScreenshotDigestCache.isAccepted(screenshotPng,
+                        references, tolerance)) {
+                    return true;
+                }
+                if (streaming) {
+                    equal = imageComparison.imageEqualToReference(
+                            screenshotPng, references, tolerance);
+                } else {
+                    equal = imageComparison.imageEqualToReference(
+                            ImageIO.read(new ByteArrayInputStream(
+                                    screenshotPng)), references, tolerance);
+                }
+                if (equal && digests
+                        && references.getMatchedFileName() != null) {
+                    ScreenshotDigestCache.addAccepted(screenshotPng,
+                            references.getMatchedFileName(), tolerance);
+                }
+            } else {
+                equal = imageComparison.imageEqualToReference(
+                        getScreenshot((TakesScreenshot) driver,
+                                takesScreenshot, capabilities),
+                        references,
+                        Parameters.getScreenshotComparisonTolerance());
+            }
+            if (equal) {
+                return true;
+            }
+            pause(Parameters.getScreenshotRetryDelay());
+        }
+        return false;
+    }
+
+    /**
+     * Compares a screenshot to the reference images like
+     * {@link #compareScreen(String, ReferenceNameGenerator, ImageComparison, TakesScreenshot, HasCapabilities)}
+     * , ignoring the given areas of the screenshot.
+     */
+    public static boolean compareScreen(String referenceId,
+            List<Rectangle> ignoredAreas,
+            ReferenceNameGenerator referenceNameGenerator,
+            ImageComparison imageComparison, TakesScreenshot takesScreenshot,
+            HasCapabilities driver) throws IOException {
+        return compareScreen(referenceId, ignoredAreas, false,
+                referenceNameGenerator, imageComparison, takesScreenshot,
+                driver);
+    }
+
+    /**
+     * Compares a screenshot of an element to the reference images like
+     * {@link #compareScreen(String, ReferenceNameGenerator, ImageComparison, TakesScreenshot, HasCapabilities)}
+     * , ignoring the areas covered by the given elements. Only the parts of
+     * the areas inside the element are ignored.
+     *
+     * @param element
+     *            the element to capture, also implementing
+     *            {@link TakesScreenshot}
+     */
+    public static boolean compareScreen(String referenceId,
+            WebElement[] ignoredElements,
+            ReferenceNameGenerator referenceNameGenerator,
+            ImageComparison imageComparison, WebElement element,
+            HasCapabilities driver) throws IOException {
+        // Relative to the viewport like the location of the element
+        List<Rectangle> ignoredAreas = getElementAreas(
+                (JavascriptExecutor) driver, null, ignoredElements);
+        return compareScreen(referenceId, ignoredAreas, true,
+                referenceNameGenerator, imageComparison,
+                (TakesScreenshot) element, driver);
+    }
+
+    /**
+     * @param inViewport
+     *            true if the ignored areas are relative to the viewport
+     *            instead of the screenshot
+     */
+    private static boolean compareScreen(String referenceId,
+            List<Rectangle> ignoredAreas, boolean inViewport,
+            ReferenceNameGenerator referenceNameGenerator,
+            ImageComparison imageComparison, TakesScreenshot takesScreenshot,
+            HasCapabilities driver) throws IOException {
+        Capabilities capabilities = driver.getCapabilities();
+        String referenceName = referenceNameGenerator.generateName(referenceId,
+                capabilities);
+        ReferenceImages references = imageComparison.getReferenceImages(
+                referenceName, capabilities);
+        ReferencePrefetcher.recordUsed(references);
+
+        Rectangle screenshotArea = inViewport ? new Rectangle() : null;
+        for (int times = 0; times < Parameters
+                .getMaxScreenshotRetries(); times++) {
+            BufferedImage screenshot = getScreenshot(
+                    (TakesScreenshot) driver, takesScreenshot, capabilities,
+                    screenshotArea);
             boolean equal = imageComparison.imageEqualToReference(
-                    getScreenshot((TakesScreenshot) driver, takesScreenshot,
-                            capabilities),
-                    referenceName,
-                    Parameters.getScreenshotComparisonTolerance(),
-                    capabilities);
+                    screenshot,
+                    inViewport ? getAreasInside(ignoredAreas, screenshotArea)
+                            : ignoredAreas, references,
+                    Parameters.getScreenshotComparisonTolerance());
             if (equal) {
                 return true;
             }
@@ -53,6 +171,116 @@ public class ScreenshotComparator {
         return false;
     }
 
+    /**
+     * Returns the areas covered by the given elements, e.g. for ignoring
+     * them in a comparison. The areas are queried using a single script
+     * execution. Partially covered pixels are included in the areas.
+     *
+     * @param executor
+     *            the driver used for querying the areas
+     * @param context
+     *            the element the areas are relative to or null for areas
+     *            relative to the top left corner of the browser viewport
+     * @param elements
+     *            the elements
+     * @return the areas of the elements in pixels, in the order of the
+     *         elements
+     */
+    public static List<Rectangle> getElementAreas(JavascriptExecutor executor,
+            WebElement context, WebElement... elements) {
+        List<Rectangle> areas = new ArrayList<Rectangle>();
+        if (elements.length == 0) {
+            return areas;
+        }
+        Object[] arguments = new Object[elements.length + 1];
+        arguments[0] = context;
+        System.arraycopy(elements, 0, arguments, 1, elements.length);
+        List<?> rects = (List<?>) executor.executeScript(
+                "var rects = [];"
+                        + "for (var i = 0; i < arguments.length; i++) {"
+                        + "  if (arguments[i] == null) {"
+                        + "    rects.push([0, 0, 0, 0]);"
+                        + "  } else {"
+                        + "    var r = arguments[i].getBoundingClientRect();"
+                        + "    rects.push([r.left, r.top, r.right, r.bottom]);"
+                        + "  }"
+                        + "}" + "return rects;", arguments);
+        List<?> origin = (List<?>) rects.get(0);
+        double originX = ((Number) origin.get(0)).doubleValue();
+        double originY = ((Number) origin.get(1)).doubleValue();
+        for (int i = 1; i < rects.size(); i++) {
+            List<?> rect = (List<?>) rects.get(i);
+            int x1 = (int) Math.floor(((Number) rect.get(0)).doubleValue()
+                    - originX);
+            int y1 = (int) Math.floor(((Number) rect.get(1)).doubleValue()
+                    - originY);
+            int x2 = (int) Math.ceil(((Number) rect.get(2)).doubleValue()
+                    - originX);
+            int y2 = (int) Math.ceil(((Number) rect.get(3)).doubleValue()
+                    - originY);
+            areas.add(new Rectangle(x1, y1, x2 - x1, y2 - y1));
+        }
+        return areas;
+    }
+
+    /**
+     * Returns the parts of the given areas inside the container, relative to
+     * the container.
+     */
+    private static List<Rectangle> getAreasInside(List<Rectangle> areas,
+            Rectangle container) {
+        List<Rectangle> inside = new ArrayList<Rectangle>(areas.size());
+        for (Rectangle area : areas) {
+            Rectangle intersection = area.intersection(container);
+            if (!intersection.isEmpty()) {
+                intersection.translate(-container.x, -container.y);
+                inside.add(intersection);
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Compares a screenshot to the reference images like
+     * {@link #compareScreen(String, ReferenceNameGenerator, ImageComparison, TakesScreenshot, HasCapabilities)}
+     * and returns the details of the last comparison made.
+     */
+    public static ComparisonResult compareScreenWithResult(String referenceId,
+            ReferenceNameGenerator referenceNameGenerator,
+            ImageComparison imageComparison, TakesScreenshot takesScreenshot,
+            HasCapabilities driver) throws IOException {
+        Capabilities capabilities = driver.getCapabilities();
+        String referenceName = referenceNameGenerator.generateName(referenceId,
+                capabilities);
+        ReferenceImages references = imageComparison.getReferenceImages(
+                referenceName, capabilities);
+        ReferencePrefetcher.recordUsed(references);
+
+        ComparisonResult result = null;
+        for (int times = 0; times < getAttempts(); times++) {
+            if (times > 0) {
+                pause(Parameters.getScreenshotRetryDelay());
+            }
+            result = imageComparison.compareToReference(
+                    getScreenshot((TakesScreenshot) driver, takesScreenshot,
+                            capabilities),
+                    null, Collections.<Rectangle> emptyList(), references,
+                    Parameters.getScreenshotComparisonTolerance());
+            if (result.isEqual()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of screenshots to compare at most, at least one so
+     *         that there is a result
+     */
+    private static int getAttempts() {
+        return Math.max(1, Parameters.getMaxScreenshotRetries());
+    }
+
     /**
      * Captures a screenshot of the given screen (if parameter is a driver) or
      * the given element (if the parameter is a WebElement).
@@ -67,6 +295,21 @@ public class ScreenshotComparator {
     private static BufferedImage getScreenshot(TakesScreenshot driver,
             TakesScreenshot screenshotContext, Capabilities capabilities)
             throws IOException {
+        return getScreenshot(driver, screenshotContext, capabilities, null);
+    }
+
+    /**
+     * Captures a screenshot like
+     * {@link #getScreenshot(TakesScreenshot, TakesScreenshot, Capabilities)}
+     * .
+     *
+     * @param screenshotArea
+     *            if not null, set to the area of the viewport shown in the
+     *            screenshot
+     */
+    private static BufferedImage getScreenshot(TakesScreenshot driver,
+            TakesScreenshot screenshotContext, Capabilities capabilities,
+            Rectangle screenshotArea) throws IOException {
         boolean elementScreenshot = (screenshotContext instanceof WebElement);
 
         if (elementScreenshot && supportsElementScreenshots == null) {
@@ -79,8 +322,9 @@ public class ScreenshotComparator {
                     byte[] screenshotBytes = screenshotContext
                             .getScreenshotAs(OutputType.BYTES);
                     supportsElementScreenshots = true;
-                    return ImageIO
-                            .read(new ByteArrayInputStream(screenshotBytes));
+                    return setArea(ImageIO.read(new ByteArrayInputStream(
+                            screenshotBytes)), screenshotContext,
+                            screenshotArea);
                 } catch (UnsupportedCommandException e) {
                     supportsElementScreenshots = false;
                 } catch (WebDriverException e) {
@@ -98,13 +342,39 @@ public class ScreenshotComparator {
             // and crop
             BufferedImage image = ImageIO.read(new ByteArrayInputStream(
                     driver.getScreenshotAs(OutputType.BYTES)));
-            return cropToElement((WebElement) screenshotContext, image,
-                    BrowserUtil.isIE8(capabilities));
+            Rectangle area = getElementArea((WebElement) screenshotContext,
+                    image, BrowserUtil.isIE8(capabilities));
+            if (screenshotArea != null) {
+                screenshotArea.setBounds(area);
+            }
+            return image.getSubimage(area.x, area.y, area.width, area.height);
         } else {
             // Element or full screen image
-            return ImageIO.read(new ByteArrayInputStream(
-                    screenshotContext.getScreenshotAs(OutputType.BYTES)));
+            return setArea(ImageIO.read(new ByteArrayInputStream(
+                    screenshotContext.getScreenshotAs(OutputType.BYTES))),
+                    screenshotContext, screenshotArea);
+        }
+    }
+
+    /**
+     * Sets the area of the viewport shown in a screenshot taken by the
+     * browser, starting at the location of the element for element
+     * screenshots.
+     *
+     * @return the screenshot
+     */
+    private static BufferedImage setArea(BufferedImage screenshot,
+            TakesScreenshot screenshotContext, Rectangle screenshotArea) {
+        if (screenshotArea == null) {
+            return screenshot;
+        }
+        screenshotArea.setBounds(0, 0, screenshot.getWidth(),
+                screenshot.getHeight());
+        if (screenshotContext instanceof WebElement) {
+            Point location = ((WebElement) screenshotContext).getLocation();
+            screenshotArea.setLocation(location.x, location.y);
         }
+        return screenshot;
     }
 
     /**
@@ -122,6 +392,31 @@ public class ScreenshotComparator {
      */
     public static BufferedImage cropToElement(WebElement element,
             BufferedImage fullScreen, boolean isIE8) throws IOException {
+        Rectangle area = getElementArea(element, fullScreen, isIE8);
+        return fullScreen.getSubimage(area.x, area.y, area.width,
+                area.height);
+    }
+
+    /**
+     * Returns the area of the screenshot showing the element. If the element
+     * is partly off screen, returns the part of the element which is in the
+     * screenshot. The area can be compared without cropping the screenshot
+     * using
+     * {@link ImageComparison#compareToReference(BufferedImage, Rectangle, String, double, Capabilities)}
+     * .
+     *
+     * @param element
+     *            the element
+     * @param fullScreen
+     *            the full screen image
+     * @param isIE8
+     *            true if the browser is IE8
+     * @return the area of the element in the screenshot
+     * @throws IOException
+     *             if the element is outside the screenshot
+     */
+    public static Rectangle getElementArea(WebElement element,
+            BufferedImage fullScreen, boolean isIE8) throws IOException {
         Point loc = element.getLocation();
         Dimension size = element.getSize();
         int x = loc.x, y = loc.y;
@@ -151,7 +446,7 @@ public class ScreenshotComparator {
                     + ", y: " + y + ")");
         }
 
-        return fullScreen.getSubimage(x, y, w, h);
+        return new Rectangle(x, y, w, h);
     }
 
     public static boolean compareScreen(File reference,
@@ -198,6 +493,52 @@ public class ScreenshotComparator {
         return false;
     }
 
+    /**
+     * Compares a screenshot to the reference image file like
+     * {@link #compareScreen(File, ImageComparison, TakesScreenshot, HasCapabilities)}
+     * and returns the details of the last comparison made.
+     */
+    public static ComparisonResult compareScreenWithResult(File reference,
+            ImageComparison imageComparison, TakesScreenshot takesScreenshot,
+            HasCapabilities driver) throws IOException {
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(reference);
+        } catch (IIOException e) {
+            // Don't worry, an error screen shot will be generated that later
+            // can be used as the reference
+        }
+        return compareScreenWithResult(image, reference.getName(),
+                imageComparison, takesScreenshot, driver);
+    }
+
+    /**
+     * Compares a screenshot to the reference image like
+     * {@link #compareScreen(BufferedImage, String, ImageComparison, TakesScreenshot, HasCapabilities)}
+     * and returns the details of the last comparison made.
+     */
+    public static ComparisonResult compareScreenWithResult(
+            BufferedImage reference, String referenceName,
+            ImageComparison imageComparison, TakesScreenshot takesScreenshot,
+            HasCapabilities driver) throws IOException {
+        ComparisonResult result = null;
+        for (int times = 0; times < getAttempts(); times++) {
+            if (times > 0) {
+                pause(Parameters.getScreenshotRetryDelay());
+            }
+            BufferedImage screenshotImage = ImageIO
+                    .read(new ByteArrayInputStream(
+                            takesScreenshot.getScreenshotAs(OutputType.BYTES)));
+            result = imageComparison.compareToReference(screenshotImage,
+                    reference, referenceName,
+                    Parameters.getScreenshotComparisonTolerance());
+            if (result.isEqual() || reference == null) {
+                break;
+            }
+        }
+        return result;
+    }
+
     private static Logger getLogger() {
         return Logger.getLogger(ScreenshotComparator.class.getName());
     }
@@ -12,11 +12,13 @@
  */
 package com.vaadin.testbench.commands;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,10 +29,12 @@ import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.TakesScreenshot;
 import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
 import org.openqa.selenium.remote.HttpCommandExecutor;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
 import com.vaadin.testbench.TestBenchElement;
+import com.vaadin.testbench.screenshot.ComparisonResult;
 import com.vaadin.testbench.screenshot.ImageComparison;
 import com.vaadin.testbench.screenshot.ReferenceNameGenerator;
 
@@ -130,6 +134,27 @@ public class TestBenchCommandExecutor
                 (TakesScreenshot) driver, (HasCapabilities) driver);
     }
 
+    @Override
+    public boolean compareScreen(String referenceId, Rectangle... ignoredAreas)
+            throws IOException {
+        WebDriver driver = getWrappedDriver();
+        return ScreenshotComparator.compareScreen(referenceId,
+                Arrays.asList(ignoredAreas), referenceNameGenerator,
+                imageComparison, (TakesScreenshot) driver,
+                (HasCapabilities) driver);
+    }
+
+    @Override
+    public boolean compareScreen(String referenceId,
+            WebElement... ignoredElements) throws IOException {
+        WebDriver driver = getWrappedDriver();
+        return ScreenshotComparator.compareScreen(referenceId,
+                ScreenshotComparator.getElementAreas(
+                        (JavascriptExecutor) driver, null, ignoredElements),
+                referenceNameGenerator, imageComparison,
+                (TakesScreenshot) driver, (HasCapabilities) driver);
+    }
+
     @Override
     public boolean compareScreen(File reference) throws IOException {
         WebDriver driver = getWrappedDriver();
@@ -148,6 +173,33 @@ public class TestBenchCommandExecutor
 
     }
 
+    @Override
+    public ComparisonResult compareScreenWithResult(String referenceId)
+            throws IOException {
+        WebDriver driver = getWrappedDriver();
+        return ScreenshotComparator.compareScreenWithResult(referenceId,
+                referenceNameGenerator, imageComparison,
+                (TakesScreenshot) driver, (HasCapabilities) driver);
+    }
+
+    @Override
+    public ComparisonResult compareScreenWithResult(File reference)
+            throws IOException {
+        WebDriver driver = getWrappedDriver();
+        return ScreenshotComparator.compareScreenWithResult(reference,
+                imageComparison, (TakesScreenshot) driver,
+                (HasCapabilities) driver);
+    }
+
+    @Override
+    public ComparisonResult compareScreenWithResult(BufferedImage reference,
+            String referenceName) throws IOException {
+        WebDriver driver = getWrappedDriver();
+        return ScreenshotComparator.compareScreenWithResult(reference,
+                referenceName, imageComparison, (TakesScreenshot) driver,
+                (HasCapabilities) driver);
+    }
+
     @Override
     public long timeSpentRenderingLastRequest() {
         List<Long> timingValues = getTimingValues(false);
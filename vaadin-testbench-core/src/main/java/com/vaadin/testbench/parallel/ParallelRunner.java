@@ -39,6 +39,7 @@ import com.vaadin.testbench.Parameters;
 import com.vaadin.testbench.annotations.BrowserConfiguration;
 import com.vaadin.testbench.annotations.BrowserFactory;
 import com.vaadin.testbench.annotations.RunLocally;
+import com.vaadin.testbench.screenshot.ReferencePrefetcher;
 
 /**
  * This runner is loosely based on FactoryTestRunner by Ted Young
@@ -112,9 +113,28 @@ public class ParallelRunner extends BlockJUnit4ClassRunner {
             throw new RuntimeException("Error retrieving browsers to run on", e);
         }
 
+        // Decode the reference images while the browsers are started
+        if (Parameters.isScreenshotReferencePrefetch()) {
+            List<String> testNames = new ArrayList<String>();
+            for (FrameworkMethod method : tests) {
+                if (method instanceof TBMethod) {
+                    testNames.add(getPrefetchTestName(method));
+                }
+            }
+            ReferencePrefetcher.prefetch(testNames);
+        }
+
         return tests;
     }
 
+    /*
+     * Returns the name identifying the test and browser in the reference
+     * image manifest.
+     */
+    private String getPrefetchTestName(FrameworkMethod method) {
+        return getTestClass().getName() + "#" + method.getName();
+    }
+
     private boolean categoryIsExcludedOrNotExcplicitlyIncluded() {
         Class<?> c = getTestClass().getJavaClass();
 
@@ -462,6 +482,29 @@ public class ParallelRunner extends BlockJUnit4ClassRunner {
         };
     }
 
+    @Override
+    protected Statement methodBlock(final FrameworkMethod method) {
+        final Statement statement = super.methodBlock(method);
+        if (!Parameters.isScreenshotReferencePrefetch()) {
+            return statement;
+        }
+        // Records the reference images used by the test for prefetching
+        // them on the next run
+        return new Statement() {
+
+            @Override
+            public void evaluate() throws Throwable {
+                ReferencePrefetcher
+                        .setCurrentTest(getPrefetchTestName(method));
+                try {
+                    statement.evaluate();
+                } finally {
+                    ReferencePrefetcher.setCurrentTest(null);
+                }
+            }
+        };
+    }
+
     public static class TBMethod extends FrameworkMethod {
         private final DesiredCapabilities capabilities;
         private String testNameSuffix = "";
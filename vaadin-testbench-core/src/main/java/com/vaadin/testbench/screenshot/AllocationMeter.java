@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the heap memory allocated by the current thread, using
+ * {@code com.sun.management.ThreadMXBean} where the JVM provides it.
+ * <p>
+ * Only allocations made by the calling thread are counted, so threads
+ * comparing stripes in parallel are not included.
+ */
+public class AllocationMeter {
+
+    private static final ThreadMXBean threadBean = ManagementFactory
+            .getThreadMXBean();
+    private static final boolean supported = isAllocationMeasurable();
+
+    private AllocationMeter() {
+        // Static utility methods only
+    }
+
+    private static boolean isAllocationMeasurable() {
+        try {
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+                return bean.isThreadAllocatedMemorySupported()
+                        && bean.isThreadAllocatedMemoryEnabled();
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot based JVM
+        } catch (UnsupportedOperationException e) {
+            // Measurement not available
+        }
+        return false;
+    }
+
+    /**
+     * @return true if allocations can be measured in this JVM
+     */
+    public static boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Returns the total number of bytes allocated by the current thread so
+     * far. The difference of two calls is the amount allocated in between.
+     *
+     * @return the allocated bytes or -1 if not supported
+     */
+    public static long getAllocatedBytes() {
+        if (!supported) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threadBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
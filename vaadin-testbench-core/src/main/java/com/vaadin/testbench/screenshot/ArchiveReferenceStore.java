@@ -0,0 +1,451 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Reference images packed into a single archive file, which is much faster
+ * to check out, copy and open than thousands of small files.
+ * <p>
+ * The archive starts with a table of contents listing the name, content
+ * hash, position, size and modification time of every reference image,
+ * followed by the PNG data of the reference images. The table of contents is
+ * read into memory when the archive is opened and the archive is memory
+ * mapped, so finding a reference image is a hash lookup and reading it is a
+ * copy from the mapped file.
+ * <p>
+ * The archive is content addressed: reference images with the same pixels,
+ * e.g. the same screenshot for several browser versions, are stored once
+ * and have the same {@link #getContentHash(String) content hash}, so they
+ * are also decoded and kept in memory once.
+ * <p>
+ * Archives are created from a reference directory with
+ * {@link #pack(File, File)}, also available from the command line:
+ *
+ * <pre>
+ * java -cp vaadin-testbench-core.jar com.vaadin.testbench.screenshot.ArchiveReferenceStore reference-screenshots references.tbref
+ * </pre>
+ */
+public class ArchiveReferenceStore implements ContentAddressedReferenceStore {
+
+    private static final int MAGIC = 0x54425250;
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 20;
+
+    private final File archive;
+    private final ByteBuffer data;
+    private final Map<String, Entry> entries;
+
+    private static class Entry {
+        private final String contentHash;
+        private final int offset;
+        private final int length;
+        private final long lastModified;
+
+        Entry(String contentHash, int offset, int length, long lastModified) {
+            this.contentHash = contentHash;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private ArchiveReferenceStore(File archive, ByteBuffer data,
+            Map<String, Entry> entries) {
+        this.archive = archive;
+        this.data = data;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens an archive created with {@link #pack(File, File)}.
+     *
+     * @param archive
+     *            the archive file
+     * @return the reference images in the archive
+     * @throws IOException
+     *             if the archive cannot be read or is not a reference image
+     *             archive
+     */
+    public static ArchiveReferenceStore open(File archive) throws IOException {
+        MappedByteBuffer data;
+        FileChannel channel = FileChannel.open(archive.toPath(),
+                StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Reference image archive " + archive
+                        + " is larger than 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            channel.close();
+        }
+
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        try {
+            if (data.getInt() != MAGIC) {
+                throw new IOException(archive
+                        + " is not a reference image archive");
+            }
+            // Archives without content hashes are still read
+            final int version = data.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Reference image archive " + archive
+                        + " has unsupported version " + version);
+            }
+            final int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[data.getShort() & 0xffff];
+                data.get(name);
+                String contentHash = null;
+                if (version >= 2) {
+                    byte[] hash = new byte[HASH_LENGTH];
+                    data.get(hash);
+                    contentHash = toHex(hash);
+                }
+                Entry entry = new Entry(contentHash, data.getInt(),
+                        data.getInt(), data.getLong());
+                if (entry.offset < 0 || entry.length < 0
+                        || entry.offset > data.capacity() - entry.length) {
+                    throw new IOException("Reference image archive "
+                            + archive + " is truncated");
+                }
+                entries.put(new String(name, "UTF-8"), entry);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Reference image archive " + archive
+                    + " is truncated", e);
+        }
+        return new ArchiveReferenceStore(archive.getAbsoluteFile(), data,
+                entries);
+    }
+
+    /**
+     * @return the archive file
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return the file names of the reference images in the archive
+     */
+    public Set<String> getFileNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    @Override
+    public boolean exists(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            throw new FileNotFoundException("Reference image " + fileName
+                    + " not found in " + archive);
+        }
+        ByteBuffer buffer = data.duplicate();
+        buffer.limit(entry.offset + entry.length);
+        buffer.position(entry.offset);
+        return new BufferInputStream(buffer);
+    }
+
+    @Override
+    public long getLength(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry == null ? 0 : entry.length;
+    }
+
+    @Override
+    public long getLastModified(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry == null ? 0 : entry.lastModified;
+    }
+
+    @Override
+    public String getLocation(String fileName) {
+        return archive.getPath() + "!/" + fileName;
+    }
+
+    @Override
+    public String getContentHash(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry == null ? null : entry.contentHash;
+    }
+
+    /**
+     * Packs the reference images (PNG files) in a directory into an archive.
+     * Reference images with the same pixels are stored once. The archive is
+     * written to a temporary file and renamed, so that tests using an
+     * existing archive are not disturbed.
+     *
+     * @param directory
+     *            the reference directory
+     * @param archive
+     *            the archive file to create or replace
+     * @return the number of reference images packed
+     * @throws IOException
+     *             if the reference images cannot be read or the archive
+     *             cannot be written
+     */
+    public static int pack(File directory, File archive) throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".png");
+            }
+        });
+        if (files == null) {
+            throw new FileNotFoundException(directory + " is not a directory");
+        }
+        Arrays.sort(files);
+
+        // Positions of the images follow the table of contents
+        int tableSize = 12;
+        byte[][] names = new byte[files.length][];
+        byte[][] hashes = new byte[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getName().getBytes("UTF-8");
+            hashes[i] = computeContentHash(files[i]);
+            tableSize += 2 + names[i].length + HASH_LENGTH + 4 + 4 + 8;
+        }
+        ByteArrayOutputStream table = new ByteArrayOutputStream(tableSize);
+        DataOutputStream out = new DataOutputStream(table);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(files.length);
+        // The first file with each content is stored, the others refer to
+        // its data
+        final List<File> storedFiles = new ArrayList<File>();
+        final Map<String, int[]> stored = new HashMap<String, int[]>();
+        long offset = tableSize;
+        for (int i = 0; i < files.length; i++) {
+            int[] position = stored.get(toHex(hashes[i]));
+            if (position == null) {
+                final long length = files[i].length();
+                if (offset + length > Integer.MAX_VALUE) {
+                    throw new IOException("Reference images in " + directory
+                            + " do not fit in an archive of 2 GB");
+                }
+                position = new int[] { (int) offset, (int) length };
+                stored.put(toHex(hashes[i]), position);
+                storedFiles.add(files[i]);
+                offset += length;
+            }
+            out.writeShort(names[i].length);
+            out.write(names[i]);
+            out.write(hashes[i]);
+            out.writeInt(position[0]);
+            out.writeInt(position[1]);
+            out.writeLong(files[i].lastModified());
+        }
+        out.flush();
+
+        File directoryOfArchive = archive.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(archive.getName(), ".tmp",
+                directoryOfArchive);
+        try {
+            OutputStream archiveOut = new FileOutputStream(tempFile);
+            try {
+                table.writeTo(archiveOut);
+                byte[] buffer = new byte[65536];
+                for (File file : storedFiles) {
+                    // Exactly the length recorded in the table of contents
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        long remaining = file.length();
+                        while (remaining > 0) {
+                            int read = in.read(buffer, 0,
+                                    (int) Math.min(buffer.length, remaining));
+                            if (read == -1) {
+                                throw new IOException(file
+                                        + " was modified while packing");
+                            }
+                            archiveOut.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                archiveOut.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), archive.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), archive.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+        return files.length;
+    }
+
+    /**
+     * Packs a reference directory into an archive, see
+     * {@link #pack(File, File)}.
+     *
+     * @param args
+     *            the reference directory and the archive file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: "
+                    + ArchiveReferenceStore.class.getName()
+                    + " <reference directory> <archive file>");
+            System.exit(1);
+        }
+        int count = pack(new File(args[0]), new File(args[1]));
+        ArchiveReferenceStore store = open(new File(args[1]));
+        Set<String> contents = new HashSet<String>();
+        for (String fileName : store.getFileNames()) {
+            contents.add(store.getContentHash(fileName));
+        }
+        System.out.println("Packed " + count + " reference images with "
+                + contents.size() + " different contents into " + args[1]);
+    }
+
+    /**
+     * Computes the content hash of a reference image: a hash of its size,
+     * whether it has an alpha channel and its ARGB pixels, so that the same
+     * image encoded differently has the same hash. Files that cannot be
+     * decoded are hashed as they are.
+     */
+    private static byte[] computeContentHash(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(file);
+        } catch (IOException e) {
+            // Hashed as bytes below
+        }
+        if (image == null) {
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(file.toPath()));
+            return digest.digest();
+        }
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put((byte) 1).putInt(width).putInt(height)
+                .put((byte) (image.getColorModel().hasAlpha() ? 1 : 0));
+        digest.update(header.array());
+        final int[] row = new int[width];
+        final ByteBuffer rowBytes = ByteBuffer.allocate(width * 4);
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            rowBytes.clear();
+            rowBytes.asIntBuffer().put(row);
+            digest.update(rowBytes.array());
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 algorithm provider not found", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads a range of the mapped archive.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One bit per comparison block, e.g. the blocks that failed a comparison.
+ * <p>
+ * The bits are stored row by row in an array of longs. Each row of blocks
+ * starts at a new long so different rows can be modified concurrently
+ * without synchronization, as is done when comparing stripes of an image in
+ * parallel.
+ */
+public class BlockBitmap {
+
+    private final int xBlocks;
+    private final int yBlocks;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * Creates a bitmap with no blocks set.
+     *
+     * @param xBlocks
+     *            the number of blocks in x direction
+     * @param yBlocks
+     *            the number of blocks in y direction
+     */
+    public BlockBitmap(int xBlocks, int yBlocks) {
+        this.xBlocks = xBlocks;
+        this.yBlocks = yBlocks;
+        wordsPerRow = (xBlocks + 63) >>> 6;
+        words = new long[wordsPerRow * yBlocks];
+    }
+
+    /**
+     * Creates a bitmap from a column-major boolean array as used by earlier
+     * versions, {@code blocks[x][y]} being true for set blocks.
+     *
+     * @param blocks
+     *            the blocks
+     * @return a new bitmap with the same blocks set
+     */
+    public static BlockBitmap of(boolean[][] blocks) {
+        final int xBlocks = blocks.length;
+        final int yBlocks = xBlocks == 0 ? 0 : blocks[0].length;
+        BlockBitmap bitmap = new BlockBitmap(xBlocks, yBlocks);
+        for (int x = 0; x < xBlocks; x++) {
+            for (int y = 0; y < yBlocks; y++) {
+                if (blocks[x][y]) {
+                    bitmap.set(x, y);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    public int getXBlocks() {
+        return xBlocks;
+    }
+
+    public int getYBlocks() {
+        return yBlocks;
+    }
+
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    public void clear(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+    }
+
+    /**
+     * Clears all blocks.
+     */
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Clears all blocks that are set in the given bitmap of the same size.
+     *
+     * @param other
+     *            the blocks to clear
+     */
+    public void andNot(BlockBitmap other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
+    /**
+     * @return the number of set blocks
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if no block is set
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next set block in row-major order. Blocks are indexed as
+     * {@code y * getXBlocks() + x}.
+     *
+     * @param fromIndex
+     *            the index to start from (inclusive)
+     * @return the index of the next set block or -1 if there is none
+     */
+    public int nextSetBlock(int fromIndex) {
+        if (xBlocks == 0) {
+            return -1;
+        }
+        int y = fromIndex / xBlocks;
+        int x = fromIndex % xBlocks;
+        while (y < yBlocks) {
+            final int rowStart = y * wordsPerRow;
+            for (int word = x >>> 6; word < wordsPerRow; word++) {
+                long bits = words[rowStart + word];
+                if (word == x >>> 6) {
+                    bits &= -1L << x;
+                }
+                if (bits != 0) {
+                    return y * xBlocks + (word << 6)
+                            + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            y++;
+            x = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the groups of set blocks connected horizontally or vertically.
+     *
+     * @return the bounding box of each group, in blocks, ordered by the
+     *         position of the first block of the group in row-major order
+     */
+    public List<Rectangle> getRegions() {
+        final List<Rectangle> regions = new ArrayList<Rectangle>();
+        final BlockBitmap unvisited = copy();
+        int[] stack = new int[16];
+        int start = unvisited.nextSetBlock(0);
+        while (start != -1) {
+            int minX = start % xBlocks, maxX = minX;
+            int minY = start / xBlocks, maxY = minY;
+            unvisited.clear(minX, minY);
+            int size = 0;
+            stack[size++] = start;
+            while (size > 0) {
+                final int block = stack[--size];
+                final int x = block % xBlocks;
+                final int y = block / xBlocks;
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                if (size + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                if (x > 0 && unvisited.get(x - 1, y)) {
+                    unvisited.clear(x - 1, y);
+                    stack[size++] = block - 1;
+                }
+                if (x < xBlocks - 1 && unvisited.get(x + 1, y)) {
+                    unvisited.clear(x + 1, y);
+                    stack[size++] = block + 1;
+                }
+                if (y > 0 && unvisited.get(x, y - 1)) {
+                    unvisited.clear(x, y - 1);
+                    stack[size++] = block - xBlocks;
+                }
+                if (y < yBlocks - 1 && unvisited.get(x, y + 1)) {
+                    unvisited.clear(x, y + 1);
+                    stack[size++] = block + xBlocks;
+                }
+            }
+            regions.add(new Rectangle(minX, minY, maxX - minX + 1, maxY
+                    - minY + 1));
+            start = unvisited.nextSetBlock(start + 1);
+        }
+        return regions;
+    }
+
+    /**
+     * @return a copy of this bitmap
+     */
+    public BlockBitmap copy() {
+        BlockBitmap copy = new BlockBitmap(xBlocks, yBlocks);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    /**
+     * @return the blocks as a column-major boolean array,
+     *         {@code blocks[x][y]} being true for set blocks
+     */
+    public boolean[][] toArray() {
+        boolean[][] blocks = new boolean[xBlocks][yBlocks];
+        int block = nextSetBlock(0);
+        while (block != -1) {
+            blocks[block % xBlocks][block / xBlocks] = true;
+            block = nextSetBlock(block + 1);
+        }
+        return blocks;
+    }
+
+    private void checkSameSize(BlockBitmap other) {
+        if (other.xBlocks != xBlocks || other.yBlocks != yBlocks) {
+            throw new IllegalArgumentException("Bitmap sizes differ: "
+                    + xBlocks + "x" + yBlocks + " and " + other.xBlocks + "x"
+                    + other.yBlocks);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.jar.JarEntry;
+
+/**
+ * Reference images stored as resources on the classpath, e.g. packaged in a
+ * test jar. The length and modification time of resources are only known for
+ * resources in directories and jar files.
+ */
+public class ClasspathReferenceStore implements ReferenceStore {
+
+    private final ClassLoader classLoader;
+    private final String path;
+
+    /**
+     * @param classLoader
+     *            the class loader to load the reference images with
+     * @param path
+     *            the resource path of the reference images, e.g.
+     *            {@code com/example/reference-screenshots}
+     */
+    public ClasspathReferenceStore(ClassLoader classLoader, String path) {
+        this.classLoader = classLoader;
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (!path.isEmpty() && !path.endsWith("/")) {
+            path += "/";
+        }
+        this.path = path;
+    }
+
+    private URL getResource(String fileName) {
+        return classLoader.getResource(path + fileName);
+    }
+
+    @Override
+    public boolean exists(String fileName) {
+        return getResource(fileName) != null;
+    }
+
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        URL resource = getResource(fileName);
+        if (resource == null) {
+            throw new FileNotFoundException("Reference image " + path
+                    + fileName + " not found on the classpath");
+        }
+        return resource.openStream();
+    }
+
+    @Override
+    public long getLength(String fileName) {
+        URL resource = getResource(fileName);
+        if (resource == null) {
+            return 0;
+        }
+        File file = getFile(resource);
+        if (file != null) {
+            return file.length();
+        }
+        JarEntry entry = getJarEntry(resource);
+        return entry == null ? 0 : Math.max(0, entry.getSize());
+    }
+
+    @Override
+    public long getLastModified(String fileName) {
+        URL resource = getResource(fileName);
+        if (resource == null) {
+            return 0;
+        }
+        File file = getFile(resource);
+        if (file != null) {
+            return file.lastModified();
+        }
+        JarEntry entry = getJarEntry(resource);
+        return entry == null ? 0 : Math.max(0, entry.getTime());
+    }
+
+    private static File getFile(URL resource) {
+        if (!"file".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(resource.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the entry of a resource in a jar file or null if the resource
+     *         is not in a jar file
+     */
+    private static JarEntry getJarEntry(URL resource) {
+        if (!"jar".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            // Uses the jar file cached by the URL handler, like class loading
+            return ((JarURLConnection) resource.openConnection())
+                    .getJarEntry();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getLocation(String fileName) {
+        URL resource = getResource(fileName);
+        return resource == null ? "classpath:" + path + fileName : resource
+                .toString();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * Scratch memory for image comparison, reused by all comparisons on the same
+ * thread. Buffers grow as needed and are reset instead of reallocated, so
+ * repeated comparisons of images of the same size, e.g. screenshot retries,
+ * allocate next to nothing.
+ * <p>
+ * A context is acquired for the duration of one comparison with
+ * {@link #acquire()} and must be given back with {@link #release()}. The
+ * converted pixel buffers are only softly referenced so that a thread which
+ * once compared a large image does not keep the memory indefinitely.
+ */
+class ComparisonContext {
+
+    private static final ThreadLocal<ComparisonContext> contexts = new ThreadLocal<ComparisonContext>() {
+        @Override
+        protected ComparisonContext initialValue() {
+            return new ComparisonContext();
+        }
+    };
+
+    private boolean inUse = false;
+
+    private SoftReference<int[]> refPixels = null;
+    private SoftReference<int[]> ssPixels = null;
+    private BlockBitmap falseBlocks = null;
+    private BlockBitmap pyramidBlocks = null;
+    private int[] blockErrors = null;
+    private boolean[] rowScratch = null;
+
+    /**
+     * Returns the context of the current thread for one comparison. If the
+     * context of the thread is already in use, e.g. by an enclosing
+     * comparison, a new temporary context is returned.
+     *
+     * @return a context which must be released after the comparison
+     */
+    static ComparisonContext acquire() {
+        ComparisonContext context = contexts.get();
+        if (context.inUse) {
+            context = new ComparisonContext();
+        }
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * Gives the context back for use by the next comparison on this thread.
+     * Nothing obtained from the context may be used after this.
+     */
+    void release() {
+        inUse = false;
+    }
+
+    /**
+     * Returns the packed representation of an area of the reference image,
+     * converting it into a pooled buffer if needed.
+     */
+    PackedImage packReference(BufferedImage image, Rectangle area) {
+        if (PackedImage.canShare(image)) {
+            return PackedImage.of(image, area);
+        }
+        int[] buffer = getBuffer(refPixels, area);
+        if (refPixels == null || refPixels.get() != buffer) {
+            refPixels = new SoftReference<int[]>(buffer);
+        }
+        return PackedImage.of(image, area, buffer);
+    }
+
+    /**
+     * Returns the packed representation of an area of the screenshot,
+     * converting it into a pooled buffer if needed.
+     */
+    PackedImage packScreenshot(BufferedImage image, Rectangle area) {
+        if (PackedImage.canShare(image)) {
+            return PackedImage.of(image, area);
+        }
+        int[] buffer = getBuffer(ssPixels, area);
+        if (ssPixels == null || ssPixels.get() != buffer) {
+            ssPixels = new SoftReference<int[]>(buffer);
+        }
+        return PackedImage.of(image, area, buffer);
+    }
+
+    private static int[] getBuffer(SoftReference<int[]> reference,
+            Rectangle area) {
+        final int size = area.width * area.height;
+        int[] buffer = reference == null ? null : reference.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new int[size];
+        }
+        return buffer;
+    }
+
+    /**
+     * @return an empty bitmap for the failed blocks
+     */
+    BlockBitmap getFalseBlocks(int xBlocks, int yBlocks) {
+        falseBlocks = reset(falseBlocks, xBlocks, yBlocks);
+        return falseBlocks;
+    }
+
+    /**
+     * @return an empty bitmap for the blocks with differing pyramid
+     *         signatures
+     */
+    BlockBitmap getPyramidBlocks(int xBlocks, int yBlocks) {
+        pyramidBlocks = reset(pyramidBlocks, xBlocks, yBlocks);
+        return pyramidBlocks;
+    }
+
+    /**
+     * @return a zeroed buffer for the error of each block
+     */
+    int[] getBlockErrors(int blocks) {
+        if (blockErrors == null || blockErrors.length < blocks) {
+            blockErrors = new int[blocks];
+        } else {
+            Arrays.fill(blockErrors, 0, blocks, 0);
+        }
+        return blockErrors;
+    }
+
+    private static BlockBitmap reset(BlockBitmap bitmap, int xBlocks,
+            int yBlocks) {
+        if (bitmap == null || bitmap.getXBlocks() != xBlocks
+                || bitmap.getYBlocks() != yBlocks) {
+            return new BlockBitmap(xBlocks, yBlocks);
+        }
+        bitmap.clear();
+        return bitmap;
+    }
+
+    /**
+     * Returns a scratch buffer with room for one flag per block in a row,
+     * for the current thread. Used by the threads comparing stripes in
+     * parallel, so it does not require acquiring a context.
+     *
+     * @param xBlocks
+     *            the number of blocks in a row
+     * @return a buffer with at least xBlocks elements
+     */
+    static boolean[] getRowScratch(int xBlocks) {
+        ComparisonContext context = contexts.get();
+        if (context.rowScratch == null || context.rowScratch.length < xBlocks) {
+            context.rowScratch = new boolean[xBlocks];
+        }
+        return context.rowScratch;
+    }
+}
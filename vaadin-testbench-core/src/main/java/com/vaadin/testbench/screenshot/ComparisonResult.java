@@ -0,0 +1,351 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of comparing a screenshot to a reference image, with details
+ * useful for tuning the comparison tolerance and for finding slow
+ * comparisons.
+ * <p>
+ * Block errors are given in the same unit as the error tolerance: the sum of
+ * the differences of the red, green and blue channels in the block divided
+ * by the largest possible sum for a full block. A block fails if its error
+ * is greater than the tolerance.
+ */
+public class ComparisonResult {
+
+    /**
+     * The outcome of cursor detection, see
+     * {@link com.vaadin.testbench.Parameters#isScreenshotComparisonCursorDetection()}
+     */
+    public enum CursorDetection {
+        /**
+         * Cursor detection was disabled or not needed
+         */
+        NOT_CHECKED,
+        /**
+         * The failed blocks are not explained by a blinking cursor
+         */
+        REJECTED,
+        /**
+         * A blinking cursor is the only difference, so the images are
+         * considered equal even though some blocks failed
+         */
+        CURSOR_ONLY
+    }
+
+    private final boolean equal;
+    private final String referenceName;
+    private final boolean sizeMismatch;
+    private final int width;
+    private final int height;
+    private final int blockSize;
+    private final double errorTolerance;
+    private final BlockBitmap failedBlocks;
+    private final int[] blockErrors;
+    private CursorDetection cursorDetection = CursorDetection.NOT_CHECKED;
+    private ImageShift imageShift = null;
+    private long decodeNanos = 0;
+    private long compareNanos = 0;
+    private long reportNanos = 0;
+    private long allocatedBytes = -1;
+
+    /**
+     * @param equal
+     *            true if the images are considered equal
+     * @param referenceName
+     *            the file name of the reference image or null if there is no
+     *            reference image
+     * @param sizeMismatch
+     *            true if the image sizes differ
+     * @param width
+     *            the width of the compared area
+     * @param height
+     *            the height of the compared area
+     * @param blockSize
+     *            the size of the comparison blocks
+     * @param errorTolerance
+     *            the error tolerance used
+     * @param failedBlocks
+     *            the blocks exceeding the tolerance, owned by the result
+     * @param blockErrors
+     *            the sums of channel differences of each block in row-major
+     *            order, owned by the result, or null if no pixel differs
+     */
+    ComparisonResult(boolean equal, String referenceName,
+            boolean sizeMismatch, int width, int height, int blockSize,
+            double errorTolerance, BlockBitmap failedBlocks,
+            int[] blockErrors) {
+        this.equal = equal;
+        this.referenceName = referenceName;
+        this.sizeMismatch = sizeMismatch;
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+        this.errorTolerance = errorTolerance;
+        this.failedBlocks = failedBlocks;
+        this.blockErrors = blockErrors;
+    }
+
+    /**
+     * Creates the result for a screenshot with no reference image to compare
+     * to.
+     */
+    static ComparisonResult missingReference(int width, int height) {
+        return new ComparisonResult(false, null, false, width, height,
+                ImageComparisonUtil.DEFAULT_BLOCK_SIZE, 0, new BlockBitmap(0,
+                        0), null);
+    }
+
+    /**
+     * @return true if the screenshot is considered equal to the reference
+     *         image
+     */
+    public boolean isEqual() {
+        return equal;
+    }
+
+    /**
+     * Returns the reference image the screenshot was compared to. If there
+     * are several alternative reference images, this is the one that
+     * matched or, if none did, the one used for the error report.
+     *
+     * @return the file name of the reference image or null if no reference
+     *         image was found
+     */
+    public String getReferenceName() {
+        return referenceName;
+    }
+
+    /**
+     * @return true if the reference image and the screenshot are of
+     *         different size, in which case the images are never considered
+     *         equal
+     */
+    public boolean isSizeMismatch() {
+        return sizeMismatch;
+    }
+
+    /**
+     * @return the width of the compared area, i.e. the smaller of the image
+     *         widths
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the compared area, i.e. the smaller of the image
+     *         heights
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the size of the comparison blocks in pixels
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the number of blocks in x direction
+     */
+    public int getXBlocks() {
+        return failedBlocks.getXBlocks();
+    }
+
+    /**
+     * @return the number of blocks in y direction
+     */
+    public int getYBlocks() {
+        return failedBlocks.getYBlocks();
+    }
+
+    /**
+     * @return the error tolerance the images were compared with
+     */
+    public double getErrorTolerance() {
+        return errorTolerance;
+    }
+
+    /**
+     * Returns the error of the given block. Blocks whose pixels are all
+     * equal have no error.
+     *
+     * @param blockX
+     *            the x coordinate of the block (in blocks)
+     * @param blockY
+     *            the y coordinate of the block (in blocks)
+     * @return the error of the block (0-1)
+     */
+    public double getBlockError(int blockX, int blockY) {
+        if (blockErrors == null) {
+            return 0;
+        }
+        return toError(blockErrors[blockY * getXBlocks() + blockX]);
+    }
+
+    /**
+     * @return the largest error of any block (0-1)
+     */
+    public double getMaxBlockError() {
+        int max = 0;
+        if (blockErrors != null) {
+            for (int error : blockErrors) {
+                max = Math.max(max, error);
+            }
+        }
+        return toError(max);
+    }
+
+    private double toError(int sum) {
+        return sum / ((double) blockSize * blockSize * 255 * 3);
+    }
+
+    /**
+     * Returns the blocks exceeding the error tolerance. Blocks explained by
+     * shifted content are included, see {@link #getImageShift()}. If a cursor
+     * is the only difference, the blocks containing the cursor are included
+     * even though the images are considered equal.
+     *
+     * @return a copy of the failed blocks
+     */
+    public BlockBitmap getFailedBlocks() {
+        return failedBlocks.copy();
+    }
+
+    /**
+     * @return the number of blocks exceeding the error tolerance
+     * @see #getFailedBlocks()
+     */
+    public int getFailedBlockCount() {
+        return failedBlocks.cardinality();
+    }
+
+    /**
+     * Returns the areas of connected failed blocks.
+     *
+     * @return the bounding box of each area in pixels
+     * @see #getFailedBlocks()
+     */
+    public List<Rectangle> getFailedRegions() {
+        final Rectangle bounds = new Rectangle(width, height);
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        for (Rectangle region : failedBlocks.getRegions()) {
+            regions.add(new Rectangle(region.x * blockSize, region.y
+                    * blockSize, region.width * blockSize, region.height
+                    * blockSize).intersection(bounds));
+        }
+        return regions;
+    }
+
+    /**
+     * @return the outcome of cursor detection
+     */
+    public CursorDetection getCursorDetection() {
+        return cursorDetection;
+    }
+
+    void setCursorDetection(CursorDetection cursorDetection) {
+        this.cursorDetection = cursorDetection;
+    }
+
+    /**
+     * Returns the shifted content found in the screenshot. The images are
+     * still considered different, but the failed blocks inside the shifted
+     * area are described by the shift instead of block by block in the error
+     * report.
+     *
+     * @return the shifted content found in the screenshot or null if shift
+     *         detection is disabled or no shifted content was found
+     */
+    public ImageShift getImageShift() {
+        return imageShift;
+    }
+
+    void setImageShift(ImageShift imageShift) {
+        this.imageShift = imageShift;
+    }
+
+    /**
+     * @return the time spent reading reference images, in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * @return the time spent comparing the images, in nanoseconds
+     */
+    public long getCompareNanos() {
+        return compareNanos;
+    }
+
+    /**
+     * @return the time spent writing the error screenshot and report, in
+     *         nanoseconds
+     */
+    public long getReportNanos() {
+        return reportNanos;
+    }
+
+    void setTimings(long decodeNanos, long compareNanos, long reportNanos) {
+        this.decodeNanos = decodeNanos;
+        this.compareNanos = compareNanos;
+        this.reportNanos = reportNanos;
+    }
+
+    /**
+     * Returns the heap memory allocated by the comparing thread for the
+     * comparison, see {@link AllocationMeter}.
+     *
+     * @return the allocated bytes or -1 if allocations cannot be measured
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    void setAllocatedBytes(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(equal ? "Equal to " : "Differs from ");
+        sb.append(referenceName == null ? "missing reference"
+                : referenceName);
+        if (sizeMismatch) {
+            sb.append(", size mismatch");
+        }
+        sb.append(", ").append(getFailedBlockCount()).append(" failed of ")
+                .append(getXBlocks() * getYBlocks()).append(" blocks");
+        sb.append(", max block error ").append(getMaxBlockError());
+        if (cursorDetection != CursorDetection.NOT_CHECKED) {
+            sb.append(", cursor ").append(cursorDetection);
+        }
+        if (imageShift != null) {
+            sb.append(", ").append(imageShift);
+        }
+        sb.append(", decode ").append(decodeNanos / 1000).append(" us");
+        sb.append(", compare ").append(compareNanos / 1000).append(" us");
+        sb.append(", report ").append(reportNanos / 1000).append(" us");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+/**
+ * A {@link ReferenceStore} that knows the content of its reference images.
+ * Reference images with the same content hash have the same pixels, so a
+ * decoded reference image can be shared by all reference images with the
+ * same hash, e.g. in {@link ReferenceImageCache}.
+ */
+public interface ContentAddressedReferenceStore extends ReferenceStore {
+
+    /**
+     * @param fileName
+     *            the file name of the reference image
+     * @return the content hash of the reference image or null if it is not
+     *         known
+     */
+    String getContentHash(String fileName);
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reference images stored as files in a directory, by default
+ * {@link com.vaadin.testbench.Parameters#getScreenshotReferenceDirectory()}.
+ */
+public class DirectoryReferenceStore implements ReferenceStore {
+
+    private final File directory;
+
+    /**
+     * @param directory
+     *            the directory containing the reference images or null for
+     *            the working directory
+     */
+    public DirectoryReferenceStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory containing the reference images or null for the
+     *         working directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param fileName
+     *            the file name of a reference image
+     * @return the file of the reference image
+     */
+    public File getFile(String fileName) {
+        return new File(directory, fileName);
+    }
+
+    @Override
+    public boolean exists(String fileName) {
+        return getFile(fileName).exists();
+    }
+
+    @Override
+    public InputStream open(String fileName) throws IOException {
+        return new FileInputStream(getFile(fileName));
+    }
+
+    @Override
+    public long getLength(String fileName) {
+        return getFile(fileName).length();
+    }
+
+    @Override
+    public long getLastModified(String fileName) {
+        return getFile(fileName).lastModified();
+    }
+
+    @Override
+    public String getLocation(String fileName) {
+        return getFile(fileName).getAbsolutePath();
+    }
+}
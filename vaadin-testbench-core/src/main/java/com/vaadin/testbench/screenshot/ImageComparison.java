@@ -12,15 +12,19 @@
  */
 package com.vaadin.testbench.screenshot;
 
-import static com.vaadin.testbench.screenshot.ImageUtil.getBlock;
-import static com.vaadin.testbench.screenshot.ImageUtil.getImageProperties;
-import static com.vaadin.testbench.screenshot.ImageUtil.getLuminance;
 import static java.lang.Math.abs;
 
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
@@ -28,7 +32,7 @@ import javax.imageio.ImageIO;
 import org.openqa.selenium.Capabilities;
 
 import com.vaadin.testbench.Parameters;
-import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+import com.vaadin.testbench.screenshot.ComparisonResult.CursorDetection;
 
 /**
  * Class with features for comparing 2 images.
@@ -36,51 +40,130 @@ import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
 public class ImageComparison {
 
     /**
-     * Extracted for clarity. No guarantee that it can be changed without other
-     * code changes!
+     * The height of the area, in pixels, searched for a cursor. Covers a cursor
+     * up to 33px high when using 16x16 blocks.
      */
-    private static final int BLOCK_SIZE = 16;
-    private static final int MAX_CURSOR_Y_BLOCKS = 3; // 3 to cover cursor up to
-                                                      // 33px high
+    private static final int MAX_CURSOR_HEIGHT = 48;
+
     //
     // NOTE: All functions in the screenshot comparison package process images
-    // in 16x16 blocks. This behavior is hard-coded in several places in this
-    // class.
+    // in square blocks, 16x16 by default. See
+    // Parameters.getScreenshotComparisonBlockSize().
     //
 
     private static Logger logger = Logger.getLogger(ImageComparison.class
             .getName());
 
+    private static ForkJoinPool comparisonPool;
+
+    /**
+     * Pyramids of recently compared reference images, see
+     * {@link Parameters#isScreenshotComparisonPyramid()}.
+     */
+    private static final Map<BufferedImage, ImagePyramid> referencePyramids = Collections
+            .synchronizedMap(new WeakHashMap<BufferedImage, ImagePyramid>());
+
+    /**
+     * Opacity masks of recently compared reference images with an alpha
+     * channel.
+     */
+    private static final Map<BufferedImage, OpacityMask> referenceMasks = Collections
+            .synchronizedMap(new WeakHashMap<BufferedImage, OpacityMask>());
+
     /**
      * Data collection type, used as input for image comparison functions. Saves
      * unnecessary buffer allocations.
      */
-    private static class ComparisonParameters {
-
-        private ImageProperties refProperties = null;
-        private ImageProperties ssProperties = null;
+    static class ComparisonParameters {
 
         private BufferedImage refImage = null;
         private BufferedImage ssImage = null;
 
-        private int[] refBlock = null;
-        private int[] ssBlock = null;
-        private int[] sampleBuffer = null;
-        private boolean[][] falseBlocks = null;
+        /*
+         * The compared areas of the images, both width x height pixels.
+         */
+        private Rectangle refArea = null;
+        private Rectangle ssArea = null;
+        private boolean wholeReference = false;
+
+        private PackedImage refPacked = null;
+        private PackedImage ssPacked = null;
+
+        private BlockBitmap falseBlocks = null;
+
+        /*
+         * Pooled buffers, see ComparisonContext. Released after the
+         * comparison.
+         */
+        private ComparisonContext context = null;
 
         private int width = 0;
         private int height = 0;
         private int xBlocks = 0;
         private int yBlocks = 0;
+        private int blockSize = ImageComparisonUtil.DEFAULT_BLOCK_SIZE;
+        private int maxCursorYBlocks = 0;
 
         private double errorTolerance = 0.0;
+        private int errorBudget = 0;
+        private OpacityMask opacityMask = null;
         private boolean sizesDiffer = false;
 
+        /*
+         * Blocks with differing pyramid signatures, or null if every block
+         * needs to be scanned for differing pixels.
+         */
+        private BlockBitmap pyramidBlocks = null;
+
+        /*
+         * Shifted content explaining some of the false blocks and the
+         * explained blocks, see
+         * Parameters.isScreenshotComparisonShiftDetection().
+         */
+        private ImageShift shift = null;
+        private BlockBitmap shiftedBlocks = null;
+
+        /*
+         * The sum of channel differences of each block containing a
+         * differing pixel, in row-major order, or null if block errors are
+         * not collected for a ComparisonResult.
+         */
+        private int[] blockErrors = null;
+        private CursorDetection cursorDetection = CursorDetection.NOT_CHECKED;
+
+        /*
+         * Fail-fast state. When failFast is set the comparison stops as soon
+         * as the result is known to be false, leaving falseBlocks
+         * incomplete.
+         */
+        private boolean failFast = false;
+        private boolean failFastCursorDetection = false;
+        private volatile boolean aborted = false;
+        private int failedBlockX = 0;
+        private int failedBlockMinY = 0;
+        private int failedBlockMaxY = 0;
+        private int failedBlockCount = 0;
+
+        /**
+         * Stops the comparison, if running, as soon as it checks the flag.
+         * The images are then considered to differ.
+         */
+        void abort() {
+            aborted = true;
+        }
+
+        /**
+         * @return true if the compared areas are of different size
+         */
+        boolean sizesDiffer() {
+            return sizesDiffer;
+        }
     }
 
     /**
      * Compare image [name] to image under /reference/. Images may differ in RGB
-     * hues 0.1% (default) per macroblock of 16x16
+     * hues 0.1% (default) per macroblock of 16x16 (default, see
+     * {@link Parameters#getScreenshotComparisonBlockSize()})
      *
      * @param screenshotImage
      *            Image of canvas (must have proper dimensions)
@@ -97,68 +180,546 @@ public class ImageComparison {
     public boolean imageEqualToReference(BufferedImage screenshotImage,
             String referenceFileId, double errorTolerance,
             Capabilities capabilities) throws IOException {
-        ImageFileUtil.createScreenshotDirectoriesIfNeeded();
+        return compareToReference(screenshotImage, null,
+                Collections.<Rectangle> emptyList(),
+                getReferenceImages(referenceFileId, capabilities),
+                errorTolerance, AllocationMeter.getAllocatedBytes(), false)
+                .isEqual();
+    }
 
-        List<String> referenceFileNames = ImageFileUtil
-                .getReferenceImageFileNames(referenceFileId + ".png",
-                        capabilities);
+    /**
+     * Compares a PNG encoded screenshot to image under /reference/ like
+     * {@link #imageEqualToReference(BufferedImage, String, double, Capabilities)}
+     * without decoding the images first.
+     * <p>
+     * The screenshot and the reference image that matched the previous time,
+     * or the first reference image, are decoded and compared one row of
+     * blocks at a time, so only a few rows of each image are in memory at
+     * once, and the comparison stops at the first row of blocks that
+     * differs. If that reference image does not match, the screenshot is
+     * decoded completely and compared to all reference images as usual, for
+     * cursor detection and for the error report. Images in formats that
+     * cannot be decoded row by row are compared as usual.
+     *
+     * @param screenshotPng
+     *            the screenshot as PNG
+     * @param referenceFileId
+     *            File id for this image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(byte[] screenshotPng,
+            String referenceFileId, double errorTolerance,
+            Capabilities capabilities) throws IOException {
+        return imageEqualToReference(screenshotPng,
+                getReferenceImages(referenceFileId, capabilities),
+                errorTolerance);
+    }
 
-        if (referenceFileNames.isEmpty()) {
-            // We require a reference image to continue
-            // Save the screenshot in the error directory.
-            ImageIO.write(
-                    screenshotImage,
-                    "png",
-                    ImageFileUtil.getErrorScreenshotFile(referenceFileId
-                            + ".png"));
-            logger.severe("No reference found for " + referenceFileId + " in "
-                    + ImageFileUtil.getScreenshotReferenceDirectory());
-            return false;
+    /**
+     * Compares a PNG encoded screenshot to the given reference images like
+     * {@link #imageEqualToReference(byte[], String, double, Capabilities)}.
+     * Reference images already decoded by a previous comparison are not read
+     * again.
+     *
+     * @param screenshotPng
+     *            the screenshot as PNG
+     * @param references
+     *            the reference images, see
+     *            {@link #getReferenceImages(String, Capabilities)}
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(byte[] screenshotPng,
+            ReferenceImages references, double errorTolerance)
+            throws IOException {
+        final long allocatedBytesAtStart = AllocationMeter.getAllocatedBytes();
+        final String referenceFileId = references.getReferenceFileId();
+        List<String> order = ReferenceCandidates.getCandidateOrder(
+                referenceFileId, references.getFileNames());
+        // Only the most likely match is streamed. Streaming the others too
+        // would compare every reference image twice when none matches, as
+        // the decoded screenshot is compared to all of them.
+        if (!order.isEmpty()) {
+            String referenceFileName = order.get(0);
+            if (new StreamedComparison(this, errorTolerance).imagesEqual(
+                    references, referenceFileName, screenshotPng)) {
+                ReferenceCandidates.setLastMatch(referenceFileId,
+                        referenceFileName);
+                references.setMatchedFileName(referenceFileName);
+                logAllocatedBytes(allocatedBytesAtStart);
+                return true;
+            }
         }
 
-        // This is used to make the final error HTML page based on main
-        // reference file only
-        ScreenShotFailureReporter failureReporter = null;
+        BufferedImage screenshotImage = ImageIO.read(new ByteArrayInputStream(
+                screenshotPng));
+        return compareToReference(screenshotImage, null,
+                Collections.<Rectangle> emptyList(), references,
+                errorTolerance, allocatedBytesAtStart, false).isEqual();
+    }
 
-        for (String referenceFileName : referenceFileNames) {
-            BufferedImage referenceImage;
-            referenceImage = ImageFileUtil
-                    .readReferenceImage(referenceFileName);
+    /**
+     * Compares image [name] to image under /reference/ like
+     * {@link #imageEqualToReference(BufferedImage, String, double, Capabilities)}
+     * and returns the details of the comparison.
+     *
+     * @param screenshotImage
+     *            Image of canvas (must have proper dimensions)
+     * @param referenceFileId
+     *            File id for this image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @return the result of the comparison
+     * @throws IOException
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            String referenceFileId, double errorTolerance,
+            Capabilities capabilities) throws IOException {
+        return compareToReference(screenshotImage, null, referenceFileId,
+                errorTolerance, capabilities);
+    }
 
-            failureReporter = compareImages(createParameters(referenceImage,
-                    screenshotImage, errorTolerance));
+    /**
+     * Compares an area of the screenshot to image under /reference/, e.g. an
+     * element in a screenshot of the whole page. The area is compared in
+     * place so the same screenshot can be used for comparing any number of
+     * elements without copying it.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare the
+     *            whole screenshot
+     * @param referenceFileId
+     *            File id for the reference image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @return the result of the comparison
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the area is not inside the screenshot
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            Rectangle screenshotArea, String referenceFileId,
+            double errorTolerance, Capabilities capabilities)
+            throws IOException {
+        return compareToReference(screenshotImage, screenshotArea,
+                Collections.<Rectangle> emptyList(), referenceFileId,
+                errorTolerance, capabilities);
+    }
 
-            if (failureReporter == null) {
-                return true;
-            }
+    /**
+     * Compares an area of the screenshot to image under /reference/ like
+     * {@link #compareToReference(BufferedImage, Rectangle, String, double, Capabilities)}
+     * , ignoring the given parts of the area. Ignored pixels are treated like
+     * transparent pixels of the reference image: they are never compared, and
+     * blocks that are completely ignored are skipped without reading their
+     * pixels.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare the
+     *            whole screenshot
+     * @param ignoredAreas
+     *            the areas not to compare, relative to the top left corner
+     *            of the compared area. Parts outside the compared area are
+     *            ignored.
+     * @param referenceFileId
+     *            File id for the reference image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @return the result of the comparison
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the area is not inside the screenshot
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            Rectangle screenshotArea, List<Rectangle> ignoredAreas,
+            String referenceFileId, double errorTolerance,
+            Capabilities capabilities) throws IOException {
+        final long allocatedBytesAtStart = AllocationMeter.getAllocatedBytes();
+        return compareToReference(screenshotImage, screenshotArea,
+                ignoredAreas, getReferenceImages(referenceFileId, capabilities),
+                errorTolerance, allocatedBytesAtStart, true);
+    }
+
+    /**
+     * Lists the reference images for the given reference id, so that they
+     * can be compared to any number of screenshots without listing and
+     * decoding them again. Creates the screenshot directories if needed.
+     *
+     * @param referenceFileId
+     *            File id for the reference image without .png extension
+     * @param capabilities
+     *            browser capabilities
+     * @return the reference images, each decoded when first compared to
+     */
+    public ReferenceImages getReferenceImages(String referenceFileId,
+            Capabilities capabilities) {
+        ImageFileUtil.createScreenshotDirectoriesIfNeeded();
+        return new ReferenceImages(referenceFileId,
+                ImageFileUtil.getReferenceImageFileNames(referenceFileId
+                        + ".png", capabilities));
+    }
+
+    /**
+     * Compares a screenshot to the given reference images like
+     * {@link #imageEqualToReference(BufferedImage, String, double, Capabilities)}
+     * .
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param references
+     *            the reference images, see
+     *            {@link #getReferenceImages(String, Capabilities)}
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(BufferedImage screenshotImage,
+            ReferenceImages references, double errorTolerance)
+            throws IOException {
+        return imageEqualToReference(screenshotImage,
+                Collections.<Rectangle> emptyList(), references,
+                errorTolerance);
+    }
+
+    /**
+     * Compares a screenshot to the given reference images like
+     * {@link #imageEqualToReference(BufferedImage, ReferenceImages, double)}
+     * , ignoring the given areas of the screenshot.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param ignoredAreas
+     *            the areas not to compare
+     * @param references
+     *            the reference images, see
+     *            {@link #getReferenceImages(String, Capabilities)}
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(BufferedImage screenshotImage,
+            List<Rectangle> ignoredAreas, ReferenceImages references,
+            double errorTolerance) throws IOException {
+        return compareToReference(screenshotImage, null, ignoredAreas,
+                references, errorTolerance,
+                AllocationMeter.getAllocatedBytes(), false).isEqual();
+    }
+
+    /**
+     * Compares an area of the screenshot to the given reference images like
+     * {@link #compareToReference(BufferedImage, Rectangle, List, String, double, Capabilities)}
+     * . Reference images already decoded by a previous comparison are not
+     * read again.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare the
+     *            whole screenshot
+     * @param ignoredAreas
+     *            the areas not to compare, relative to the top left corner
+     *            of the compared area
+     * @param references
+     *            the reference images, see
+     *            {@link #getReferenceImages(String, Capabilities)}
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @return the result of the comparison
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the area is not inside the screenshot
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            Rectangle screenshotArea, List<Rectangle> ignoredAreas,
+            ReferenceImages references, double errorTolerance)
+            throws IOException {
+        return compareToReference(screenshotImage, screenshotArea,
+                ignoredAreas, references, errorTolerance,
+                AllocationMeter.getAllocatedBytes(), true);
+    }
+
+    /**
+     * Compares the screenshot to the reference images.
+     *
+     * @param withBlockErrors
+     *            true to record the error of every block for the result,
+     *            false if only the outcome is used so that blocks can be
+     *            compared only as far as needed for the outcome
+     */
+    private ComparisonResult compareToReference(BufferedImage screenshotImage,
+            Rectangle screenshotArea, List<Rectangle> ignoredAreas,
+            ReferenceImages references, double errorTolerance,
+            long allocatedBytesAtStart, boolean withBlockErrors)
+            throws IOException {
+        final String referenceFileId = references.getReferenceFileId();
+        List<String> referenceFileNames = references.getFileNames();
+
+        if (referenceFileNames.isEmpty()) {
+            return referenceMissing(screenshotImage, screenshotArea,
+                    referenceFileId + ".png", referenceFileId,
+                    allocatedBytesAtStart);
         }
 
+        ReferenceCandidates candidates = new ReferenceCandidates(this,
+                references, screenshotImage, screenshotArea, ignoredAreas,
+                errorTolerance, withBlockErrors);
+        candidates.evaluate();
+        ScreenShotFailureReporter failureReporter = candidates
+                .getFailureReporter();
+        ComparisonResult result = candidates.getResult();
+
         // The command has failed because the captured image differs from
         // the reference image
+        long reportNanos = 0;
         if (failureReporter != null) {
+            long start = System.nanoTime();
             failureReporter.createErrorImageAndHTML(referenceFileId + ".png",
-                    screenshotImage);
+                    getErrorScreenshot(screenshotImage, screenshotArea));
+            reportNanos = System.nanoTime() - start;
         }
 
-        // The images differ
-        return false;
+        result.setTimings(candidates.getDecodeNanos(),
+                candidates.getCompareNanos(), reportNanos);
+        setAllocatedBytes(result, allocatedBytesAtStart);
+        return result;
     }
 
     public boolean imageEqualToReference(BufferedImage screenshotImage,
             BufferedImage referenceImage, String referenceFileName,
             double errorTolerance) {
+        return compare(screenshotImage, null, referenceImage, null,
+                referenceFileName, errorTolerance, false).isEqual();
+    }
+
+    /**
+     * Compares the screenshot to the given reference image like
+     * {@link #imageEqualToReference(BufferedImage, BufferedImage, String, double)}
+     * and returns the details of the comparison. If there is no reference
+     * image, the screenshot is stored in the error directory.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param referenceImage
+     *            the reference image or null if there is none
+     * @param referenceFileName
+     *            the file name of the reference image, used for the error
+     *            files
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @return the result of the comparison
+     * @throws IOException
+     *             if there is no reference image and the screenshot cannot
+     *             be stored
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            BufferedImage referenceImage, String referenceFileName,
+            double errorTolerance) throws IOException {
+        return compareToReference(screenshotImage, null, referenceImage, null,
+                referenceFileName, errorTolerance);
+    }
+
+    /**
+     * Compares an area of the screenshot to the given reference image or to
+     * an area of it. The areas are compared in place so the same screenshot
+     * can be used for comparing any number of elements without copying it.
+     * If the areas are of different size, the images are considered to
+     * differ and the common top left part is compared.
+     *
+     * @param screenshotImage
+     *            the screenshot
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare the
+     *            whole screenshot
+     * @param referenceImage
+     *            the reference image or null if there is none
+     * @param referenceArea
+     *            the area of the reference image to compare or null to
+     *            compare the whole reference image
+     * @param referenceFileName
+     *            the file name of the reference image, used for the error
+     *            files
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @return the result of the comparison
+     * @throws IOException
+     *             if there is no reference image and the screenshot cannot
+     *             be stored
+     * @throws IllegalArgumentException
+     *             if an area is not inside its image
+     */
+    public ComparisonResult compareToReference(BufferedImage screenshotImage,
+            Rectangle screenshotArea, BufferedImage referenceImage,
+            Rectangle referenceArea, String referenceFileName,
+            double errorTolerance) throws IOException {
+        if (referenceImage == null) {
+            ImageFileUtil.createScreenshotDirectoriesIfNeeded();
+            return referenceMissing(screenshotImage, screenshotArea,
+                    referenceFileName, referenceFileName,
+                    AllocationMeter.getAllocatedBytes());
+        }
+        return compare(screenshotImage, screenshotArea, referenceImage,
+                referenceArea, referenceFileName, errorTolerance, true);
+    }
+
+    private ComparisonResult compare(BufferedImage screenshotImage,
+            Rectangle screenshotArea, BufferedImage referenceImage,
+            Rectangle referenceArea, String referenceFileName,
+            double errorTolerance, boolean withBlockErrors) {
+        final long allocatedBytesAtStart = AllocationMeter.getAllocatedBytes();
         ImageFileUtil.createScreenshotDirectoriesIfNeeded();
 
+        long start = System.nanoTime();
         ComparisonParameters param = createParameters(referenceImage,
-                screenshotImage, errorTolerance);
-        ScreenShotFailureReporter failureReporter = compareImages(param);
+                referenceArea, screenshotImage, screenshotArea,
+                Collections.<Rectangle> emptyList(), errorTolerance);
+        if (withBlockErrors) {
+            collectBlockErrors(param);
+        }
+        ScreenShotFailureReporter failureReporter;
+        ComparisonResult result;
+        try {
+            failureReporter = compareImages(param);
+            result = createResult(param, failureReporter == null,
+                    referenceFileName);
+        } finally {
+            releaseParameters(param);
+        }
+        final long compareNanos = System.nanoTime() - start;
 
+        long reportNanos = 0;
         if (failureReporter != null) {
+            start = System.nanoTime();
             failureReporter.createErrorImageAndHTML(referenceFileName,
-                    screenshotImage);
-            return false;
+                    getErrorScreenshot(screenshotImage, screenshotArea));
+            reportNanos = System.nanoTime() - start;
         }
-        return true;
+        result.setTimings(0, compareNanos, reportNanos);
+        setAllocatedBytes(result, allocatedBytesAtStart);
+        return result;
+    }
+
+    /**
+     * Stores the screenshot in the error directory as there is no reference
+     * image to compare to.
+     */
+    private static ComparisonResult referenceMissing(
+            BufferedImage screenshotImage, Rectangle screenshotArea,
+            String errorFileName, String referenceName,
+            long allocatedBytesAtStart) throws IOException {
+        if (screenshotArea != null) {
+            checkArea(screenshotImage, screenshotArea);
+            screenshotImage = getArea(screenshotImage, screenshotArea);
+        }
+        // We require a reference image to continue
+        // Save the screenshot in the error directory.
+        ImageIO.write(screenshotImage, "png",
+                ImageFileUtil.getErrorScreenshotFile(errorFileName));
+        logger.severe("No reference found for " + referenceName + " in "
+                + ImageFileUtil.getScreenshotReferenceDirectory());
+        ComparisonResult result = ComparisonResult.missingReference(
+                screenshotImage.getWidth(), screenshotImage.getHeight());
+        setAllocatedBytes(result, allocatedBytesAtStart);
+        return result;
+    }
+
+    /**
+     * Returns the screenshot to write to the error files. An area of a
+     * screenshot is copied as the failed blocks are drawn on the image.
+     */
+    private static BufferedImage getErrorScreenshot(
+            BufferedImage screenshotImage, Rectangle screenshotArea) {
+        if (screenshotArea == null) {
+            return screenshotImage;
+        }
+        return ImageUtil.cloneImage(getArea(screenshotImage, screenshotArea));
+    }
+
+    /**
+     * Creates the result of a comparison. Must be called before the
+     * parameters are released as the collected data is copied from the
+     * comparison context.
+     */
+    static ComparisonResult createResult(
+            final ComparisonParameters params, boolean equal,
+            String referenceName) {
+        int[] blockErrors = null;
+        if (params.blockErrors != null) {
+            final int blocks = params.xBlocks * params.yBlocks;
+            for (int i = 0; i < blocks; i++) {
+                if (params.blockErrors[i] != 0) {
+                    blockErrors = Arrays.copyOf(params.blockErrors, blocks);
+                    break;
+                }
+            }
+        }
+        ComparisonResult result = new ComparisonResult(equal, referenceName,
+                params.sizesDiffer, params.width, params.height,
+                params.blockSize, params.errorTolerance,
+                params.falseBlocks.copy(), blockErrors);
+        result.setCursorDetection(params.cursorDetection);
+        result.setImageShift(params.shift);
+        return result;
+    }
+
+    private static void setAllocatedBytes(ComparisonResult result,
+            long allocatedBytesAtStart) {
+        result.setAllocatedBytes(logAllocatedBytes(allocatedBytesAtStart));
+    }
+
+    /**
+     * Prints the heap memory allocated by a comparison in debug mode. Called
+     * once when a comparison started by a public method ends.
+     *
+     * @return the bytes allocated since the start of the comparison or -1 if
+     *         allocations cannot be measured
+     */
+    private static long logAllocatedBytes(long allocatedBytesAtStart) {
+        if (!AllocationMeter.isSupported()) {
+            return -1;
+        }
+        long allocatedBytes = AllocationMeter.getAllocatedBytes()
+                - allocatedBytesAtStart;
+        if (Parameters.isDebug()) {
+            System.out.println("Comparison allocated " + allocatedBytes
+                    + " bytes");
+        }
+        return allocatedBytes;
+    }
+
+    /**
+     * Makes the comparison record the error of each block with differing
+     * pixels for a {@link ComparisonResult}.
+     */
+    static void collectBlockErrors(final ComparisonParameters params) {
+        params.blockErrors = params.context.getBlockErrors(params.xBlocks
+                * params.yBlocks);
     }
 
     /**
@@ -167,9 +728,13 @@ public class ImageComparison {
      *            a ComparisonParameters object. See {@link createParameters}.
      * @return
      */
-    private ScreenShotFailureReporter compareImages(
+    ScreenShotFailureReporter compareImages(
             final ComparisonParameters param) {
         boolean imagesEqual = compareImage(param);
+        if (param.aborted) {
+            // Another reference image matched, the outcome is not used
+            return makeFailureReporter(param);
+        }
         if (param.sizesDiffer) {
             // The command has failed because the dimensions of the captured
             // image do not match the reference image
@@ -201,9 +766,11 @@ public class ImageComparison {
         if (Parameters.isScreenshotComparisonCursorDetection()) {
             // Images are not equal, still check if the only difference
             // is a blinking cursor
-            Point possibleCursorPosition = getPossibleCursorPosition(param);
-            if (possibleCursorPosition != null) {
-                if (isCursorTheOnlyError(possibleCursorPosition, param)) {
+            param.cursorDetection = CursorDetection.REJECTED;
+            int possibleCursorBlock = getPossibleCursorBlock(param);
+            if (possibleCursorBlock != -1) {
+                if (isCursorTheOnlyError(possibleCursorBlock, param)) {
+                    param.cursorDetection = CursorDetection.CURSOR_ONLY;
                     if (Parameters.isDebug()) {
                         System.out
                                 .println("Screenshot matched reference after removing cursor");
@@ -217,6 +784,14 @@ public class ImageComparison {
             }
         }
 
+        if (Parameters.isScreenshotComparisonShiftDetection()) {
+            // Report blocks explained by moved content as one region
+            param.shift = findShift(param);
+            if (param.shift != null) {
+                logger.info(param.shift.toString());
+            }
+        }
+
         if (Parameters.isDebug()) {
             System.out.println("Screenshot did not match reference");
         }
@@ -227,21 +802,154 @@ public class ImageComparison {
 
     private ScreenShotFailureReporter makeFailureReporter(
             final ComparisonParameters param) {
-        return new ScreenShotFailureReporter(param.refImage, param.falseBlocks);
+        // The bitmap belongs to the comparison context, which is reused
+        BlockBitmap reportedBlocks = param.falseBlocks.copy();
+        if (param.shiftedBlocks != null) {
+            // Described by the shift instead of block by block
+            reportedBlocks.andNot(param.shiftedBlocks);
+        }
+        ScreenShotFailureReporter reporter = new ScreenShotFailureReporter(
+                getArea(param.refImage, param.refArea), reportedBlocks,
+                param.blockSize);
+        reporter.setImageShift(param.shift);
+        return reporter;
     }
 
+    /**
+     * Looks for content in the area of the false blocks that has moved
+     * vertically or horizontally. The offsets suggested by
+     * {@link ShiftDetector} are verified by comparing the false blocks to the
+     * reference at the offset, and the offset explaining the most blocks is
+     * used. The explained blocks are stored in {@code params.shiftedBlocks}
+     * and left out of the error report, but they still count as failed.
+     *
+     * @param params
+     *            a ComparisonParameters object. See {@link createParameters}.
+     * @return the shift or null if no moved content was found
+     */
+    private static ImageShift findShift(final ComparisonParameters params) {
+        Rectangle area = getFalseBlockArea(params.falseBlocks, params);
+        if (area == null) {
+            return null;
+        }
+        final int maxShift = Parameters.getScreenshotComparisonMaxShift();
+        final int dy = ShiftDetector.findVerticalShift(params.refPacked,
+                params.ssPacked, area, maxShift);
+        final int dx = ShiftDetector.findHorizontalShift(params.refPacked,
+                params.ssPacked, area, maxShift);
+
+        BlockBitmap explained = null;
+        int explainedCount = 0;
+        int shiftX = 0, shiftY = 0;
+        for (int[] offset : new int[][] { { 0, dy }, { dx, 0 } }) {
+            if (offset[0] == 0 && offset[1] == 0) {
+                continue;
+            }
+            BlockBitmap blocks = new BlockBitmap(params.xBlocks,
+                    params.yBlocks);
+            int count = 0;
+            int block = params.falseBlocks.nextSetBlock(0);
+            while (block != -1) {
+                final int blockX = block % params.xBlocks;
+                final int blockY = block / params.xBlocks;
+                if (!exceedsErrorBudgetShifted(blockX, blockY, offset[0],
+                        offset[1], params)) {
+                    blocks.set(blockX, blockY);
+                    count++;
+                }
+                block = params.falseBlocks.nextSetBlock(block + 1);
+            }
+            if (count > explainedCount) {
+                explained = blocks;
+                explainedCount = count;
+                shiftX = offset[0];
+                shiftY = offset[1];
+            }
+        }
+        if (explained == null) {
+            return null;
+        }
+
+        params.shiftedBlocks = explained;
+        return new ImageShift(shiftX, shiftY, getFalseBlockArea(explained,
+                params));
+    }
+
+    /**
+     * @return the bounding box, in pixels, of the marked blocks or null if no
+     *         block is marked
+     */
+    private static Rectangle getFalseBlockArea(BlockBitmap blocks,
+            final ComparisonParameters params) {
+        Rectangle area = null;
+        for (Rectangle region : blocks.getRegions()) {
+            Rectangle pixels = new Rectangle(region.x * params.blockSize,
+                    region.y * params.blockSize, region.width
+                            * params.blockSize, region.height
+                            * params.blockSize);
+            area = area == null ? pixels : area.union(pixels);
+        }
+        if (area != null) {
+            area = area.intersection(new Rectangle(params.width,
+                    params.height));
+        }
+        return area;
+    }
+
+    /**
+     * Compares two images without producing any error report. The comparison
+     * stops at the first block exceeding the error tolerance unless cursor
+     * detection is enabled and the failed blocks so far can still be caused
+     * by a cursor.
+     *
+     * @param referenceImage
+     *            the reference image
+     * @param screenshotImage
+     *            the image to compare to the reference
+     * @param errorTolerance
+     *            allowed RGB error for a macroblock (value range 0-1)
+     * @return true if the images are considered equal
+     */
     public boolean compareImages(BufferedImage referenceImage,
             BufferedImage screenshotImage, double errorTolerance) {
+        final long allocatedBytesAtStart = AllocationMeter.getAllocatedBytes();
         ComparisonParameters params = createParameters(referenceImage,
                 screenshotImage, errorTolerance);
+        try {
+            return imagesEqualFailFast(params);
+        } finally {
+            releaseParameters(params);
+            logAllocatedBytes(allocatedBytesAtStart);
+        }
+    }
+
+    /**
+     * Compares the images of the given parameters, stopping at the first
+     * block exceeding the error tolerance. Cursor detection is not done.
+     *
+     * @return true if no block exceeds the error tolerance
+     */
+    boolean compareImageFailFast(final ComparisonParameters params) {
+        params.failFast = true;
+        return compareImage(params);
+    }
+
+    boolean imagesEqualFailFast(final ComparisonParameters params) {
+        params.failFast = true;
+        params.failFastCursorDetection = Parameters
+                .isScreenshotComparisonCursorDetection();
 
         boolean imagesEqual = compareImage(params);
 
-        // Check for cursor.
-        if (!imagesEqual && Parameters.isScreenshotComparisonCursorDetection()) {
-            Point possibleCursorPosition = getPossibleCursorPosition(params);
-            if (possibleCursorPosition != null) {
-                if (isCursorTheOnlyError(possibleCursorPosition, params)) {
+        // Check for cursor. If the comparison was not aborted, all blocks have
+        // been compared and falseBlocks is complete.
+        if (!imagesEqual && !params.aborted
+                && params.failFastCursorDetection) {
+            params.cursorDetection = CursorDetection.REJECTED;
+            int possibleCursorBlock = getPossibleCursorBlock(params);
+            if (possibleCursorBlock != -1) {
+                if (isCursorTheOnlyError(possibleCursorBlock, params)) {
+                    params.cursorDetection = CursorDetection.CURSOR_ONLY;
                     return true;
                 }
             }
@@ -249,74 +957,448 @@ public class ImageComparison {
         return imagesEqual;
     }
 
+    /**
+     * Records a failed block in fail-fast mode and aborts the comparison if
+     * the failed blocks can no longer be explained by a cursor, using the
+     * same rules as {@link #getPossibleCursorBlock(ComparisonParameters)}.
+     */
+    private static void recordFailedBlock(final ComparisonParameters params,
+            int blockX, int blockY) {
+        if (!params.failFastCursorDetection) {
+            params.aborted = true;
+            return;
+        }
+        synchronized (params) {
+            if (params.failedBlockCount++ == 0) {
+                params.failedBlockX = blockX;
+                params.failedBlockMinY = blockY;
+                params.failedBlockMaxY = blockY;
+            } else {
+                params.failedBlockMinY = Math.min(params.failedBlockMinY,
+                        blockY);
+                params.failedBlockMaxY = Math.max(params.failedBlockMaxY,
+                        blockY);
+                if (blockX != params.failedBlockX
+                        || params.failedBlockMaxY
+                                - params.failedBlockMinY > params.maxCursorYBlocks - 1) {
+                    params.aborted = true;
+                }
+            }
+        }
+    }
+
     private boolean compareImage(final ComparisonParameters params) {
+        if (Parameters.isScreenshotComparisonPyramid()
+                && findPyramidBlocks(params) == 0) {
+            return true;
+        }
+        if (Parameters.isScreenshotComparisonParallel()
+                && params.yBlocks > 1
+                && (long) params.width * params.height >= Parameters
+                        .getScreenshotComparisonParallelThreshold()) {
+            return getComparisonPool().invoke(
+                    new StripeComparison(params, 0, params.yBlocks,
+                            getStripeHeight(params.yBlocks)));
+        }
+        return compareBlockRows(params, 0, params.yBlocks);
+    }
+
+    /**
+     * Compares the pyramids of the images and stores the blocks with
+     * differing signatures in {@code params.pyramidBlocks}. The pyramid of
+     * the reference image is cached.
+     *
+     * @return the number of blocks with differing signatures
+     */
+    private static int findPyramidBlocks(final ComparisonParameters params) {
+        // Only pyramids of whole reference images are cached
+        ImagePyramid refPyramid = params.wholeReference ? referencePyramids
+                .get(params.refImage) : null;
+        if (refPyramid == null
+                || refPyramid.getBlockSize() != params.blockSize
+                || refPyramid.getWidth() != params.width
+                || refPyramid.getHeight() != params.height) {
+            refPyramid = ImagePyramid.of(params.refPacked, params.blockSize);
+            if (params.wholeReference) {
+                referencePyramids.put(params.refImage, refPyramid);
+            }
+        }
+        ImagePyramid ssPyramid = ImagePyramid.of(params.ssPacked,
+                params.blockSize);
+        params.pyramidBlocks = params.context.getPyramidBlocks(params.xBlocks,
+                params.yBlocks);
+        return refPyramid.findDifferingBlocks(ssPyramid,
+                params.pyramidBlocks);
+    }
+
+    /**
+     * Compares the block rows from {@code firstBlockRow} (inclusive) to
+     * {@code lastBlockRow} (exclusive).
+     *
+     * @return true if no block in the given rows exceeds the error tolerance
+     */
+    private static boolean compareBlockRows(final ComparisonParameters params,
+            int firstBlockRow, int lastBlockRow) {
         boolean result = true;
-        final int imageWidth = params.width;
-        final int imageHeight = params.height;
-
-        // Iterate through image in 16x16 blocks
-        for (int y = 0; y < imageHeight; y += BLOCK_SIZE) {
-            for (int x = 0; x < imageWidth; x += BLOCK_SIZE) {
-                if (blocksDiffer(x, y, params)) {
-                    params.falseBlocks[x >>> 4][y >>> 4] = true;
-                    result = false;
-                }
+        final boolean[] differingBlocks = ComparisonContext
+                .getRowScratch(params.xBlocks);
+
+        // Iterate through image in rows of blocks
+        for (int blockY = firstBlockRow; blockY < lastBlockRow; blockY++) {
+            if (params.aborted) {
+                return false;
+            }
+            if (!compareBlockRow(blockY, params, differingBlocks)) {
+                result = false;
             }
         }
         return result;
     }
 
-    private boolean blocksDiffer(int x, int y, final ComparisonParameters params) {
-        final int[] refBlock = getBlock(params.refProperties, x, y,
-                params.refBlock, params.sampleBuffer);
-        final int[] ssBlock = getBlock(params.ssProperties, x, y,
-                params.ssBlock, params.sampleBuffer);
+    /**
+     * Compares a horizontal stripe of block rows, splitting it further while
+     * it is higher than the stripe height. Each stripe uses the scratch
+     * buffer of the thread it runs in and marks only its own rows in the
+     * shared {@code params.falseBlocks}, so no synchronization is needed.
+     */
+    private static class StripeComparison extends RecursiveTask<Boolean> {
+        private final ComparisonParameters params;
+        private final int firstBlockRow;
+        private final int lastBlockRow;
+        private final int stripeHeight;
+
+        StripeComparison(ComparisonParameters params, int firstBlockRow,
+                int lastBlockRow, int stripeHeight) {
+            this.params = params;
+            this.firstBlockRow = firstBlockRow;
+            this.lastBlockRow = lastBlockRow;
+            this.stripeHeight = stripeHeight;
+        }
 
-        for (int i = 0; i < (BLOCK_SIZE * BLOCK_SIZE); ++i) {
-            if (refBlock[i] != ssBlock[i]) {
-                return rgbCompare(refBlock, ssBlock) > params.errorTolerance;
+        @Override
+        protected Boolean compute() {
+            if (lastBlockRow - firstBlockRow <= stripeHeight) {
+                return compareBlockRows(params, firstBlockRow, lastBlockRow);
             }
+            int middle = (firstBlockRow + lastBlockRow) >>> 1;
+            StripeComparison top = new StripeComparison(params,
+                    firstBlockRow, middle, stripeHeight);
+            StripeComparison bottom = new StripeComparison(params, middle,
+                    lastBlockRow, stripeHeight);
+            top.fork();
+            boolean bottomEqual = bottom.compute();
+            return top.join() && bottomEqual;
         }
+    }
 
-        return false;
+    /**
+     * Returns the number of block rows compared as one unit of work. A few
+     * stripes per thread are used to even out differences in the amount of
+     * work per stripe.
+     */
+    private static int getStripeHeight(int yBlocks) {
+        int stripes = Math.max(1,
+                Parameters.getScreenshotComparisonParallelism()) * 4;
+        return Math.max(1, (yBlocks + stripes - 1) / stripes);
     }
 
     /**
-     * Calculates the difference between pixels in the block.
-     *
-     * @param referenceBlock
-     * @param screenshotBlock
-     * @return Difference %
+     * Returns the shared pool used for parallel comparison, recreating it if
+     * {@link Parameters#getScreenshotComparisonParallelism()} has changed.
      */
-    private double rgbCompare(final int[] referenceBlock,
-            final int[] screenshotBlock) {
-        int sum = 0;
-        assert (referenceBlock.length == screenshotBlock.length);
+    private static synchronized ForkJoinPool getComparisonPool() {
+        int parallelism = Math.max(1,
+                Parameters.getScreenshotComparisonParallelism());
+        if (comparisonPool == null
+                || comparisonPool.getParallelism() != parallelism) {
+            if (comparisonPool != null) {
+                comparisonPool.shutdown();
+            }
+            comparisonPool = new ForkJoinPool(parallelism);
+        }
+        return comparisonPool;
+    }
 
-        // Build sums from all available colors Red, Green and Blue
-        for (int i = 0, l = referenceBlock.length; i < l; i++) {
-            final int targetPixel = referenceBlock[i];
+    /**
+     * Compares one row of blocks scanline by scanline directly in the packed
+     * pixel data and marks the blocks exceeding the error tolerance in
+     * {@code params.falseBlocks}.
+     *
+     * @param blockY
+     *            the block row to compare
+     * @param params
+     *            a ComparisonParameters object. See {@link createParameters}.
+     * @param differingBlocks
+     *            scratch buffer with room for one flag per block in the row
+     * @return true if no block in the row exceeds the error tolerance
+     */
+    private static boolean compareBlockRow(int blockY,
+            final ComparisonParameters params,
+            final boolean[] differingBlocks) {
+        final int[] refPixels = params.refPacked.getPixels();
+        final int[] ssPixels = params.ssPacked.getPixels();
+        final int refStride = params.refPacked.getScanlineStride();
+        final int ssStride = params.ssPacked.getScanlineStride();
+        final int width = params.width;
+        final int xBlocks = params.xBlocks;
+        final int blockSize = params.blockSize;
+        final int y0 = blockY * blockSize;
+        final int rows = Math.min(blockSize, params.height - y0);
+
+        // Find the blocks containing at least one differing pixel. Blocks
+        // with differing pyramid signatures always contain one, all other
+        // blocks are then considered equal. Fully masked blocks are never
+        // read.
+        final OpacityMask mask = params.opacityMask;
+        int undecided = xBlocks;
+        if (params.pyramidBlocks != null) {
+            for (int blockX = 0; blockX < xBlocks; blockX++) {
+                differingBlocks[blockX] = params.pyramidBlocks.get(blockX,
+                        blockY)
+                        && (mask == null || mask.getState(blockX, blockY) != OpacityMask.MASKED);
+                if (differingBlocks[blockX]) {
+                    undecided--;
+                }
+            }
+        } else {
+            for (int blockX = 0; blockX < xBlocks; blockX++) {
+                differingBlocks[blockX] = false;
+                if (mask != null
+                        && mask.getState(blockX, blockY) == OpacityMask.MASKED) {
+                    undecided--;
+                }
+            }
+            for (int j = 0; j < rows && undecided > 0; j++) {
+                final int refRow = params.refPacked.getOffset()
+                        + (y0 + j) * refStride;
+                final int ssRow = params.ssPacked.getOffset()
+                        + (y0 + j) * ssStride;
+                for (int blockX = 0; blockX < xBlocks; blockX++) {
+                    if (differingBlocks[blockX]
+                            || (mask != null && mask.getState(blockX, blockY) == OpacityMask.MASKED)) {
+                        continue;
+                    }
+                    final int end = Math.min(blockX * blockSize + blockSize,
+                            width);
+                    for (int x = blockX * blockSize; x < end; x++) {
+                        if (refPixels[refRow + x] != ssPixels[ssRow + x]) {
+                            differingBlocks[blockX] = true;
+                            undecided--;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
 
-            if ((targetPixel >>> 24) < 255) {
+        if (undecided == xBlocks) {
+            return true;
+        }
 
-                // Only completely opaque pixels are considered. Pixels with
-                // alpha values below 255 (== fully opaque) are considered
-                // masked and differences in these pixels won't be reported.
+        boolean result = true;
+        for (int blockX = 0; blockX < xBlocks; blockX++) {
+            if (!differingBlocks[blockX]) {
                 continue;
             }
+            final boolean exceeds;
+            if (params.blockErrors != null) {
+                final int error = getBlockError(blockX, blockY, params,
+                        Integer.MAX_VALUE);
+                params.blockErrors[blockY * xBlocks + blockX] = error;
+                exceeds = error > params.errorBudget;
+            } else {
+                exceeds = exceedsErrorBudget(blockX, blockY, params);
+            }
+            if (exceeds) {
+                params.falseBlocks.set(blockX, blockY);
+                result = false;
+                if (params.failFast) {
+                    recordFailedBlock(params, blockX, blockY);
+                    if (params.aborted) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return result;
+    }
 
-            final int testPixel = screenshotBlock[i];
+    /**
+     * Calculates the difference between pixels in the given block and checks
+     * if it exceeds {@code params.errorBudget}. Blocks at the right and bottom
+     * edges are treated as if they were padded with masked pixels up to the
+     * full block size.
+     *
+     * @param blockX
+     *            The x coordinate of the block (in blocks)
+     * @param blockY
+     *            The y coordinate of the block (in blocks)
+     * @param params
+     *            a ComparisonParameters object. See {@link createParameters}.
+     * @return true if the difference exceeds the error tolerance
+     */
+    private static boolean exceedsErrorBudget(int blockX, int blockY,
+            final ComparisonParameters params) {
+        return getBlockError(blockX, blockY, params,
+                params.errorBudget) > params.errorBudget;
+    }
 
-            sum += abs(((targetPixel & 0xff0000) >> 16)
-                    - ((testPixel & 0xff0000) >> 16));
+    /**
+     * Calculates the sum of the absolute differences of the red, green and
+     * blue channels of the opaque pixels in the given block. The sum is
+     * accumulated row by row and the calculation stops as soon as it exceeds
+     * the given limit.
+     *
+     * @param blockX
+     *            The x coordinate of the block (in blocks)
+     * @param blockY
+     *            The y coordinate of the block (in blocks)
+     * @param params
+     *            a ComparisonParameters object. See {@link createParameters}.
+     * @param limit
+     *            the sum after which the calculation can stop
+     * @return the sum, or a partial sum greater than the limit
+     */
+    private static int getBlockError(int blockX, int blockY,
+            final ComparisonParameters params, int limit) {
+        final byte state = params.opacityMask == null ? OpacityMask.OPAQUE
+                : params.opacityMask.getState(blockX, blockY);
+        if (state == OpacityMask.MASKED) {
+            return 0;
+        }
+
+        final int[] refPixels = params.refPacked.getPixels();
+        final int[] ssPixels = params.ssPacked.getPixels();
+        final int refStride = params.refPacked.getScanlineStride();
+        final int ssStride = params.ssPacked.getScanlineStride();
+        final int blockSize = params.blockSize;
+        final int x = blockX * blockSize;
+        final int y = blockY * blockSize;
+        final int width = Math.min(blockSize, params.width - x);
+        final int height = Math.min(blockSize, params.height - y);
+        int sum = 0;
 
-            sum += abs(((targetPixel & 0xff00) >> 8)
-                    - ((testPixel & 0xff00) >> 8));
+        // Build sums from all available colors Red, Green and Blue
+        for (int j = 0; j < height; j++) {
+            int refIndex = params.refPacked.getOffset() + (y + j) * refStride
+                    + x;
+            int ssIndex = params.ssPacked.getOffset() + (y + j) * ssStride + x;
+            if (state == OpacityMask.OPAQUE) {
+                for (int i = 0; i < width; i++) {
+                    sum += channelDifference(refPixels[refIndex++],
+                            ssPixels[ssIndex++]);
+                }
+            } else {
+                // Differences in masked (not completely opaque) pixels are
+                // not counted
+                final long opaque = params.opacityMask.getRowMask(blockX,
+                        blockY, j);
+                for (int i = 0; i < width; i++) {
+                    sum += channelDifference(refPixels[refIndex++],
+                            ssPixels[ssIndex++])
+                            & -(int) ((opaque >>> i) & 1);
+                }
+            }
+            if (sum > limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Checks if the given screenshot block differs from the reference pixels
+     * moved by the given offset, i.e. compares screenshot pixel (x,y) to
+     * reference pixel (x-dx,y-dy). Blocks whose reference pixels would be
+     * outside the reference image always differ.
+     *
+     * @return true if the difference exceeds the error tolerance
+     */
+    private static boolean exceedsErrorBudgetShifted(int blockX, int blockY,
+            int dx, int dy, final ComparisonParameters params) {
+        final int blockSize = params.blockSize;
+        final int x = blockX * blockSize;
+        final int y = blockY * blockSize;
+        final int width = Math.min(blockSize, params.width - x);
+        final int height = Math.min(blockSize, params.height - y);
+        if (x - dx < 0 || y - dy < 0 || x - dx + width > params.width
+                || y - dy + height > params.height) {
+            return true;
+        }
 
-            sum += abs((targetPixel & 0xff) - (testPixel & 0xff));
+        final int[] refPixels = params.refPacked.getPixels();
+        final int[] ssPixels = params.ssPacked.getPixels();
+        final int refStride = params.refPacked.getScanlineStride();
+        final int ssStride = params.ssPacked.getScanlineStride();
+        final boolean masked = params.opacityMask != null;
+        final int budget = params.errorBudget;
+        int sum = 0;
+        for (int j = 0; j < height; j++) {
+            int refIndex = params.refPacked.getOffset() + (y + j - dy)
+                    * refStride + x - dx;
+            int ssIndex = params.ssPacked.getOffset() + (y + j) * ssStride + x;
+            for (int i = 0; i < width; i++) {
+                final int refPixel = refPixels[refIndex++];
+                final int ssPixel = ssPixels[ssIndex++];
+                if (masked
+                        && !params.opacityMask.isCompared(x + i - dx, y + j
+                                - dy)) {
+                    continue;
+                }
+                sum += channelDifference(refPixel, ssPixel);
+            }
+            if (sum > budget) {
+                return true;
+            }
         }
+        return sum > budget;
+    }
 
-        return sum / ((double) referenceBlock.length * 255 * 3);
+    /**
+     * @return the sum of the absolute differences of the red, green and blue
+     *         channels of the given pixels
+     */
+    private static int channelDifference(int targetPixel, int testPixel) {
+        return abs(((targetPixel & 0xff0000) >> 16)
+                - ((testPixel & 0xff0000) >> 16))
+                + abs(((targetPixel & 0xff00) >> 8)
+                        - ((testPixel & 0xff00) >> 8))
+                + abs((targetPixel & 0xff) - (testPixel & 0xff));
+    }
+
+    /**
+     * Converts an error tolerance into the largest sum of channel differences
+     * a block of the given size may have. A block differs if and only if its
+     * sum of channel differences is greater than the returned budget, which
+     * gives exactly the same result as comparing
+     * {@code sum / (pixels * 255 * 3)} to the tolerance.
+     *
+     * @param tolerance
+     *            the error tolerance (0-1)
+     * @param blockPixels
+     *            the number of pixels in a block
+     * @return the error budget for a block
+     */
+    static int getErrorBudget(double tolerance, int blockPixels) {
+        final double max = (double) blockPixels * 255 * 3;
+        if (Double.isNaN(tolerance)) {
+            // Nothing is ever greater than NaN
+            return Integer.MAX_VALUE;
+        }
+        if (tolerance < 0) {
+            return -1;
+        }
+        if (tolerance >= 1) {
+            return (int) max;
+        }
+        long budget = (long) Math.floor(tolerance * max);
+        while (budget >= 0 && budget / max > tolerance) {
+            budget--;
+        }
+        while ((budget + 1) / max <= tolerance) {
+            budget++;
+        }
+        return (int) budget;
     }
 
     /**
@@ -329,122 +1411,102 @@ public class ImageComparison {
      * @param params
      *            a ComparisonParameters object. See {@link createParameters}.
      *
-     * @return A Point referring to the x and y coordinates in the image where
-     *         the cursor might be (actually might be inside a 16x32 block
-     *         starting from that point)
+     * @return The index ({@code blockY * xBlocks + blockX}) of the block
+     *         where the cursor might be (actually might be inside a 16x48
+     *         area starting from that block), or -1 if the failure cannot be
+     *         caused by a cursor
      */
-    private static Point getPossibleCursorPosition(
+    private static int getPossibleCursorBlock(
             final ComparisonParameters params) {
-        int firstErrorBlockX = 0;
-        int firstErrorBlockY = 0;
-        boolean errorFound = false;
-
         final int xBlocks = params.xBlocks;
-        final int yBlocks = params.yBlocks;
-        final boolean[][] blocksWithErrors = params.falseBlocks;
+        final BlockBitmap blocksWithErrors = params.falseBlocks;
 
         // Look for 1-2 blocks with errors. If and only if the blocks are
         // vertically adjacent to each other we might have a cursor problem.
         // This is the only case we are looking for.
 
-        for (int y = 0; y < yBlocks; y++) {
-            for (int x = 0; x < xBlocks; x++) {
-                if (blocksWithErrors[x][y]) {
-                    if (errorFound) {
-
-                        // This is the second erroneous block we have found
-                        if (x != firstErrorBlockX) {
-                            // This error is not below the first
-                            return null;
-                        }
-                        if ((y - firstErrorBlockY) > (MAX_CURSOR_Y_BLOCKS - 1)) {
-                            // Cursor is accepted for 1-3 blocks above each
-                            // other (we are moving from top down).
-                            return null;
-                        }
-
-                        // This is directly below the first so it is OK
-
-                    } else {
-                        // This is the first erroneous block we have found
-                        firstErrorBlockX = x;
-                        firstErrorBlockY = y;
-                        errorFound = true;
-                    }
-                }
+        final int first = blocksWithErrors.nextSetBlock(0);
+        if (first == -1) {
+            return -1;
+        }
+        final int firstErrorBlockX = first % xBlocks;
+        final int firstErrorBlockY = first / xBlocks;
+        int block = blocksWithErrors.nextSetBlock(first + 1);
+        while (block != -1) {
+            if (block % xBlocks != firstErrorBlockX) {
+                // This error is not below the first
+                return -1;
+            }
+            if ((block / xBlocks - firstErrorBlockY) > (params.maxCursorYBlocks - 1)) {
+                // Cursor is accepted for 1-3 blocks above each other (we are
+                // moving from top down).
+                return -1;
             }
+            // This is directly below the first so it is OK
+            block = blocksWithErrors.nextSetBlock(block + 1);
         }
 
-        Point value = null;
-
-        if (errorFound) {
-            // Return value is the pixel coordinates for the first block
-            value = new Point(firstErrorBlockX << 4, firstErrorBlockY << 4);
-        }
-        return value;
+        // Return value is the index of the first block
+        return first;
     }
 
     /**
-     * Check if failure is because of a blinking text cursor.
+     * Check if failure is because of a blinking text cursor. The check is done
+     * directly on the packed pixels: the blocks around the cursor are
+     * re-compared as if the cursor pixels of the screenshot had been copied
+     * from the reference image, so no image data is copied.
      *
-     * @param possibleCursorPosition
-     *            The position in the image where a cursor possibly can be found
-     *            (pixel coordinates of the top left corner of a block)
+     * @param possibleCursorBlock
+     *            The block where a cursor possibly can be found, see
+     *            {@link #getPossibleCursorBlock(ComparisonParameters)}
      * @param params
      *            a ComparisonParameters object. See {@link createParameters}.
      * @return true If cursor (vertical line of at least 5 pixels if not at the
      *         top or bottom) is the only difference between the images.
      */
-    private boolean isCursorTheOnlyError(Point possibleCursorPosition,
+    private static boolean isCursorTheOnlyError(int possibleCursorBlock,
             final ComparisonParameters params) {
-        int x = possibleCursorPosition.x;
-        int y = possibleCursorPosition.y;
+        final int blockSize = params.blockSize;
+        int x = (possibleCursorBlock % params.xBlocks) * blockSize;
+        int y = (possibleCursorBlock / params.xBlocks) * blockSize;
+        final int maxHeight = params.maxCursorYBlocks * blockSize;
 
         final int width, height;
-        if (params.width <= x + BLOCK_SIZE) {
+        if (params.width <= x + blockSize) {
             width = params.width - x;
         } else {
-            width = BLOCK_SIZE;
+            width = blockSize;
         }
 
-        if (params.height <= y + MAX_CURSOR_Y_BLOCKS * BLOCK_SIZE) {
+        if (params.height <= y + maxHeight) {
             height = params.height - y;
         } else {
-            height = MAX_CURSOR_Y_BLOCKS * BLOCK_SIZE;
+            height = maxHeight;
         }
 
         if (Parameters.isDebug()) {
             System.out.println("Looking for cursor starting from " + x + ","
                     + y + " using width=" + width + " and height=" + height);
         }
-        // getBlock writes the result into the int[] sample parameter, in
-        // this case params.refBlock and params.ssBlock. params.sampleBuffer
-        // is re-used between calls, and is used for temporary data storage.
 
-        final int[] refBlock = params.refBlock;
-        final int[] ssBlock = params.ssBlock;
-        final int[] sampleBuffer = params.sampleBuffer;
-        final ImageProperties refProperties = params.refProperties;
-        final ImageProperties ssProperties = params.ssProperties;
+        final PackedImage ref = params.refPacked;
+        final PackedImage ss = params.ssPacked;
 
-        getBlock(refProperties, x, y, refBlock, sampleBuffer);
-        getBlock(ssProperties, x, y, ssBlock, sampleBuffer);
-
-        // Find first different pixel in the block of possibleCursorPosition
+        // Find first different pixel in the block of possibleCursorBlock
         int cursorX = -1;
         int cursorStartY = -1;
-        findCursor: for (int j = 0, l = (height > BLOCK_SIZE ? BLOCK_SIZE
+        findCursor: for (int j = 0, l = (height > blockSize ? blockSize
                 : height); j < l; j++) {
             for (int i = 0; i < width; i++) {
 
                 // If found differing pixel
-                if (isCursorPixel(params.refBlock[i + j * width],
-                        params.ssBlock[i + j * width])) {
+                if (isCursorPixel(ref.getRGB(x + i, y + j),
+                        ss.getRGB(x + i, y + j))) {
 
                     // Workaround to ignore vertical lines in certain tests
                     if (j < l - 1
-                            && !isCursorPixel(refBlock[i + (j + 1) * width],
-                                    ssBlock[i + (j + 1) * width])) {
+                            && !isCursorPixel(ref.getRGB(x + i, y + j + 1),
+                                    ss.getRGB(x + i, y + j + 1))) {
                         continue;
                     }
 
@@ -467,27 +1529,14 @@ public class ImageComparison {
             return false;
         }
 
-        // Find the end of the cursor
+        // Find the end of the cursor. Start from what we already know is a
+        // cursor pixel.
         int cursorEndY = cursorStartY;
-        // Start from what we already know is a cursor pixel because that is certainly inside the current block
-        int idx = cursorX + (cursorEndY) * width; 
-        int diff = 0;
         while (cursorEndY < height - 1
-                && cursorEndY < MAX_CURSOR_Y_BLOCKS * BLOCK_SIZE
-                && isCursorPixel(params.refBlock[idx], params.ssBlock[idx])) {
-
-            if (++cursorEndY == BLOCK_SIZE) {
-                // We need to get the next block and adjust our index by the
-                // size of previous block
-                params.refBlock = getBlock(refProperties, x, y + BLOCK_SIZE,
-                        refBlock, sampleBuffer);
-                params.ssBlock = getBlock(ssProperties, x, y + BLOCK_SIZE,
-                        ssBlock, sampleBuffer);
-
-                diff = width * BLOCK_SIZE;
-            }
-
-            idx = cursorX + (cursorEndY) * width - diff;
+                && cursorEndY < maxHeight
+                && isCursorPixel(ref.getRGB(x + cursorX, y + cursorEndY),
+                        ss.getRGB(x + cursorX, y + cursorEndY))) {
+            cursorEndY++;
         }
 
         // Only accept as cursor if at least 5 pixels or at top or bottom of
@@ -505,45 +1554,52 @@ public class ImageComparison {
             System.out.println("Cursor is at " + cursorX + "," + cursorStartY
                     + "-" + cursorEndY);
         }
-        // Copy pixels from reference over the possible cursor, then
-        // re-compare blocks. Pixels at cursor position are always copied
-        // from the reference image regardless of which of the images has
-        // the cursor.
-
-        // Get width x height sub-images to compare
-        final BufferedImage referenceCopy = params.refImage.getSubimage(x, y,
-                width, height);
-
-        // Clone the subImage of the screenshot to avoid accidentally
-        // modifying the original screenshot.
-        final BufferedImage screenshotCopy = ImageUtil
-                .cloneImage(params.ssImage.getSubimage(x, y, width, height));
 
-        // Copy pixels for cursor position from reference to screenshot
-        for (int j = cursorStartY; j <= cursorEndY; ++j) {
-            int referenceRgb = referenceCopy.getRGB(cursorX, j);
-            screenshotCopy.setRGB(cursorX, j, referenceRgb);
+        // Re-compare the blocks around the cursor. Pixels at the cursor
+        // position are treated as if copied from the reference image
+        // regardless of which of the images has the cursor, i.e. their
+        // difference is subtracted from the block error.
+        final int blockX = x / blockSize;
+        final int firstBlockY = y / blockSize;
+        final int lastBlockY = Math.min(params.yBlocks, firstBlockY
+                + params.maxCursorYBlocks);
+        for (int blockY = firstBlockY; blockY < lastBlockY; blockY++) {
+            int error = getBlockError(blockX, blockY, params,
+                    Integer.MAX_VALUE);
+            final int firstRow = Math.max(y + cursorStartY, blockY
+                    * blockSize);
+            final int lastRow = Math.min(y + cursorEndY, blockY * blockSize
+                    + blockSize - 1);
+            for (int row = firstRow; row <= lastRow; row++) {
+                final int refPixel = ref.getRGB(x + cursorX, row);
+                if (params.opacityMask == null
+                        || params.opacityMask.isCompared(x + cursorX, row)) {
+                    error -= channelDifference(refPixel,
+                            ss.getRGB(x + cursorX, row));
+                }
+            }
+            if (error > params.errorBudget) {
+                return false;
+            }
         }
-
-        // Compare one or two blocks of reference with modified screenshot
-        return compareImage(createParameters(referenceCopy, screenshotCopy,
-                params.errorTolerance));
-
+        return true;
     }
 
     /**
      * Luminance based comparison of a pixel in two images for cursor detection.
+     * The luminance is calculated in integers as 1000 times
+     * {@link ImageUtil#getLuminance(int)}.
      *
      * @param pixel1
      * @param pixel2
      * @return
      */
-    private final boolean isCursorPixel(int pixel1, int pixel2) {
-        double lum1 = getLuminance(pixel1);
-        double lum2 = getLuminance(pixel2);
+    private static boolean isCursorPixel(int pixel1, int pixel2) {
+        int lum1 = getLuminance1000(pixel1);
+        int lum2 = getLuminance1000(pixel2);
 
-        int blackMaxLuminance = 80;
-        int whiteMinLuminance = 150;
+        int blackMaxLuminance = 80000;
+        int whiteMinLuminance = 150000;
         // Cursor must be dark and the other pixel bright enough for
         // contrast
         boolean value = (lum1 < blackMaxLuminance && lum2 > whiteMinLuminance)
@@ -552,6 +1608,38 @@ public class ImageComparison {
         return value;
     }
 
+    private static int getLuminance1000(int rgb) {
+        return 299 * ((rgb >> 16) & 0xff) + 587 * ((rgb >> 8) & 0xff) + 114
+                * (rgb & 0xff);
+    }
+
+    /**
+     * Returns the block size to use for comparing images of the given size.
+     * If adaptive block size is enabled, larger blocks are used for large
+     * screen shots and smaller blocks for small element screen shots.
+     *
+     * @param width
+     *            the width of the compared area
+     * @param height
+     *            the height of the compared area
+     * @return the block size in pixels
+     * @see Parameters#isScreenshotComparisonAdaptiveBlockSize()
+     */
+    static int getBlockSize(int width, int height) {
+        if (!Parameters.isScreenshotComparisonAdaptiveBlockSize()) {
+            return Parameters.getScreenshotComparisonBlockSize();
+        }
+        long pixels = (long) width * height;
+        if (pixels >= 2560L * 1440L) {
+            return 64;
+        } else if (pixels >= 1920L * 1080L) {
+            return 32;
+        } else if (width <= 256 && height <= 256) {
+            return 8;
+        }
+        return ImageComparisonUtil.DEFAULT_BLOCK_SIZE;
+    }
+
     /**
      * Create a parameter descriptor object containing all relevant information
      * and temporary data buffers for a given pair of reference and screenshot
@@ -571,40 +1659,184 @@ public class ImageComparison {
     private static final ComparisonParameters createParameters(
             final BufferedImage reference, final BufferedImage screenshot,
             final double tolerance) {
+        return createParameters(reference, null, screenshot, null,
+                Collections.<Rectangle> emptyList(), tolerance);
+    }
+
+    /**
+     * Create a parameter descriptor object for comparing an area of the
+     * screenshot to an area of the reference image. The areas are compared
+     * in place, without copying the images.
+     *
+     * @param reference
+     *            a BufferedImage
+     * @param referenceArea
+     *            the area of the reference image to compare or null to
+     *            compare the whole image
+     * @param screenshot
+     *            a BufferedImage
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare
+     *            the whole image
+     * @param ignoredAreas
+     *            areas not to compare, relative to the compared areas
+     * @param tolerance
+     *            error tolerance value
+     * @return a ComparisonParameters descriptor object
+     */
+    static final ComparisonParameters createParameters(
+            final BufferedImage reference, Rectangle referenceArea,
+            final BufferedImage screenshot, Rectangle screenshotArea,
+            List<Rectangle> ignoredAreas, final double tolerance) {
+        return createParameters(reference, referenceArea, screenshot,
+                screenshotArea, ignoredAreas, tolerance, 0, false, null);
+    }
+
+    /**
+     * Create a parameter descriptor object using the given block size
+     * instead of one chosen by the size of the compared area.
+     *
+     * @param blockSize
+     *            the block size or 0 to choose it by the size of the area
+     * @param referenceBand
+     *            true if the reference is a temporary image of some rows of
+     *            the reference image, whose derived data must not be cached
+     * @param context
+     *            an acquired context to take the buffers from, which the
+     *            caller releases, or null to acquire one that is released by
+     *            {@link #releaseParameters(ComparisonParameters)}
+     */
+    static final ComparisonParameters createParameters(
+            final BufferedImage reference, Rectangle referenceArea,
+            final BufferedImage screenshot, Rectangle screenshotArea,
+            List<Rectangle> ignoredAreas, final double tolerance,
+            int blockSize, boolean referenceBand, ComparisonContext context) {
+        if (referenceArea == null) {
+            referenceArea = new Rectangle(reference.getWidth(),
+                    reference.getHeight());
+        } else {
+            checkArea(reference, referenceArea);
+        }
+        if (screenshotArea == null) {
+            screenshotArea = new Rectangle(screenshot.getWidth(),
+                    screenshot.getHeight());
+        } else {
+            checkArea(screenshot, screenshotArea);
+        }
 
         ComparisonParameters p = new ComparisonParameters();
+        p.context = context != null ? context : ComparisonContext.acquire();
         p.refImage = reference;
         p.ssImage = screenshot;
 
-        p.refBlock = new int[BLOCK_SIZE * BLOCK_SIZE];
-        p.ssBlock = new int[BLOCK_SIZE * BLOCK_SIZE];
-        p.sampleBuffer = ImageUtil.createSampleBuffer();
-        p.errorTolerance = tolerance;
-
         //
         // Internal testing requires image sizes to be exact - if they're not,
-        // we crop the inputs and make a not of it for further use.
+        // we compare the common top left part and make a note of it for
+        // further use.
         //
 
-        p.sizesDiffer = !ImageUtil.imagesSameSize(reference, screenshot);
-        if (p.sizesDiffer) {
-            List<BufferedImage> images = ImageUtil.cropToBeSameSize(reference,
-                    screenshot);
-            p.refImage = images.get(0);
-            p.ssImage = images.get(1);
+        p.sizesDiffer = referenceArea.width != screenshotArea.width
+                || referenceArea.height != screenshotArea.height;
+        p.width = Math.min(referenceArea.width, screenshotArea.width);
+        p.height = Math.min(referenceArea.height, screenshotArea.height);
+        p.refArea = new Rectangle(referenceArea.x, referenceArea.y, p.width,
+                p.height);
+        p.ssArea = new Rectangle(screenshotArea.x, screenshotArea.y,
+                p.width, p.height);
+        p.wholeReference = !referenceBand && p.refArea.x == 0
+                && p.refArea.y == 0 && p.width == reference.getWidth()
+                && p.height == reference.getHeight();
+
+        if (blockSize == 0) {
+            blockSize = getBlockSize(p.width, p.height);
         }
+        p.blockSize = blockSize;
+        p.maxCursorYBlocks = Math.max(1,
+                (MAX_CURSOR_HEIGHT + blockSize - 1) / blockSize);
+        p.errorTolerance = tolerance;
 
-        p.width = p.refImage.getWidth();
-        p.height = p.refImage.getHeight();
-        p.xBlocks = ImageComparisonUtil.getNrBlocks(p.width);
-        p.yBlocks = ImageComparisonUtil.getNrBlocks(p.height);
+        p.xBlocks = ImageComparisonUtil.getNrBlocks(p.width, blockSize);
+        p.yBlocks = ImageComparisonUtil.getNrBlocks(p.height, blockSize);
 
-        p.falseBlocks = new boolean[p.xBlocks][p.yBlocks];
+        p.falseBlocks = p.context.getFalseBlocks(p.xBlocks, p.yBlocks);
 
-        p.refProperties = getImageProperties(p.refImage);
-        p.ssProperties = getImageProperties(p.ssImage);
+        p.refPacked = p.context.packReference(reference, p.refArea);
+        p.ssPacked = p.context.packScreenshot(screenshot, p.ssArea);
+
+        p.errorBudget = getErrorBudget(tolerance, blockSize * blockSize);
+        OpacityMask mask = null;
+        if (reference.getColorModel().hasAlpha()) {
+            mask = getReferenceMask(p);
+        }
+        if (!ignoredAreas.isEmpty()) {
+            if (mask == null) {
+                mask = OpacityMask.opaque(p.width, p.height, blockSize);
+            }
+            mask = mask.withIgnoredAreas(ignoredAreas);
+        }
+        if (mask != null && !mask.isOpaque()) {
+            p.opacityMask = mask;
+        }
 
         return p;
     }
 
+    /**
+     * Returns the opacity mask of the reference image, compiling it only if
+     * it is not cached.
+     */
+    private static OpacityMask getReferenceMask(final ComparisonParameters p) {
+        // Only masks of whole reference images are cached
+        OpacityMask mask = p.wholeReference ? referenceMasks.get(p.refImage)
+                : null;
+        if (mask == null || mask.getBlockSize() != p.blockSize
+                || mask.getWidth() != p.width || mask.getHeight() != p.height) {
+            mask = OpacityMask.of(p.refPacked, p.blockSize);
+            if (p.wholeReference) {
+                referenceMasks.put(p.refImage, mask);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the area is not inside the image
+     */
+    static void checkArea(BufferedImage image, Rectangle area) {
+        if (area.isEmpty()
+                || !new Rectangle(image.getWidth(), image.getHeight())
+                        .contains(area)) {
+            throw new IllegalArgumentException("Area " + area.x + ","
+                    + area.y + " (" + area.width + "x" + area.height
+                    + ") is not inside the " + image.getWidth() + "x"
+                    + image.getHeight() + " image");
+        }
+    }
+
+    /**
+     * Returns the given area of an image. The returned image shares the pixel
+     * data with the given image.
+     *
+     * @return the image itself if the area covers the whole image
+     */
+    private static BufferedImage getArea(BufferedImage image, Rectangle area) {
+        if (area.x == 0 && area.y == 0 && area.width == image.getWidth()
+                && area.height == image.getHeight()) {
+            return image;
+        }
+        return image.getSubimage(area.x, area.y, area.width, area.height);
+    }
+
+    /**
+     * Releases the comparison context of the given parameters. The
+     * parameters must not be used after this.
+     *
+     * @param params
+     *            a ComparisonParameters object. See {@link createParameters}.
+     */
+    static void releaseParameters(final ComparisonParameters params) {
+        params.context.release();
+    }
+
 }
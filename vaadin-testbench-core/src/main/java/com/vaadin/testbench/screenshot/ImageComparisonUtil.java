@@ -18,6 +18,12 @@ import java.security.NoSuchAlgorithmException;
 
 public class ImageComparisonUtil {
 
+    /**
+     * The default width and height of the blocks screen shots are compared
+     * in.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
     /**
      * Generates blocks representing an image by dividing the image up in 16x16
      * pixel blocks and calculating a mean value of the color in each block.
@@ -30,37 +36,38 @@ public class ImageComparisonUtil {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        byte[] data = new byte[width * height * 3];
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 algorithm provider not found", e);
+        }
 
-        int idx = 0;
+        // The digest is fed a row at a time instead of collecting all pixels
+        int[] row = new int[width];
+        byte[] data = new byte[width * 3];
         for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int idx = 0;
             for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                rgb &= 0x00FCFCFC;
-
                 // Skip the two last bits for fuzzy comparison
+                int rgb = row[x] & 0x00FCFCFC;
                 data[idx++] = (byte) ((rgb >> 16));
                 data[idx++] = (byte) ((rgb >> 8));
                 data[idx++] = (byte) (rgb);
             }
-        }
-
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
             md5.update(data);
-            String hash = byteToHex(md5.digest());
-            return hash;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 algorithm provider not found", e);
         }
+        return byteToHex(md5.digest());
     }
 
     private static String byteToHex(byte[] bytes) {
-        String hex = "";
+        char[] hex = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            hex += Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1);
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
         }
-        return hex;
+        return new String(hex);
     }
 
     /**
@@ -73,6 +80,20 @@ public class ImageComparisonUtil {
      * @return The number of blocks used for that dimension
      */
     public static int getNrBlocks(int pixels) {
-        return (int) Math.floor(pixels + 15) / 16;
+        return getNrBlocks(pixels, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the number of blocks of the given size used for the given number
+     * of pixels.
+     * 
+     * @param pixels
+     *            The number of pixels for the dimension.
+     * @param blockSize
+     *            The width and height of a block in pixels
+     * @return The number of blocks used for that dimension
+     */
+    public static int getNrBlocks(int pixels, int blockSize) {
+        return (pixels + blockSize - 1) / blockSize;
     }
 }
@@ -15,8 +15,10 @@ package com.vaadin.testbench.screenshot;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import javax.imageio.ImageIO;
 
@@ -76,6 +78,30 @@ public class ImageFileUtil {
         return impl.getReferenceScreenshotFile(referenceImageFileName);
     }
 
+    /**
+     * Returns the store reference images are read from: the one set with
+     * {@link #setReferenceStore(ReferenceStore)}, the one configured with
+     * {@link Parameters#getScreenshotReferenceStore()} or the reference
+     * directory.
+     *
+     * @return the reference store
+     */
+    public static ReferenceStore getReferenceStore() {
+        return impl.getReferenceStore();
+    }
+
+    /**
+     * Sets the store reference images are read from, e.g. a
+     * {@link ClasspathReferenceStore}.
+     *
+     * @param referenceStore
+     *            the reference store or null to use the one configured with
+     *            {@link Parameters#getScreenshotReferenceStore()}
+     */
+    public static void setReferenceStore(ReferenceStore referenceStore) {
+        impl.setReferenceStore(referenceStore);
+    }
+
     /**
      * Returns the relative file names of reference images. The actual image
      * file for a relative file name can be retrieved with
@@ -92,6 +118,26 @@ public class ImageFileUtil {
     }
 
     public static class ImageFileUtilImpl {
+
+        private volatile ReferenceStore referenceStore = null;
+
+        /*
+         * The store opened for the value of
+         * Parameters.getScreenshotReferenceStore(), reopened when the value
+         * or the archive file changes.
+         */
+        private String configuredStoreName = null;
+        private long configuredStoreLength = 0;
+        private long configuredStoreLastModified = 0;
+        private ReferenceStore configuredStore = null;
+
+        /*
+         * The store for the reference directory, recreated when the
+         * directory changes.
+         */
+        private String directoryStoreName = null;
+        private ReferenceStore directoryStore = null;
+
         /**
          * Returns the directory used for screenshot references.
          * 
@@ -144,7 +190,9 @@ public class ImageFileUtil {
         }
 
         /**
-         * Reads the given reference image into a BufferedImage
+         * Reads the given reference image into a BufferedImage. The image may
+         * be shared with other comparisons, see {@link ReferenceImageCache},
+         * and must not be modified.
          * 
          * @param referenceImageFileName
          * @return
@@ -152,8 +200,143 @@ public class ImageFileUtil {
          */
         public BufferedImage readReferenceImage(String referenceImageFileName)
                 throws IOException {
-            return ImageIO
-                    .read(getReferenceScreenshotFile(referenceImageFileName));
+            ReferenceStore store = getReferenceStore();
+            if (!(store instanceof DirectoryReferenceStore)) {
+                return readReferenceImage(store, referenceImageFileName);
+            }
+            File file = ((DirectoryReferenceStore) store)
+                    .getFile(referenceImageFileName);
+            if (!Parameters.isScreenshotReferenceRawCache()
+                    && !ReferenceImageCache.isEnabled()) {
+                return ImageIO.read(file);
+            }
+
+            // Recorded before reading so that a file modified while reading
+            // is read again the next time
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            BufferedImage image = null;
+            if (ReferenceImageCache.isEnabled()) {
+                image = ReferenceImageCache.get(file.getAbsolutePath(),
+                        length, lastModified);
+                if (image != null) {
+                    return image;
+                }
+            }
+            if (Parameters.isScreenshotReferenceRawCache()) {
+                image = RawImageCache.read(file, length, lastModified);
+            }
+            if (image == null) {
+                image = ImageIO.read(file);
+                if (image != null && Parameters.isScreenshotReferenceRawCache()) {
+                    RawImageCache.write(file, length, lastModified, image);
+                }
+            }
+            if (image != null && ReferenceImageCache.isEnabled()) {
+                ReferenceImageCache.put(file.getAbsolutePath(), length,
+                        lastModified, image);
+            }
+            return image;
+        }
+
+        private BufferedImage readReferenceImage(ReferenceStore store,
+                String referenceImageFileName) throws IOException {
+            String location = store.getLocation(referenceImageFileName);
+            long length = store.getLength(referenceImageFileName);
+            long lastModified = store.getLastModified(referenceImageFileName);
+            String contentHash = null;
+            if (store instanceof ContentAddressedReferenceStore) {
+                contentHash = ((ContentAddressedReferenceStore) store)
+                        .getContentHash(referenceImageFileName);
+            }
+            if (contentHash != null) {
+                // Reference images with the same content share one decoded
+                // image, which cannot become outdated
+                location = "sha1:" + contentHash;
+                length = 0;
+                lastModified = 0;
+            }
+            BufferedImage image = null;
+            if (ReferenceImageCache.isEnabled()) {
+                image = ReferenceImageCache.get(location, length,
+                        lastModified);
+                if (image != null) {
+                    return image;
+                }
+            }
+            InputStream in = store.open(referenceImageFileName);
+            try {
+                image = ImageIO.read(in);
+            } finally {
+                in.close();
+            }
+            if (image != null && ReferenceImageCache.isEnabled()) {
+                ReferenceImageCache.put(location, length, lastModified, image);
+            }
+            return image;
+        }
+
+        public void setReferenceStore(ReferenceStore referenceStore) {
+            this.referenceStore = referenceStore;
+        }
+
+        public ReferenceStore getReferenceStore() {
+            ReferenceStore store = referenceStore;
+            if (store != null) {
+                return store;
+            }
+            String name = Parameters.getScreenshotReferenceStore();
+            if (name == null || name.isEmpty()) {
+                return getDirectoryReferenceStore(
+                        getScreenshotReferenceDirectory());
+            }
+            return getConfiguredReferenceStore(name);
+        }
+
+        private synchronized ReferenceStore getDirectoryReferenceStore(
+                String directory) {
+            if (directoryStore == null
+                    || !Objects.equals(directory, directoryStoreName)) {
+                directoryStore = new DirectoryReferenceStore(
+                        directory == null ? null : new File(directory));
+                directoryStoreName = directory;
+            }
+            return directoryStore;
+        }
+
+        private synchronized ReferenceStore getConfiguredReferenceStore(
+                String name) {
+            if (name.startsWith("classpath:")) {
+                if (!name.equals(configuredStoreName)) {
+                    configuredStore = new ClasspathReferenceStore(
+                            ImageFileUtil.class.getClassLoader(),
+                            name.substring("classpath:".length()));
+                    configuredStoreName = name;
+                }
+                return configuredStore;
+            } else if (name.startsWith("archive:")) {
+                File archive = new File(name.substring("archive:".length()));
+                final long length = archive.length();
+                final long lastModified = archive.lastModified();
+                if (!name.equals(configuredStoreName)
+                        || length != configuredStoreLength
+                        || lastModified != configuredStoreLastModified) {
+                    try {
+                        configuredStore = ArchiveReferenceStore.open(archive);
+                    } catch (IOException e) {
+                        throw new RuntimeException(
+                                "Could not open reference image archive "
+                                        + archive, e);
+                    }
+                    configuredStoreName = name;
+                    configuredStoreLength = length;
+                    configuredStoreLastModified = lastModified;
+                }
+                return configuredStore;
+            }
+            throw new IllegalArgumentException(
+                    "Unknown reference store " + name
+                            + ", expected classpath:<path> or archive:<file>");
         }
 
         public File getErrorScreenshotFile(String errorImageFileName) {
@@ -161,6 +344,11 @@ public class ImageFileUtil {
         }
 
         public File getReferenceScreenshotFile(String referenceImageFileName) {
+            ReferenceStore store = getReferenceStore();
+            if (store instanceof DirectoryReferenceStore) {
+                return ((DirectoryReferenceStore) store)
+                        .getFile(referenceImageFileName);
+            }
             return new File(getScreenshotReferenceDirectory(),
                     referenceImageFileName);
         }
@@ -179,18 +367,47 @@ public class ImageFileUtil {
             ArrayList<String> referenceImages = new ArrayList<String>();
             String nextName = findActualFileName(referenceImageFileName,
                     capabilities);
-            File file = getReferenceScreenshotFile(nextName);
             int i = 1;
-            while (file.exists()) {
+            while (referenceExists(nextName)) {
                 referenceImages.add(nextName);
                 nextName = referenceImageFileName.replace(".png",
                         String.format("_%d.png", i++));
-                file = getReferenceScreenshotFile(nextName);
             }
 
             return referenceImages;
         }
 
+        /**
+         * Checks whether the given reference image exists, using the
+         * {@link ReferenceIndex} of the reference directory if enabled.
+         */
+        private boolean referenceExists(String referenceImageFileName) {
+            ReferenceStore store = getReferenceStore();
+            if (!(store instanceof DirectoryReferenceStore)) {
+                return store.exists(referenceImageFileName);
+            }
+            ReferenceIndex index = getReferenceIndex();
+            if (index != null
+                    && referenceImageFileName.indexOf('/') < 0
+                    && referenceImageFileName.indexOf(File.separatorChar) < 0) {
+                return index.contains(referenceImageFileName);
+            }
+            return getReferenceScreenshotFile(referenceImageFileName).exists();
+        }
+
+        private ReferenceIndex getReferenceIndex() {
+            if (!Parameters.isScreenshotReferenceIndex()) {
+                return null;
+            }
+            ReferenceStore store = getReferenceStore();
+            if (!(store instanceof DirectoryReferenceStore)
+                    || ((DirectoryReferenceStore) store).getDirectory() == null) {
+                return null;
+            }
+            return ReferenceIndex.get(((DirectoryReferenceStore) store)
+                    .getDirectory());
+        }
+
         private String findActualFileName(String referenceFileName,
                 Capabilities cap) {
             if (cap == null) {
@@ -219,16 +436,29 @@ public class ImageFileUtil {
         String findOldReferenceScreenshot(String browserName,
                 int browserVersion, String fileName) {
             String newFileName = new String(fileName);
-            if (!ImageFileUtil.getReferenceScreenshotFile(fileName).exists()) {
+            if (!referenceExists(fileName)) {
                 String navigatorId = browserName + "_" + browserVersion;
+                String suffix = "_" + browserVersion + ".png";
+                ReferenceIndex index = getReferenceIndex();
+                if (index != null && browserVersion > 0
+                        && fileName.endsWith("_" + navigatorId + ".png")
+                        && fileName.indexOf(navigatorId) == fileName
+                                .lastIndexOf(navigatorId)) {
+                    // Newest older version from the index instead of
+                    // checking each version
+                    String name = fileName.substring(0, fileName.length()
+                            - suffix.length());
+                    int version = index.findOlderVersion(name, browserVersion);
+                    return version > 0 ? name + "_" + version + ".png"
+                            : fileName;
+                }
                 int nextVersion = browserVersion;
                 String fileNameTemplate = fileName.replace(navigatorId, "####");
                 do {
                     nextVersion--;
                     newFileName = fileNameTemplate.replace("####",
                             String.format("%s_%d", browserName, nextVersion));
-                } while (!ImageFileUtil.getReferenceScreenshotFile(newFileName)
-                        .exists() && nextVersion > 0);
+                } while (!referenceExists(newFileName) && nextVersion > 0);
                 // We didn't find any existing screenshot for any older
                 // versions of the browser.
                 if (nextVersion == 0) {
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+/**
+ * A 64-bit perceptual fingerprint of an image, used to choose the reference
+ * images most likely to match a screenshot without comparing their pixels.
+ * <p>
+ * The image is divided into a grid of 8x8 cells and the mean brightness of
+ * every cell is computed. Each bit of the fingerprint tells whether a cell is
+ * brighter than the whole image. Similar images have fingerprints differing
+ * in few bits, see {@link #distance(ImageFingerprint)}, while small changes
+ * such as a blinking cursor rarely change any bit. The size of the image is
+ * kept along with the fingerprint as images of different sizes never match.
+ * <p>
+ * Transparent pixels of a reference image are not compared, so the
+ * fingerprint of a reference image with transparent pixels is marked as
+ * {@link #isMasked() masked}.
+ */
+class ImageFingerprint {
+
+    /** Number of cells per dimension */
+    private static final int GRID = 8;
+
+    private final long bits;
+    private final int width;
+    private final int height;
+    private final boolean masked;
+
+    ImageFingerprint(long bits, int width, int height, boolean masked) {
+        this.bits = bits;
+        this.width = width;
+        this.height = height;
+        this.masked = masked;
+    }
+
+    /**
+     * Computes the fingerprint of the given opaque image.
+     *
+     * @param image
+     *            the image
+     * @return the fingerprint
+     */
+    static ImageFingerprint of(PackedImage image) {
+        return of(image, false);
+    }
+
+    /**
+     * Computes the fingerprint of the given image.
+     *
+     * @param image
+     *            the image
+     * @param hasAlpha
+     *            true if the alpha channel of the image is used, in which
+     *            case the fingerprint is masked if any pixel is not opaque
+     * @return the fingerprint
+     */
+    static ImageFingerprint of(PackedImage image, boolean hasAlpha) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] pixels = image.getPixels();
+        final int stride = image.getScanlineStride();
+        final long[] sums = new long[GRID * GRID];
+        final int[] counts = new int[GRID * GRID];
+
+        // The cell column of every pixel column, so that the pixels are read
+        // in memory order
+        final int[] columnCells = new int[width];
+        for (int x = 0; x < width; x++) {
+            columnCells[x] = (int) ((long) x * GRID / width);
+        }
+        long total = 0;
+        int alpha = 0xff;
+        for (int y = 0; y < height; y++) {
+            final int rowCell = (int) ((long) y * GRID / height) * GRID;
+            int index = image.getOffset() + y * stride;
+            for (int x = 0; x < width; x++) {
+                final int pixel = pixels[index++];
+                alpha &= pixel >>> 24;
+                final int brightness = ((pixel >> 16) & 0xff) * 77
+                        + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29;
+                sums[rowCell + columnCells[x]] += brightness;
+                total += brightness;
+            }
+        }
+        for (int y = 0; y < GRID; y++) {
+            final int rows = cellSize(y, height);
+            for (int x = 0; x < GRID; x++) {
+                counts[y * GRID + x] = rows * cellSize(x, width);
+            }
+        }
+
+        // A cell is brighter than the image if sum / count > total / pixels
+        final long pixelCount = (long) width * height;
+        long bits = 0;
+        for (int cell = 0; cell < GRID * GRID; cell++) {
+            if (counts[cell] > 0
+                    && (double) sums[cell] * pixelCount > (double) total
+                            * counts[cell]) {
+                bits |= 1L << cell;
+            }
+        }
+        return new ImageFingerprint(bits, width, height, hasAlpha
+                && alpha != 0xff);
+    }
+
+    /**
+     * @return the number of pixels in the given cell row or column
+     */
+    private static int cellSize(int cell, int size) {
+        // First pixel p with p * GRID / size >= cell
+        final long start = ((long) cell * size + GRID - 1) / GRID;
+        final long end = ((long) (cell + 1) * size + GRID - 1) / GRID;
+        return (int) (end - start);
+    }
+
+    /**
+     * Returns the number of differing bits of two fingerprints, from 0 for
+     * images that look alike to 64.
+     *
+     * @param other
+     *            the fingerprint to compare to
+     * @return the number of differing bits
+     */
+    int distance(ImageFingerprint other) {
+        return Long.bitCount(bits ^ other.bits);
+    }
+
+    /**
+     * @return true if the images have the same size
+     */
+    boolean sameSize(ImageFingerprint other) {
+        return width == other.width && height == other.height;
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the image has transparent pixels, which are not
+     *         compared. The distance to such a fingerprint does not tell
+     *         whether the images can match.
+     */
+    boolean isMasked() {
+        return masked;
+    }
+}
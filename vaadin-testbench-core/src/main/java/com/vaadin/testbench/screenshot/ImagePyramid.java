@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coarse signatures of an image used to find the differing blocks of two
+ * images without comparing their pixels.
+ * <p>
+ * Level 0 holds one signature per comparison block: the mean color of the
+ * block (i.e. the image downsampled by the block size) and a 64-bit hash of
+ * the pixels in the block. Each higher level combines 4x4 nodes of the level
+ * below, so the top level usually consists of a handful of nodes. Two images
+ * are compared top-down and only the blocks below differing nodes are
+ * reported. Blocks are considered equal only if both the mean color and the
+ * hash match.
+ */
+class ImagePyramid {
+
+    /** Number of nodes per dimension combined into one node of the next level */
+    private static final int FAN_OUT = 4;
+
+    private final int blockSize;
+    private final int width;
+    private final int height;
+    private final List<Level> levels = new ArrayList<Level>();
+
+    private static class Level {
+        private final int columns;
+        private final int rows;
+        private final long[] hashes;
+        private final int[] meanColors;
+
+        Level(int columns, int rows, boolean withMeanColors) {
+            this.columns = columns;
+            this.rows = rows;
+            hashes = new long[columns * rows];
+            meanColors = withMeanColors ? new int[columns * rows] : null;
+        }
+
+        boolean nodesEqual(Level other, int index) {
+            return hashes[index] == other.hashes[index] && (meanColors == null
+                    || meanColors[index] == other.meanColors[index]);
+        }
+    }
+
+    private ImagePyramid(int blockSize, int width, int height) {
+        this.blockSize = blockSize;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Builds the pyramid for the given image.
+     *
+     * @param image
+     *            the image
+     * @param blockSize
+     *            the size of the comparison blocks
+     * @return the pyramid
+     */
+    static ImagePyramid of(PackedImage image, int blockSize) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final ImagePyramid pyramid = new ImagePyramid(blockSize, width, height);
+        final Level blocks = new Level(
+                ImageComparisonUtil.getNrBlocks(width, blockSize),
+                ImageComparisonUtil.getNrBlocks(height, blockSize), true);
+        final int[] pixels = image.getPixels();
+        final int stride = image.getScanlineStride();
+
+        for (int blockY = 0; blockY < blocks.rows; blockY++) {
+            final int y0 = blockY * blockSize;
+            final int rows = Math.min(blockSize, height - y0);
+            for (int blockX = 0; blockX < blocks.columns; blockX++) {
+                final int x0 = blockX * blockSize;
+                final int columns = Math.min(blockSize, width - x0);
+                long hash = 0;
+                long a = 0, r = 0, g = 0, b = 0;
+                for (int j = 0; j < rows; j++) {
+                    int index = image.getOffset() + (y0 + j) * stride + x0;
+                    for (int i = 0; i < columns; i++) {
+                        final int pixel = pixels[index++];
+                        hash = (hash + pixel) * 0x9e3779b97f4a7c15L;
+                        a += pixel >>> 24;
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                }
+                final int count = rows * columns;
+                final int block = blockY * blocks.columns + blockX;
+                blocks.hashes[block] = mix(hash);
+                blocks.meanColors[block] = (int) (a / count) << 24
+                        | (int) (r / count) << 16 | (int) (g / count) << 8
+                        | (int) (b / count);
+            }
+        }
+        pyramid.levels.add(blocks);
+
+        Level below = blocks;
+        while (below.columns > 1 || below.rows > 1) {
+            final Level level = new Level(
+                    (below.columns + FAN_OUT - 1) / FAN_OUT,
+                    (below.rows + FAN_OUT - 1) / FAN_OUT, false);
+            for (int row = 0; row < below.rows; row++) {
+                for (int column = 0; column < below.columns; column++) {
+                    final int node = (row / FAN_OUT) * level.columns
+                            + column / FAN_OUT;
+                    level.hashes[node] = mix(level.hashes[node]
+                            + below.hashes[row * below.columns + column]);
+                }
+            }
+            pyramid.levels.add(level);
+            below = level;
+        }
+        return pyramid;
+    }
+
+    /**
+     * Finds the blocks whose signatures differ between two pyramids built
+     * from images of the same size using the same block size.
+     *
+     * @param other
+     *            the pyramid to compare with
+     * @param differingBlocks
+     *            the bitmap in which each differing block is set
+     * @return the number of differing blocks
+     */
+    int findDifferingBlocks(ImagePyramid other, BlockBitmap differingBlocks) {
+        if (other.blockSize != blockSize || other.width != width
+                || other.height != height) {
+            throw new IllegalArgumentException(
+                    "Pyramids of different images cannot be compared");
+        }
+        final int top = levels.size() - 1;
+        int differing = 0;
+        final Level topLevel = levels.get(top);
+        for (int node = 0; node < topLevel.hashes.length; node++) {
+            differing += findDifferingBlocks(other, top,
+                    node % topLevel.columns, node / topLevel.columns,
+                    differingBlocks);
+        }
+        return differing;
+    }
+
+    private int findDifferingBlocks(ImagePyramid other, int levelIndex,
+            int column, int row, BlockBitmap differingBlocks) {
+        final Level level = levels.get(levelIndex);
+        final int node = row * level.columns + column;
+        if (level.nodesEqual(other.levels.get(levelIndex), node)) {
+            return 0;
+        }
+        if (levelIndex == 0) {
+            differingBlocks.set(column, row);
+            return 1;
+        }
+        final Level below = levels.get(levelIndex - 1);
+        int differing = 0;
+        final int lastRow = Math.min(below.rows, (row + 1) * FAN_OUT);
+        final int lastColumn = Math.min(below.columns, (column + 1) * FAN_OUT);
+        for (int r = row * FAN_OUT; r < lastRow; r++) {
+            for (int c = column * FAN_OUT; c < lastColumn; c++) {
+                differing += findDifferingBlocks(other, levelIndex - 1, c, r,
+                        differingBlocks);
+            }
+        }
+        return differing;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Final mixing step of a 64-bit hash (from MurmurHash3).
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+
+/**
+ * Describes an area of a screenshot whose content matches the reference image
+ * when moved by a fixed offset, e.g. content pushed down by a notification.
+ */
+public class ImageShift {
+
+    private final int dx;
+    private final int dy;
+    private final Rectangle area;
+
+    /**
+     * @param dx
+     *            the horizontal offset of the content
+     * @param dy
+     *            the vertical offset of the content
+     * @param area
+     *            the area of the screenshot, in pixels, which matches the
+     *            reference when shifted
+     */
+    public ImageShift(int dx, int dy, Rectangle area) {
+        this.dx = dx;
+        this.dy = dy;
+        this.area = area;
+    }
+
+    /**
+     * @return the horizontal offset of the content in the screenshot
+     *         compared to the reference, positive to the right
+     */
+    public int getDx() {
+        return dx;
+    }
+
+    /**
+     * @return the vertical offset of the content in the screenshot compared
+     *         to the reference, positive downwards
+     */
+    public int getDy() {
+        return dy;
+    }
+
+    /**
+     * @return the area of the screenshot, in pixels, which matches the
+     *         reference when shifted
+     */
+    public Rectangle getArea() {
+        return new Rectangle(area);
+    }
+
+    @Override
+    public String toString() {
+        return "Content at " + area.x + "," + area.y + " (" + area.width
+                + "x" + area.height + ") is shifted by " + dx + "," + dy
+                + " pixels";
+    }
+}
@@ -145,7 +145,19 @@ public class ImageUtil {
      * @return
      */
     public static final int[] createSampleBuffer() {
-        return new int[16 * 16 * 4];
+        return createSampleBuffer(ImageComparisonUtil.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Create a sample buffer for blocks of the given size with space for 4
+     * color bands
+     * 
+     * @param blockSize
+     *            the width and height of a block in pixels
+     * @return
+     */
+    public static final int[] createSampleBuffer(int blockSize) {
+        return new int[blockSize * blockSize * 4];
     }
 
     /**
@@ -194,28 +206,54 @@ public class ImageUtil {
      */
     public static final int[] getBlock(final ImageProperties properties, int x,
             int y, int[] result, int[] sample) {
+        return getBlock(properties, x, y, result, sample,
+                ImageComparisonUtil.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the RGB block of the given size starting at (x,y) from the given
+     * image
+     * 
+     * @param properties
+     *            The properties of the image (image + metadata)
+     * @param x
+     *            The x coordinate of the block (in pixels)
+     * @param y
+     *            The y coordinate of the block (in pixels)
+     * @param result
+     *            A sample buffer (32 bits per pixel) for storing the resulting
+     *            block, or null (a new buffer will be created)
+     * @param sample
+     *            A sample buffer for storing intermediate values, or null (a
+     *            new buffer will be created)
+     * @param blockSize
+     *            The width and height of the block in pixels
+     * @return An array of RGB values for the block
+     */
+    public static final int[] getBlock(final ImageProperties properties, int x,
+            int y, int[] result, int[] sample, int blockSize) {
 
         final int width;
         final int height;
 
         if (result == null) {
-            result = new int[16 * 16];
+            result = new int[blockSize * blockSize];
         }
 
         if (sample == null) {
-            sample = new int[16 * 16 * 4];
+            sample = createSampleBuffer(blockSize);
         }
 
-        if (x + 16 >= properties.width) {
+        if (x + blockSize >= properties.width) {
             width = properties.width - x;
         } else {
-            width = 16;
+            width = blockSize;
         }
 
-        if (y + 16 >= properties.height) {
+        if (y + blockSize >= properties.height) {
             height = properties.height - y;
         } else {
-            height = 16;
+            height = blockSize;
         }
 
         final int l = width * height;
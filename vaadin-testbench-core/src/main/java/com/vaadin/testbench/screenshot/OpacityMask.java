@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block level description of which pixels of a reference image take part in
+ * the comparison. Only completely opaque reference pixels are compared,
+ * pixels with alpha values below 255 are considered masked. In addition,
+ * areas of the image can be ignored, see {@link #withIgnoredAreas(List)}.
+ * <p>
+ * Each block is either fully opaque, fully masked or mixed. For mixed blocks
+ * one bit per pixel is stored for each row of the block so the comparison
+ * kernel does not need to look at the alpha channel.
+ */
+class OpacityMask {
+
+    static final byte OPAQUE = 0;
+    static final byte MASKED = 1;
+    static final byte MIXED = 2;
+
+    private final int blockSize;
+    private final int width;
+    private final int height;
+    private final int xBlocks;
+    private final byte[] states;
+    private final int[] rowMaskIndex;
+    private final long[] rowMasks;
+
+    private OpacityMask(int blockSize, int width, int height, byte[] states,
+            int[] rowMaskIndex, long[] rowMasks) {
+        this.blockSize = blockSize;
+        this.width = width;
+        this.height = height;
+        this.xBlocks = (width + blockSize - 1) / blockSize;
+        this.states = states;
+        this.rowMaskIndex = rowMaskIndex;
+        this.rowMasks = rowMasks;
+    }
+
+    /**
+     * Creates a mask for an image with only opaque pixels.
+     */
+    static OpacityMask opaque(int width, int height, int blockSize) {
+        return new OpacityMask(blockSize, width, height, null, null, null);
+    }
+
+    /**
+     * Compiles the opacity mask for the given reference image.
+     *
+     * @param reference
+     *            the reference image
+     * @param blockSize
+     *            the block size, at most 64
+     * @return the mask, {@link #isOpaque()} if every pixel of the reference
+     *         is opaque
+     */
+    static OpacityMask of(PackedImage reference, int blockSize) {
+        final int[] pixels = reference.getPixels();
+        final int stride = reference.getScanlineStride();
+        final int width = reference.getWidth();
+        final int height = reference.getHeight();
+        final int xBlocks = (width + blockSize - 1) / blockSize;
+        final int yBlocks = (height + blockSize - 1) / blockSize;
+
+        byte[] states = null;
+        int mixedBlocks = 0;
+
+        for (int blockY = 0; blockY < yBlocks; blockY++) {
+            final int y0 = blockY * blockSize;
+            final int rows = Math.min(blockSize, height - y0);
+            for (int blockX = 0; blockX < xBlocks; blockX++) {
+                final int x0 = blockX * blockSize;
+                final int columns = Math.min(blockSize, width - x0);
+                int opaque = 0;
+                for (int j = 0; j < rows; j++) {
+                    int index = reference.getOffset() + (y0 + j) * stride
+                            + x0;
+                    for (int i = 0; i < columns; i++) {
+                        if ((pixels[index++] >>> 24) == 255) {
+                            opaque++;
+                        }
+                    }
+                }
+                if (opaque == rows * columns) {
+                    continue;
+                }
+                if (states == null) {
+                    states = new byte[xBlocks * yBlocks];
+                }
+                if (opaque == 0) {
+                    states[blockY * xBlocks + blockX] = MASKED;
+                } else {
+                    states[blockY * xBlocks + blockX] = MIXED;
+                    mixedBlocks++;
+                }
+            }
+        }
+
+        if (states == null) {
+            return new OpacityMask(blockSize, width, height, null, null, null);
+        }
+
+        final int[] rowMaskIndex = new int[states.length];
+        final long[] rowMasks = new long[mixedBlocks * blockSize];
+        int next = 0;
+        for (int block = 0; block < states.length; block++) {
+            if (states[block] != MIXED) {
+                continue;
+            }
+            rowMaskIndex[block] = next;
+            final int x0 = (block % xBlocks) * blockSize;
+            final int y0 = (block / xBlocks) * blockSize;
+            final int rows = Math.min(blockSize, height - y0);
+            final int columns = Math.min(blockSize, width - x0);
+            for (int j = 0; j < rows; j++) {
+                int index = reference.getOffset() + (y0 + j) * stride + x0;
+                long rowMask = 0;
+                for (int i = 0; i < columns; i++) {
+                    if ((pixels[index++] >>> 24) == 255) {
+                        rowMask |= 1L << i;
+                    }
+                }
+                rowMasks[next + j] = rowMask;
+            }
+            next += blockSize;
+        }
+        return new OpacityMask(blockSize, width, height, states,
+                rowMaskIndex, rowMasks);
+    }
+
+    /**
+     * Returns a mask which in addition to the pixels masked by this mask
+     * masks the given areas. Only the blocks overlapping the areas are
+     * recompiled.
+     *
+     * @param ignoredAreas
+     *            the areas to mask, in pixels
+     * @return a new mask or this mask if there are no areas to mask
+     */
+    OpacityMask withIgnoredAreas(List<Rectangle> ignoredAreas) {
+        final Rectangle bounds = new Rectangle(width, height);
+        final List<Rectangle> areas = new ArrayList<Rectangle>();
+        for (Rectangle area : ignoredAreas) {
+            Rectangle clipped = area.intersection(bounds);
+            if (!clipped.isEmpty()) {
+                areas.add(clipped);
+            }
+        }
+        if (areas.isEmpty()) {
+            return this;
+        }
+
+        final int yBlocks = (height + blockSize - 1) / blockSize;
+        final byte[] newStates = states == null ? new byte[xBlocks * yBlocks]
+                : states.clone();
+        final int[] newRowMaskIndex = rowMaskIndex == null ? new int[xBlocks
+                * yBlocks] : rowMaskIndex.clone();
+        long[] newRowMasks = rowMasks == null ? new long[0] : rowMasks;
+        int next = newRowMasks.length;
+        final long[] blockRows = new long[blockSize];
+
+        for (int blockY = 0; blockY < yBlocks; blockY++) {
+            final int y0 = blockY * blockSize;
+            final int rows = Math.min(blockSize, height - y0);
+            for (int blockX = 0; blockX < xBlocks; blockX++) {
+                final int x0 = blockX * blockSize;
+                final int columns = Math.min(blockSize, width - x0);
+                final Rectangle block = new Rectangle(x0, y0, columns, rows);
+                final int index = blockY * xBlocks + blockX;
+                if (newStates[index] == MASKED || !intersects(areas, block)) {
+                    continue;
+                }
+
+                final long allColumns = columns == 64 ? -1L
+                        : (1L << columns) - 1;
+                for (int j = 0; j < rows; j++) {
+                    blockRows[j] = newStates[index] == MIXED ? getRowMask(
+                            blockX, blockY, j) : allColumns;
+                }
+                for (Rectangle area : areas) {
+                    Rectangle overlap = area.intersection(block);
+                    if (overlap.isEmpty()) {
+                        continue;
+                    }
+                    final long ignored = getBits(overlap.x - x0, overlap.x
+                            + overlap.width - x0);
+                    for (int j = overlap.y - y0; j < overlap.y
+                            + overlap.height - y0; j++) {
+                        blockRows[j] &= ~ignored;
+                    }
+                }
+
+                boolean opaque = true;
+                boolean masked = true;
+                for (int j = 0; j < rows; j++) {
+                    opaque &= blockRows[j] == allColumns;
+                    masked &= blockRows[j] == 0;
+                }
+                if (opaque) {
+                    newStates[index] = OPAQUE;
+                } else if (masked) {
+                    newStates[index] = MASKED;
+                } else {
+                    if (next + blockSize > newRowMasks.length) {
+                        newRowMasks = Arrays.copyOf(newRowMasks,
+                                Math.max(next + blockSize,
+                                        newRowMasks.length * 2));
+                    }
+                    System.arraycopy(blockRows, 0, newRowMasks, next, rows);
+                    newStates[index] = MIXED;
+                    newRowMaskIndex[index] = next;
+                    next += blockSize;
+                }
+            }
+        }
+        return new OpacityMask(blockSize, width, height, newStates,
+                newRowMaskIndex, newRowMasks);
+    }
+
+    private static boolean intersects(List<Rectangle> areas, Rectangle block) {
+        for (Rectangle area : areas) {
+            if (area.intersects(block)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a mask with the bits from {@code from} (inclusive) to
+     *         {@code to} (exclusive) set
+     */
+    private static long getBits(int from, int to) {
+        final long below = to == 64 ? -1L : (1L << to) - 1;
+        return below & (-1L << from);
+    }
+
+    /**
+     * @return true if no pixel is masked
+     */
+    boolean isOpaque() {
+        return states == null;
+    }
+
+    /**
+     * Checks if the given pixel takes part in the comparison.
+     *
+     * @param x
+     *            the x coordinate of the pixel
+     * @param y
+     *            the y coordinate of the pixel
+     * @return true if the pixel is not masked
+     */
+    boolean isCompared(int x, int y) {
+        final int blockX = x / blockSize;
+        final int blockY = y / blockSize;
+        switch (getState(blockX, blockY)) {
+        case OPAQUE:
+            return true;
+        case MASKED:
+            return false;
+        default:
+            return ((getRowMask(blockX, blockY, y % blockSize) >>> (x % blockSize)) & 1) != 0;
+        }
+    }
+
+    /**
+     * @return {@link #OPAQUE}, {@link #MASKED} or {@link #MIXED}
+     */
+    byte getState(int blockX, int blockY) {
+        if (states == null) {
+            return OPAQUE;
+        }
+        return states[blockY * xBlocks + blockX];
+    }
+
+    /**
+     * Returns the compared pixels of one row of a mixed block, bit i being
+     * set if pixel i of the row is opaque and not in an ignored area.
+     *
+     * @param blockX
+     *            the x coordinate of the block (in blocks)
+     * @param blockY
+     *            the y coordinate of the block (in blocks)
+     * @param row
+     *            the row inside the block
+     * @return the row mask
+     */
+    long getRowMask(int blockX, int blockY, int row) {
+        return rowMasks[rowMaskIndex[blockY * xBlocks + blockX] + row];
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * An image in the canonical packed ARGB layout used by the comparison engine.
+ * Pixel (x,y) is found at {@code pixels[offset + y * scanlineStride + x]}.
+ * Images without an alpha channel always have an alpha value of 255, which
+ * gives exactly the same pixel values as {@link ImageUtil#getBlock}.
+ * <p>
+ * For {@link BufferedImage#TYPE_INT_ARGB} images the backing
+ * {@link DataBufferInt} is used as is, all other image types are converted
+ * once.
+ * <p>
+ * These image utility functions are for internal use only.
+ */
+public class PackedImage {
+
+    private final int[] pixels;
+    private final int offset;
+    private final int scanlineStride;
+    private final int width;
+    private final int height;
+
+    PackedImage(int[] pixels, int offset, int scanlineStride, int width,
+            int height) {
+        this.pixels = pixels;
+        this.offset = offset;
+        this.scanlineStride = scanlineStride;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the packed representation of the given image.
+     *
+     * @param image
+     *            the image to pack
+     * @return a packed image sharing the pixel data with the given image if
+     *         possible
+     */
+    public static PackedImage of(BufferedImage image) {
+        if (canShare(image)) {
+            return share(image);
+        }
+        return of(image, new int[image.getWidth() * image.getHeight()]);
+    }
+
+    /**
+     * Returns the packed representation of an area of the given image. No
+     * pixels are copied if the pixel data of the image can be shared, and
+     * otherwise only the pixels in the area are converted.
+     *
+     * @param image
+     *            the image to pack
+     * @param area
+     *            the area of the image to pack
+     * @return a packed image of the area
+     * @throws IllegalArgumentException
+     *             if the area is not inside the image
+     */
+    public static PackedImage of(BufferedImage image, Rectangle area) {
+        return of(image, area, canShare(image) ? null
+                : new int[area.width * area.height]);
+    }
+
+    /**
+     * Returns the packed representation of the given image, converting the
+     * pixels into the given buffer if they cannot be shared with the image.
+     *
+     * @param image
+     *            the image to pack
+     * @param buffer
+     *            the buffer for converted pixels, with room for at least
+     *            width * height pixels
+     * @return a packed image sharing the pixel data with the given image or
+     *         using the given buffer
+     */
+    static PackedImage of(BufferedImage image, int[] buffer) {
+        return of(image, new Rectangle(image.getWidth(), image.getHeight()),
+                buffer);
+    }
+
+    /**
+     * Returns the packed representation of an area of the given image,
+     * converting the pixels in the area into the given buffer if they cannot
+     * be shared with the image.
+     *
+     * @param image
+     *            the image to pack
+     * @param area
+     *            the area of the image to pack
+     * @param buffer
+     *            the buffer for converted pixels, with room for at least
+     *            the pixels in the area
+     * @return a packed image of the area sharing the pixel data with the
+     *         given image or using the given buffer
+     * @throws IllegalArgumentException
+     *             if the area is not inside the image
+     */
+    static PackedImage of(BufferedImage image, Rectangle area, int[] buffer) {
+        if (area.x < 0 || area.y < 0 || area.width < 0 || area.height < 0
+                || area.x + area.width > image.getWidth()
+                || area.y + area.height > image.getHeight()) {
+            throw new IllegalArgumentException("Area " + area.x + ","
+                    + area.y + " (" + area.width + "x" + area.height
+                    + ") is outside the " + image.getWidth() + "x"
+                    + image.getHeight() + " image");
+        }
+        if (canShare(image)) {
+            PackedImage shared = share(image);
+            return new PackedImage(shared.pixels, shared.offset + area.y
+                    * shared.scanlineStride + area.x, shared.scanlineStride,
+                    area.width, area.height);
+        }
+        if (buffer.length < area.width * area.height) {
+            throw new IllegalArgumentException("Buffer of " + buffer.length
+                    + " pixels is too small for a " + area.width + "x"
+                    + area.height + " image");
+        }
+        if (area.x != 0 || area.y != 0 || area.width != image.getWidth()
+                || area.height != image.getHeight()) {
+            // Shares the raster data, only the pixels in the area are read
+            image = image.getSubimage(area.x, area.y, area.width,
+                    area.height);
+        }
+        unpack(image, buffer, area.width);
+        return new PackedImage(buffer, 0, area.width, area.width,
+                area.height);
+    }
+
+    /**
+     * Checks if the pixel data of the given image can be used as is, without
+     * conversion.
+     *
+     * @param image
+     *            the image
+     * @return true if {@link #of(BufferedImage)} does not copy the pixels
+     */
+    static boolean canShare(BufferedImage image) {
+        final Raster raster = image.getRaster();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        return image.getType() == BufferedImage.TYPE_INT_ARGB
+                && dataBuffer instanceof DataBufferInt
+                && dataBuffer.getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    private static PackedImage share(BufferedImage image) {
+        final Raster raster = image.getRaster();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                .getScanlineStride();
+        int offset = dataBuffer.getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        return new PackedImage(((DataBufferInt) dataBuffer).getData(), offset,
+                stride, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Converts the given image into packed ARGB pixels.
+     *
+     * @param image
+     *            the image to convert
+     * @param target
+     *            the array to write the pixels to
+     * @param targetStride
+     *            the scanline stride of the target array
+     */
+    private static void unpack(BufferedImage image, int[] target,
+            int targetStride) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final Raster raster = image.getRaster();
+        final SampleModel sampleModel = raster.getSampleModel();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final int type = image.getType();
+
+        if ((type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_BGR
+                || type == BufferedImage.TYPE_INT_ARGB)
+                && dataBuffer instanceof DataBufferInt
+                && dataBuffer.getNumBanks() == 1
+                && sampleModel instanceof SinglePixelPackedSampleModel) {
+            final int[] data = ((DataBufferInt) dataBuffer).getData();
+            final int stride = ((SinglePixelPackedSampleModel) sampleModel)
+                    .getScanlineStride();
+            final int base = dataBuffer.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            for (int y = 0; y < height; y++) {
+                int src = base + y * stride;
+                int dst = y * targetStride;
+                if (type == BufferedImage.TYPE_INT_ARGB) {
+                    System.arraycopy(data, src, target, dst, width);
+                } else if (type == BufferedImage.TYPE_INT_RGB) {
+                    for (int x = 0; x < width; x++) {
+                        target[dst + x] = 0xff000000 | data[src + x];
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        final int bgr = data[src + x];
+                        target[dst + x] = 0xff000000 | ((bgr & 0xff) << 16)
+                                | (bgr & 0xff00) | ((bgr >> 16) & 0xff);
+                    }
+                }
+            }
+            return;
+        }
+
+        if ((type == BufferedImage.TYPE_3BYTE_BGR
+                || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && dataBuffer instanceof DataBufferByte
+                && dataBuffer.getNumBanks() == 1
+                && sampleModel instanceof ComponentSampleModel) {
+            final byte[] data = ((DataBufferByte) dataBuffer).getData();
+            final ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+            final int pixelStride = csm.getPixelStride();
+            final int stride = csm.getScanlineStride();
+            final int[] bandOffsets = csm.getBandOffsets();
+            final int base = dataBuffer.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            // Bands are always in R, G, B (, A) order regardless of the
+            // actual byte order
+            final int r = bandOffsets[0];
+            final int g = bandOffsets[1];
+            final int b = bandOffsets[2];
+            final boolean alpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+            final int a = alpha ? bandOffsets[3] : 0;
+            for (int y = 0; y < height; y++) {
+                int src = base + y * stride;
+                int dst = y * targetStride;
+                for (int x = 0; x < width; x++) {
+                    final int alphaValue = alpha ? (data[src + a] & 0xff)
+                            : 0xff;
+                    target[dst + x] = (alphaValue << 24)
+                            | ((data[src + r] & 0xff) << 16)
+                            | ((data[src + g] & 0xff) << 8)
+                            | (data[src + b] & 0xff);
+                    src += pixelStride;
+                }
+            }
+            return;
+        }
+
+        // Palette, gray and other less common formats are converted using the
+        // color model of the image
+        image.getRGB(0, 0, width, height, target, 0, targetStride);
+    }
+
+    /**
+     * @return the packed ARGB pixel data. Only the area described by
+     *         {@link #getOffset()}, {@link #getScanlineStride()},
+     *         {@link #getWidth()} and {@link #getHeight()} belongs to this
+     *         image.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the index of the top left pixel in {@link #getPixels()}
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the distance between two vertically adjacent pixels in
+     *         {@link #getPixels()}
+     */
+    public int getScanlineStride() {
+        return scanlineStride;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the packed ARGB value of the given pixel.
+     *
+     * @param x
+     *            the x coordinate
+     * @param y
+     *            the y coordinate
+     * @return the ARGB value of the pixel
+     */
+    public int getRGB(int x, int y) {
+        return pixels[offset + y * scanlineStride + x];
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a PNG image one row at a time, so that only the rows being
+ * compared need to be in memory and decoding can stop at any row.
+ * <p>
+ * Only the formats screenshots are stored in are supported: 8 bit RGB and
+ * RGBA without interlacing or color profile. The rows are returned as
+ * non-premultiplied ARGB pixels, exactly as
+ * {@link java.awt.image.BufferedImage#getRGB(int, int)} of an image read
+ * with {@link javax.imageio.ImageIO} would return them. For other formats
+ * {@link #open(InputStream)} returns null and the image should be read with
+ * ImageIO.
+ */
+class PngRowReader implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+            26, 10 };
+
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454e44;
+    private static final int TRNS = 0x74524e53;
+    private static final int ICCP = 0x69434350;
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int bytesPerPixel;
+    private final Inflater inflater = new Inflater();
+    private final DataInputStream rows;
+    private byte[] previousRow;
+    private byte[] currentRow;
+    private int rowsRead = 0;
+
+    private PngRowReader(DataInputStream in, int width, int height,
+            boolean alpha, int firstIdatLength) {
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        bytesPerPixel = alpha ? 4 : 3;
+        previousRow = new byte[width * bytesPerPixel];
+        currentRow = new byte[width * bytesPerPixel];
+        rows = new DataInputStream(new InflaterInputStream(
+                new IdatInputStream(in, firstIdatLength), inflater));
+    }
+
+    /**
+     * Reads the header of a PNG image, up to the start of the image data.
+     *
+     * @param in
+     *            the PNG data, preferably buffered
+     * @return a reader positioned at the first row or null if the image is
+     *         not in a supported format
+     * @throws IOException
+     *             if the data cannot be read or is not a PNG image
+     */
+    static PngRowReader open(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] signature = new byte[SIGNATURE.length];
+        data.readFully(signature);
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (signature[i] != SIGNATURE[i]) {
+                throw new IOException("Not a PNG image");
+            }
+        }
+
+        if (data.readInt() != 13 || data.readInt() != IHDR) {
+            throw new IOException("PNG image does not start with a header");
+        }
+        final int width = data.readInt();
+        final int height = data.readInt();
+        final int bitDepth = data.readUnsignedByte();
+        final int colorType = data.readUnsignedByte();
+        final int compression = data.readUnsignedByte();
+        final int filter = data.readUnsignedByte();
+        final int interlace = data.readUnsignedByte();
+        skipFully(data, 4);
+        if (bitDepth != 8
+                || (colorType != COLOR_TYPE_RGB && colorType != COLOR_TYPE_RGBA)
+                || compression != 0 || filter != 0 || interlace != 0) {
+            return null;
+        }
+
+        while (true) {
+            final int length = data.readInt();
+            final int type = data.readInt();
+            if (type == IDAT) {
+                return new PngRowReader(data, width, height,
+                        colorType == COLOR_TYPE_RGBA, length);
+            }
+            if (type == TRNS || type == ICCP) {
+                // Transparency or colors ImageIO would take into account
+                return null;
+            }
+            if (type == IEND) {
+                throw new IOException("PNG image has no image data");
+            }
+            skipFully(data, length + 4L);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long bytes)
+            throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                // skip() may return 0 before the end of the stream
+                in.readByte();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * @return the width of the image in pixels
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image in pixels
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the image has an alpha channel
+     */
+    boolean hasAlpha() {
+        return alpha;
+    }
+
+    /**
+     * Decodes the next row of the image.
+     *
+     * @param argb
+     *            the array to store the pixels in
+     * @param offset
+     *            the index of the first pixel of the row in the array
+     * @throws IOException
+     *             if the image data is truncated or invalid
+     */
+    void readRow(int[] argb, int offset) throws IOException {
+        if (rowsRead == height) {
+            throw new IOException("All rows of the PNG image have been read");
+        }
+        final int filterType = rows.readUnsignedByte();
+        final byte[] row = currentRow;
+        rows.readFully(row);
+        unfilter(filterType, row, previousRow, bytesPerPixel);
+
+        int index = offset;
+        if (alpha) {
+            for (int i = 0; i < row.length; i += 4) {
+                argb[index++] = (row[i + 3] & 0xff) << 24
+                        | (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8
+                        | (row[i + 2] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < row.length; i += 3) {
+                argb[index++] = 0xff000000 | (row[i] & 0xff) << 16
+                        | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+            }
+        }
+
+        currentRow = previousRow;
+        previousRow = row;
+        rowsRead++;
+    }
+
+    /**
+     * Reverses the PNG filter of a row in place.
+     */
+    private static void unfilter(int filterType, byte[] row,
+            byte[] previousRow, int bpp) throws IOException {
+        switch (filterType) {
+        case 0:
+            break;
+        case 1:
+            for (int i = bpp; i < row.length; i++) {
+                row[i] += row[i - bpp];
+            }
+            break;
+        case 2:
+            for (int i = 0; i < row.length; i++) {
+                row[i] += previousRow[i];
+            }
+            break;
+        case 3:
+            for (int i = 0; i < bpp; i++) {
+                row[i] += (previousRow[i] & 0xff) >>> 1;
+            }
+            for (int i = bpp; i < row.length; i++) {
+                row[i] += ((row[i - bpp] & 0xff) + (previousRow[i] & 0xff)) >>> 1;
+            }
+            break;
+        case 4:
+            for (int i = 0; i < bpp; i++) {
+                row[i] += previousRow[i];
+            }
+            for (int i = bpp; i < row.length; i++) {
+                row[i] += paeth(row[i - bpp] & 0xff, previousRow[i] & 0xff,
+                        previousRow[i - bpp] & 0xff);
+            }
+            break;
+        default:
+            throw new IOException("Unknown PNG filter type " + filterType);
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        final int p = left + up - upLeft;
+        final int pLeft = Math.abs(p - left);
+        final int pUp = Math.abs(p - up);
+        final int pUpLeft = Math.abs(p - upLeft);
+        if (pLeft <= pUp && pLeft <= pUpLeft) {
+            return left;
+        } else if (pUp <= pUpLeft) {
+            return up;
+        }
+        return upLeft;
+    }
+
+    /**
+     * Releases the decompressor. The underlying stream is not closed.
+     */
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    /**
+     * The compressed image data, i.e. the contents of consecutive IDAT
+     * chunks.
+     */
+    private static class IdatInputStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean end = false;
+
+        IdatInputStream(DataInputStream in, int firstChunkLength) {
+            this.in = in;
+            remaining = firstChunkLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                if (end) {
+                    return -1;
+                }
+                // CRC of the previous chunk
+                skipFully(in, 4);
+                remaining = in.readInt();
+                if (in.readInt() != IDAT) {
+                    end = true;
+                    remaining = 0;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read == -1) {
+                throw new IOException("PNG image data is truncated");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Cache of decoded reference images, see
+ * {@link Parameters#isScreenshotReferenceRawCache()}.
+ * <p>
+ * Each reference image is stored uncompressed as ARGB pixels after a small
+ * header recording the size and modification time of the PNG file it was
+ * decoded from. A cached image is only used if the PNG file still has the
+ * same size and modification time. Reading a cached image reads the file
+ * straight into the pixel array of the image, without any decompression.
+ * <p>
+ * Cached images are always restored as {@link BufferedImage#TYPE_INT_ARGB},
+ * the layout the comparison uses without converting, as the stored pixels of
+ * opaque images already have an alpha value of 255.
+ */
+class RawImageCache {
+
+    private static final int MAGIC = 0x54425241;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 36;
+    private static final int FLAG_ALPHA = 1;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private RawImageCache() {
+        // Static utility methods only
+    }
+
+    /**
+     * Returns the cache file of the given reference image: next to the
+     * reference image or, if
+     * {@link Parameters#getScreenshotReferenceCacheDirectory()} is set, in
+     * that directory.
+     */
+    static File getCacheFile(File png) {
+        String directory = Parameters.getScreenshotReferenceCacheDirectory();
+        if (directory == null) {
+            return new File(png.getPath() + ".argb");
+        }
+        // References in different directories may have the same name
+        String parent = png.getAbsoluteFile().getParent();
+        return new File(directory, png.getName() + "-"
+                + Integer.toHexString(parent.hashCode()) + ".argb");
+    }
+
+    /**
+     * Reads the cached image of the given reference image.
+     *
+     * @param png
+     *            the reference image file
+     * @param length
+     *            the size of the reference image file
+     * @param lastModified
+     *            the modification time of the reference image file
+     * @return the cached image or null if there is no up to date cached image
+     */
+    static BufferedImage read(File png, long length, long lastModified) {
+        File cacheFile = getCacheFile(png);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(cacheFile.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                final long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    return null;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(
+                        (int) Math.min(size, READ_BUFFER_SIZE)).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                buffer.limit(HEADER_SIZE);
+                if (!readFully(channel, buffer)) {
+                    return null;
+                }
+                buffer.flip();
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                        || buffer.getLong() != length
+                        || buffer.getLong() != lastModified) {
+                    return null;
+                }
+                final int width = buffer.getInt();
+                final int height = buffer.getInt();
+                buffer.getInt(); // flags
+                if (width <= 0 || height <= 0
+                        || (long) width * height * 4 != size - HEADER_SIZE) {
+                    return null;
+                }
+
+                BufferedImage image = new BufferedImage(width, height,
+                        BufferedImage.TYPE_INT_ARGB);
+                int[] pixels = ((DataBufferInt) image.getRaster()
+                        .getDataBuffer()).getData();
+                // Read in chunks through a small buffer instead of mapping
+                // the file, as a mapping is only released by the garbage
+                // collector
+                int offset = 0;
+                while (offset < pixels.length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(),
+                            (long) (pixels.length - offset) * 4));
+                    if (!readFully(channel, buffer)) {
+                        return null;
+                    }
+                    buffer.flip();
+                    final int count = buffer.remaining() / 4;
+                    buffer.asIntBuffer().get(pixels, offset, count);
+                    offset += count;
+                }
+                return image;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.FINE,
+                    "Could not read cached reference image " + cacheFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the decoded reference image in the cache. Failures are logged
+     * and otherwise ignored.
+     *
+     * @param png
+     *            the reference image file
+     * @param length
+     *            the size of the reference image file when it was read
+     * @param lastModified
+     *            the modification time of the reference image file when it
+     *            was read
+     * @param image
+     *            the decoded reference image
+     */
+    static void write(File png, long length, long lastModified,
+            BufferedImage image) {
+        File cacheFile = getCacheFile(png);
+        File tempFile = null;
+        try {
+            File directory = cacheFile.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory()) {
+                directory.mkdirs();
+            }
+            // Written under another name and renamed so that concurrent
+            // readers never see a partial file
+            tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                    directory);
+            writeImage(tempFile, length, lastModified, image);
+            try {
+                Files.move(tempFile.toPath(), cacheFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), cacheFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not cache reference image " + png, e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void writeImage(File file, long length, long lastModified,
+            BufferedImage image) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(length)
+                    .putLong(lastModified).putInt(width).putInt(height)
+                    .putInt(image.getColorModel().hasAlpha() ? FLAG_ALPHA : 0);
+            header.flip();
+            writeFully(channel, header);
+
+            final int[] row = new int[width];
+            final ByteBuffer rowBuffer = ByteBuffer.allocate(width * 4).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                rowBuffer.clear();
+                rowBuffer.asIntBuffer().put(row);
+                writeFully(channel, rowBuffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Fills the remaining part of the buffer from the channel.
+     *
+     * @return false if the end of the file was reached first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(RawImageCache.class.getName());
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A file of records kept between test runs and shared by concurrently
+ * running test JVMs, one record per line.
+ * <p>
+ * Records are appended, so a record written again for the same key
+ * supersedes the earlier one, which the owner of the file ignores when
+ * reading. Appends are not atomic on every file system, e.g. on NFS, and a
+ * process can be killed while appending, so each line starts with the
+ * CRC-32 of the record and lines that do not match their checksum are
+ * skipped. When most lines of a file are superseded or invalid, the owner
+ * rewrites it with {@link #rewrite(Collection)}. The file is replaced by
+ * renaming a complete temporary file, so readers never see a partial file,
+ * but a record appended by another process during the rewrite may be lost.
+ */
+class RecordFile {
+
+    /**
+     * Receives the valid records of a file in the order they were written.
+     */
+    interface RecordHandler {
+        /**
+         * @param record
+         *            the record, without the line separator and checksum
+         */
+        void handle(String record);
+    }
+
+    /**
+     * Files with fewer lines are not rewritten, however many of them are
+     * superseded.
+     */
+    private static final int MIN_LINES_TO_REWRITE = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final String description;
+
+    /**
+     * @param file
+     *            the file
+     * @param description
+     *            what the records are, for log messages
+     */
+    RecordFile(File file, String description) {
+        this.file = file;
+        this.description = description;
+    }
+
+    /**
+     * Reads the valid records of the file. Failures to read the file are
+     * logged and otherwise ignored.
+     *
+     * @param handler
+     *            receives the valid records
+     * @return the number of lines read, including invalid ones
+     */
+    int read(RecordHandler handler) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int lines = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    String record = parse(line);
+                    if (record != null) {
+                        handler.handle(record);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not read " + description + " from " + file, e);
+        }
+        return lines;
+    }
+
+    /**
+     * Appends records to the file with a single write. Failures to write the
+     * file are logged and otherwise ignored.
+     *
+     * @param records
+     *            the records, without line separators
+     */
+    void append(Collection<String> records) {
+        try {
+            OutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(format(records));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not store " + description + " in " + file, e);
+        }
+    }
+
+    /**
+     * Checks whether the file should be rewritten with only the live
+     * records.
+     *
+     * @param lines
+     *            the number of lines in the file, see
+     *            {@link #read(RecordHandler)}
+     * @param liveRecords
+     *            the number of records not superseded
+     * @return true if most lines are superseded or invalid
+     */
+    static boolean isMostlySuperseded(int lines, int liveRecords) {
+        return lines >= MIN_LINES_TO_REWRITE && lines > 2 * liveRecords;
+    }
+
+    /**
+     * Replaces the file with one containing only the given records.
+     * Failures to write the file are logged and leave the file as it was.
+     *
+     * @param records
+     *            the live records, without line separators
+     */
+    void rewrite(Collection<String> records) {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(file.getName(), ".tmp", file
+                    .getAbsoluteFile().getParentFile());
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(format(records));
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not rewrite " + description + " in " + file, e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static byte[] format(Collection<String> records) {
+        StringBuilder lines = new StringBuilder();
+        for (String record : records) {
+            lines.append(checksum(record)).append(' ').append(record)
+                    .append('\n');
+        }
+        return lines.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return the record of the line or null if the line does not match its
+     *         checksum
+     */
+    private static String parse(String line) {
+        int separator = line.indexOf(' ');
+        if (separator == -1) {
+            return null;
+        }
+        String record = line.substring(separator + 1);
+        if (!line.substring(0, separator).equals(checksum(record))) {
+            return null;
+        }
+        return record;
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = record.getBytes(UTF_8);
+        crc.update(bytes, 0, bytes.length);
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(RecordFile.class.getName());
+    }
+}
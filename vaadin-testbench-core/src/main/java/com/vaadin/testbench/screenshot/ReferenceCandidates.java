@@ -0,0 +1,535 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ImageComparison.ComparisonParameters;
+
+/**
+ * Compares a screenshot to alternative reference images until one matches.
+ * The reference image that matched the previous time is compared first, and
+ * with {@link Parameters#isScreenshotReferenceFingerprints()} the others are
+ * ordered by the distance of their fingerprints and those that cannot match
+ * are skipped. With
+ * {@link Parameters#isScreenshotComparisonParallelCandidates()} the reference
+ * images are compared concurrently.
+ * <p>
+ * The last reference image is always compared fully so that an error report
+ * can be made if no reference image matches.
+ */
+class ReferenceCandidates {
+
+    private static ExecutorService candidatePool;
+    private static int candidatePoolSize;
+
+    /**
+     * The reference file that matched the previous comparison to each
+     * reference, tried first the next time.
+     */
+    private static final Map<String, String> lastMatchedReferences = new ConcurrentHashMap<String, String>();
+
+    private final ImageComparison comparison;
+    private final ReferenceImages references;
+    private final BufferedImage screenshotImage;
+    private final Rectangle screenshotArea;
+    private final List<Rectangle> ignoredAreas;
+    private final double errorTolerance;
+    private final boolean withBlockErrors;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    private final List<Candidate> candidates = new ArrayList<Candidate>();
+    private Candidate match = null;
+
+    /**
+     * @param comparison
+     *            the comparison comparing the images
+     * @param references
+     *            the reference images, at least one
+     * @param screenshotImage
+     *            the screenshot
+     * @param screenshotArea
+     *            the area of the screenshot to compare or null to compare the
+     *            whole screenshot
+     * @param ignoredAreas
+     *            the areas not to compare, relative to the compared area
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @param withBlockErrors
+     *            true to record the error of every block for the result
+     */
+    ReferenceCandidates(ImageComparison comparison,
+            ReferenceImages references, BufferedImage screenshotImage,
+            Rectangle screenshotArea, List<Rectangle> ignoredAreas,
+            double errorTolerance, boolean withBlockErrors) {
+        this.comparison = comparison;
+        this.references = references;
+        this.screenshotImage = screenshotImage;
+        this.screenshotArea = screenshotArea;
+        this.ignoredAreas = ignoredAreas;
+        this.errorTolerance = errorTolerance;
+        this.withBlockErrors = withBlockErrors;
+    }
+
+    /**
+     * Compares the screenshot to the reference images until one matches.
+     * The matching reference image is tried first the next time.
+     *
+     * @throws IOException
+     *             if a reference image cannot be read
+     */
+    void evaluate() throws IOException {
+        final String referenceFileId = references.getReferenceFileId();
+        List<String> referenceFileNames = references.getFileNames();
+
+        // This is used to make the final error HTML page based on the last
+        // reference file only
+        final String reportReference = referenceFileNames
+                .get(referenceFileNames.size() - 1);
+        ImageFingerprint fingerprint = null;
+        Map<String, ImageFingerprint> referenceFingerprints = null;
+        if (referenceFileNames.size() > 1) {
+            fingerprint = getFingerprint(screenshotImage, screenshotArea);
+        }
+        if (fingerprint != null) {
+            referenceFingerprints = new HashMap<String, ImageFingerprint>();
+            for (String referenceFileName : referenceFileNames) {
+                referenceFingerprints.put(referenceFileName,
+                        ReferenceFingerprints.get(referenceFileName));
+            }
+        }
+        for (String referenceFileName : getCandidateOrder(referenceFileId,
+                referenceFileNames, fingerprint, referenceFingerprints)) {
+            boolean report = referenceFileName.equals(reportReference);
+            if (!report
+                    && fingerprint != null
+                    && cannotMatch(
+                            referenceFingerprints.get(referenceFileName),
+                            fingerprint, ignoredAreas)) {
+                continue;
+            }
+            candidates.add(new Candidate(referenceFileName, report));
+        }
+
+        if (candidates.size() > 1
+                && Parameters.isScreenshotComparisonParallelCandidates()
+                && Parameters.getScreenshotComparisonParallelism() > 1) {
+            match = evaluateConcurrently(candidates);
+        } else {
+            match = evaluateSequentially(candidates);
+        }
+        if (match != null) {
+            setLastMatch(referenceFileId, match.referenceName);
+            references.setMatchedFileName(match.referenceName);
+        }
+    }
+
+    /**
+     * @return the result of the matching reference image or, if none
+     *         matched, of the reference image used for the error report
+     */
+    ComparisonResult getResult() {
+        if (match != null) {
+            return match.result;
+        }
+        return getReportCandidate().result;
+    }
+
+    /**
+     * @return the failure reporter for the error report or null if a
+     *         reference image matched
+     */
+    ScreenShotFailureReporter getFailureReporter() {
+        if (match != null) {
+            return null;
+        }
+        return getReportCandidate().failureReporter;
+    }
+
+    private Candidate getReportCandidate() {
+        for (Candidate candidate : candidates) {
+            if (candidate.report) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("No reference image to report");
+    }
+
+    /**
+     * @return the time spent reading the reference images, in nanoseconds
+     */
+    long getDecodeNanos() {
+        long decodeNanos = 0;
+        for (Candidate candidate : candidates) {
+            decodeNanos += candidate.decodeNanos;
+        }
+        return decodeNanos;
+    }
+
+    /**
+     * @return the time spent comparing the reference images, in nanoseconds
+     */
+    long getCompareNanos() {
+        long compareNanos = 0;
+        for (Candidate candidate : candidates) {
+            compareNanos += candidate.compareNanos;
+        }
+        return compareNanos;
+    }
+
+    /**
+     * Makes the given reference file the first one compared the next time
+     * the given reference is compared to.
+     */
+    static void setLastMatch(String referenceFileId, String referenceFileName) {
+        lastMatchedReferences.put(referenceFileId, referenceFileName);
+    }
+
+    /**
+     * Returns the reference file names in the order they are compared in:
+     * the file that matched the previous time first, then the rest in their
+     * original order.
+     */
+    static List<String> getCandidateOrder(String referenceFileId,
+            List<String> referenceFileNames) {
+        String lastMatch = lastMatchedReferences.get(referenceFileId);
+        if (lastMatch == null || !referenceFileNames.contains(lastMatch)) {
+            return referenceFileNames;
+        }
+        List<String> order = new ArrayList<String>(referenceFileNames.size());
+        order.add(lastMatch);
+        for (String referenceFileName : referenceFileNames) {
+            if (!referenceFileName.equals(lastMatch)) {
+                order.add(referenceFileName);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the reference file names in the order they are compared in
+     * like {@link #getCandidateOrder(String, List)}, but with the files
+     * following the previous match ordered by the distance of their
+     * fingerprint to the screenshot fingerprint. Files without a known
+     * fingerprint are compared last.
+     *
+     * @param fingerprint
+     *            the fingerprint of the screenshot or null to not use
+     *            fingerprints
+     * @param referenceFingerprints
+     *            the known fingerprints of the reference images by file name
+     */
+    private static List<String> getCandidateOrder(String referenceFileId,
+            List<String> referenceFileNames,
+            final ImageFingerprint fingerprint,
+            Map<String, ImageFingerprint> referenceFingerprints) {
+        List<String> order = getCandidateOrder(referenceFileId,
+                referenceFileNames);
+        if (fingerprint == null) {
+            return order;
+        }
+        final Map<String, Integer> distances = new HashMap<String, Integer>();
+        for (String referenceFileName : order) {
+            ImageFingerprint reference = referenceFingerprints
+                    .get(referenceFileName);
+            distances.put(referenceFileName,
+                    reference == null ? Integer.MAX_VALUE : reference
+                            .distance(fingerprint));
+        }
+        String lastMatch = lastMatchedReferences.get(referenceFileId);
+        int first = order.get(0).equals(lastMatch) ? 1 : 0;
+        order = new ArrayList<String>(order);
+        // A stable sort keeps files at the same distance in their order
+        Collections.sort(order.subList(first, order.size()),
+                new Comparator<String>() {
+                    @Override
+                    public int compare(String a, String b) {
+                        return distances.get(a).compareTo(distances.get(b));
+                    }
+                });
+        return order;
+    }
+
+    /**
+     * Returns the fingerprint of the compared area of a screenshot if
+     * reference image fingerprints are used.
+     *
+     * @return the fingerprint or null if fingerprints are not used
+     */
+    private static ImageFingerprint getFingerprint(
+            BufferedImage screenshotImage, Rectangle screenshotArea) {
+        if (!Parameters.isScreenshotReferenceFingerprints()) {
+            return null;
+        }
+        if (screenshotArea == null) {
+            return ImageFingerprint.of(PackedImage.of(screenshotImage));
+        }
+        ImageComparison.checkArea(screenshotImage, screenshotArea);
+        return ImageFingerprint.of(PackedImage.of(screenshotImage,
+                screenshotArea));
+    }
+
+    /**
+     * Checks with the fingerprint of a reference image whether the reference
+     * image can match the screenshot. A reference image of a different size
+     * never matches. If a maximum distance is set, reference images with a
+     * more distant fingerprint are assumed not to match, unless parts of the
+     * images are not compared. The fingerprints cover ignored areas and
+     * transparent pixels of the reference image too.
+     *
+     * @param reference
+     *            the fingerprint of the reference image or null if not known
+     * @return true if the reference image need not be compared
+     */
+    private static boolean cannotMatch(ImageFingerprint reference,
+            ImageFingerprint fingerprint, List<Rectangle> ignoredAreas) {
+        if (reference == null) {
+            return false;
+        }
+        if (!reference.sameSize(fingerprint)) {
+            return true;
+        }
+        final int maxDistance = Parameters
+                .getScreenshotReferenceFingerprintMaxDistance();
+        return maxDistance > 0 && ignoredAreas.isEmpty()
+                && !reference.isMasked()
+                && reference.distance(fingerprint) > maxDistance;
+    }
+
+    /**
+     * Evaluates the candidates one at a time until one matches.
+     *
+     * @return the matching candidate or null if none matched
+     */
+    private static Candidate evaluateSequentially(List<Candidate> candidates)
+            throws IOException {
+        for (Candidate candidate : candidates) {
+            candidate.call();
+            if (candidate.isMatch()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates the candidates concurrently. When one matches, the others
+     * are cancelled: those that have not started are skipped and running
+     * comparisons are aborted. Returns only after every candidate has
+     * finished, so that no comparison is left running in the background.
+     *
+     * @return the first candidate found to match or null if none matched
+     */
+    private static Candidate evaluateConcurrently(List<Candidate> candidates)
+            throws IOException {
+        CompletionService<Candidate> completionService = new ExecutorCompletionService<Candidate>(
+                getCandidatePool());
+        List<Future<Candidate>> futures = new ArrayList<Future<Candidate>>();
+        for (Candidate candidate : candidates) {
+            futures.add(completionService.submit(candidate));
+        }
+
+        Candidate match = null;
+        try {
+            for (int i = 0; i < candidates.size() && match == null; i++) {
+                Candidate candidate = completionService.take().get();
+                if (candidate.isMatch()) {
+                    match = candidate;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while comparing to reference images");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Candidate candidate : candidates) {
+                candidate.cancel();
+            }
+            awaitAll(futures);
+        }
+        return match;
+    }
+
+    /**
+     * Waits for the given futures to complete, ignoring their outcome.
+     */
+    private static void awaitAll(List<Future<Candidate>> futures) {
+        boolean interrupted = false;
+        for (Future<Candidate> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the shared pool used for evaluating reference candidates
+     * concurrently, recreating it if
+     * {@link Parameters#getScreenshotComparisonParallelism()} has changed.
+     */
+    private static synchronized ExecutorService getCandidatePool() {
+        int parallelism = Math.max(1,
+                Parameters.getScreenshotComparisonParallelism());
+        if (candidatePool == null || candidatePoolSize != parallelism) {
+            if (candidatePool != null) {
+                candidatePool.shutdown();
+            }
+            candidatePool = Executors.newFixedThreadPool(parallelism,
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "reference-candidate-"
+                                            + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            candidatePoolSize = parallelism;
+        }
+        return candidatePool;
+    }
+
+    /**
+     * One reference image to compare the screenshot to. All but the report
+     * candidate are compared fail-fast as they are only needed if they
+     * match. The report candidate is compared fully so that an error report
+     * can be made if no candidate matches.
+     */
+    private class Candidate implements Callable<Candidate> {
+        private final String referenceName;
+        private final boolean report;
+
+        /*
+         * The parameters of a running comparison, used for aborting it.
+         */
+        private volatile ComparisonParameters params = null;
+
+        private ComparisonResult result = null;
+        private ScreenShotFailureReporter failureReporter = null;
+        private long decodeNanos = 0;
+        private long compareNanos = 0;
+
+        Candidate(String referenceName, boolean report) {
+            this.referenceName = referenceName;
+            this.report = report;
+        }
+
+        @Override
+        public Candidate call() throws IOException {
+            if (cancelled.get()) {
+                return this;
+            }
+            long start = System.nanoTime();
+            BufferedImage referenceImage = references
+                    .getImage(referenceName);
+            if (Parameters.isScreenshotReferenceFingerprints()) {
+                ReferenceFingerprints.add(referenceName, referenceImage);
+            }
+            decodeNanos = System.nanoTime() - start;
+            if (cancelled.get()) {
+                return this;
+            }
+
+            start = System.nanoTime();
+            ComparisonParameters p = ImageComparison.createParameters(
+                    referenceImage, null, screenshotImage, screenshotArea,
+                    ignoredAreas, errorTolerance);
+            if (withBlockErrors) {
+                ImageComparison.collectBlockErrors(p);
+            }
+            params = p;
+            if (cancelled.get()) {
+                p.abort();
+            }
+            try {
+                if (!report) {
+                    if (!p.sizesDiffer()
+                            && comparison.imagesEqualFailFast(p)) {
+                        result = ImageComparison.createResult(p, true,
+                                referenceName);
+                    }
+                } else {
+                    failureReporter = comparison.compareImages(p);
+                    result = ImageComparison.createResult(p,
+                            failureReporter == null, referenceName);
+                }
+            } finally {
+                params = null;
+                ImageComparison.releaseParameters(p);
+            }
+            compareNanos = System.nanoTime() - start;
+            return this;
+        }
+
+        /**
+         * Stops the evaluation of this and every other candidate sharing the
+         * same cancellation flag, once they check it.
+         */
+        void cancel() {
+            cancelled.set(true);
+            ComparisonParameters p = params;
+            if (p != null) {
+                p.abort();
+            }
+        }
+
+        boolean isMatch() {
+            return result != null && result.isEqual();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Fingerprints of reference images, see
+ * {@link Parameters#isScreenshotReferenceFingerprints()}.
+ * <p>
+ * The fingerprint of a reference image is computed when the image is first
+ * decoded for a comparison, or for all reference images with
+ * {@link #update()}, and used as long as the reference image file has not
+ * changed. For a {@link DirectoryReferenceStore}, the fingerprints are stored
+ * in the {@link RecordFile} {@value #FILE_NAME} in its directory, one record
+ * per reference image. For other reference stores the fingerprints are only
+ * kept in memory.
+ */
+public class ReferenceFingerprints {
+
+    static final String FILE_NAME = ".reference-fingerprints";
+
+    private static final String MASKED = "m";
+    private static final String OPAQUE = "-";
+
+    /**
+     * Fingerprints by reference store location, keyed by reference file name.
+     */
+    private static final Map<String, Map<String, Entry>> stores = new HashMap<String, Map<String, Entry>>();
+
+    private static class Entry {
+        private final ImageFingerprint fingerprint;
+        private final long length;
+        private final long lastModified;
+
+        Entry(ImageFingerprint fingerprint, long length, long lastModified) {
+            this.fingerprint = fingerprint;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private ReferenceFingerprints() {
+        // Static utility methods only
+    }
+
+    /**
+     * Returns the fingerprint of a reference image if it is known and the
+     * reference image has not changed since it was computed.
+     *
+     * @param referenceFileName
+     *            the name of the reference image file
+     * @return the fingerprint or null if it is not known
+     */
+    static ImageFingerprint get(String referenceFileName) {
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        Entry entry = getEntries(store).get(referenceFileName);
+        if (entry == null) {
+            return null;
+        }
+        if (store.getLength(referenceFileName) != entry.length
+                || store.getLastModified(referenceFileName) != entry.lastModified) {
+            return null;
+        }
+        return entry.fingerprint;
+    }
+
+    /**
+     * Computes and stores the fingerprint of a decoded reference image
+     * unless it is already known. Failures to store the fingerprint are
+     * logged and otherwise ignored.
+     *
+     * @param referenceFileName
+     *            the name of the reference image file
+     * @param referenceImage
+     *            the decoded reference image
+     */
+    static void add(String referenceFileName, BufferedImage referenceImage) {
+        if (get(referenceFileName) != null) {
+            return;
+        }
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        final long length = store.getLength(referenceFileName);
+        final long lastModified = store.getLastModified(referenceFileName);
+        // Without a modification time a changed reference image would not
+        // be noticed
+        if (length == 0 || lastModified == 0) {
+            return;
+        }
+        ImageFingerprint fingerprint = ImageFingerprint.of(
+                PackedImage.of(referenceImage), referenceImage
+                        .getColorModel().hasAlpha());
+        Entry entry = new Entry(fingerprint, length, lastModified);
+        getEntries(store).put(referenceFileName, entry);
+
+        RecordFile fingerprintFile = getFingerprintFile(store);
+        if (fingerprintFile != null) {
+            fingerprintFile.append(Collections.singletonList(toRecord(
+                    referenceFileName, entry)));
+        }
+    }
+
+    /**
+     * Computes the fingerprints of all reference images that do not have an
+     * up to date fingerprint. Reference images can only be listed in the
+     * reference directory and in archives, for other reference stores
+     * fingerprints are only computed when the reference images are compared.
+     *
+     * @return the number of computed fingerprints
+     * @throws IOException
+     *             if a reference image cannot be read
+     */
+    public static int update() throws IOException {
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        Collection<String> fileNames;
+        if (store instanceof ArchiveReferenceStore) {
+            fileNames = ((ArchiveReferenceStore) store).getFileNames();
+        } else if (store instanceof DirectoryReferenceStore) {
+            String[] names = ((DirectoryReferenceStore) store).getDirectory()
+                    .list();
+            fileNames = names == null ? new ArrayList<String>() : Arrays
+                    .asList(names);
+        } else {
+            return 0;
+        }
+
+        int count = 0;
+        for (String fileName : fileNames) {
+            if (!fileName.endsWith(".png") || get(fileName) != null) {
+                continue;
+            }
+            BufferedImage image = ImageFileUtil.readReferenceImage(fileName);
+            if (image != null) {
+                add(fileName, image);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes the loaded fingerprints from memory so that they are read
+     * again from the reference directory when needed. Fingerprints of other
+     * reference stores are lost.
+     */
+    public static void clear() {
+        synchronized (stores) {
+            stores.clear();
+        }
+    }
+
+    /**
+     * @return the file the fingerprints of the store are kept in or null if
+     *         they are only kept in memory
+     */
+    private static RecordFile getFingerprintFile(ReferenceStore store) {
+        if (!(store instanceof DirectoryReferenceStore)) {
+            return null;
+        }
+        return new RecordFile(new File(
+                ((DirectoryReferenceStore) store).getDirectory(), FILE_NAME),
+                "reference image fingerprints");
+    }
+
+    private static Map<String, Entry> getEntries(ReferenceStore store) {
+        String key = store.getLocation(FILE_NAME);
+        synchronized (stores) {
+            Map<String, Entry> entries = stores.get(key);
+            if (entries == null) {
+                entries = new ConcurrentHashMap<String, Entry>();
+                RecordFile fingerprintFile = getFingerprintFile(store);
+                if (fingerprintFile != null) {
+                    read(fingerprintFile, entries);
+                }
+                stores.put(key, entries);
+            }
+            return entries;
+        }
+    }
+
+    private static void read(RecordFile fingerprintFile,
+            final Map<String, Entry> entries) {
+        int lines = fingerprintFile.read(new RecordFile.RecordHandler() {
+            @Override
+            public void handle(String record) {
+                // bits width height masked length lastModified name
+                String[] fields = record.split(" ", 7);
+                if (fields.length != 7
+                        || !(fields[3].equals(MASKED) || fields[3]
+                                .equals(OPAQUE))) {
+                    return;
+                }
+                try {
+                    ImageFingerprint fingerprint = new ImageFingerprint(
+                            Long.parseUnsignedLong(fields[0], 16),
+                            Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]),
+                            fields[3].equals(MASKED));
+                    entries.put(fields[6], new Entry(fingerprint,
+                            Long.parseLong(fields[4]),
+                            Long.parseLong(fields[5])));
+                } catch (NumberFormatException e) {
+                    // Not written by this version
+                }
+            }
+        });
+        if (RecordFile.isMostlySuperseded(lines, entries.size())) {
+            List<String> records = new ArrayList<String>();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                records.add(toRecord(entry.getKey(), entry.getValue()));
+            }
+            fingerprintFile.rewrite(records);
+        }
+    }
+
+    private static String toRecord(String referenceFileName, Entry entry) {
+        ImageFingerprint fingerprint = entry.fingerprint;
+        return Long.toHexString(fingerprint.getBits()) + " "
+                + fingerprint.getWidth() + " " + fingerprint.getHeight() + " "
+                + (fingerprint.isMasked() ? MASKED : OPAQUE) + " "
+                + entry.length + " " + entry.lastModified + " "
+                + referenceFileName;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Process wide cache of decoded reference images, see
+ * {@link Parameters#getScreenshotReferenceCacheMegabytes()}.
+ * <p>
+ * Images are cached by location and only used while the file has the same
+ * modification time and size. When the cached images would use more memory
+ * than allowed, the least recently used ones are evicted. Cached images are
+ * shared by all comparisons and must not be modified.
+ * <p>
+ * If {@link Parameters#isScreenshotReferenceCacheOffHeap()} is set, the
+ * pixels are stored outside the Java heap and copied to a new image for
+ * every read. This keeps large reference images from being scanned and
+ * moved by the garbage collector.
+ */
+public class ReferenceImageCache {
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private static long size = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+    private static class Entry {
+        private final long length;
+        private final long lastModified;
+        private final long bytes;
+        private final BufferedImage image;
+        private final IntBuffer pixels;
+        private final int width;
+        private final int height;
+        private final boolean alpha;
+
+        Entry(long length, long lastModified, BufferedImage image,
+                boolean offHeap) {
+            this.length = length;
+            this.lastModified = lastModified;
+            width = image.getWidth();
+            height = image.getHeight();
+            alpha = image.getColorModel().hasAlpha();
+            bytes = (long) width * height * 4;
+            if (offHeap) {
+                int[] row = new int[width];
+                pixels = ByteBuffer.allocateDirect((int) bytes)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                    pixels.put(row);
+                }
+                this.image = null;
+            } else {
+                pixels = null;
+                this.image = image;
+            }
+        }
+
+        BufferedImage getImage() {
+            if (image != null) {
+                return image;
+            }
+            BufferedImage copy = new BufferedImage(width, height,
+                    alpha ? BufferedImage.TYPE_INT_ARGB
+                            : BufferedImage.TYPE_INT_RGB);
+            IntBuffer source = pixels.duplicate();
+            source.rewind();
+            source.get(((DataBufferInt) copy.getRaster().getDataBuffer())
+                    .getData());
+            return copy;
+        }
+    }
+
+    private ReferenceImageCache() {
+        // Static utility methods only
+    }
+
+    /**
+     * @return true if reference images are cached
+     */
+    static boolean isEnabled() {
+        return Parameters.getScreenshotReferenceCacheMegabytes() > 0;
+    }
+
+    /**
+     * Returns the cached image of the given file.
+     *
+     * @param location
+     *            the location of the reference image file, see
+     *            {@link ReferenceStore#getLocation(String)}
+     * @param length
+     *            the current size of the file
+     * @param lastModified
+     *            the current modification time of the file
+     * @return the cached image or null if the file is not cached or has
+     *         changed
+     */
+    static BufferedImage get(String location, long length, long lastModified) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(location);
+            if (entry == null || entry.length != length
+                    || entry.lastModified != lastModified) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        // Off-heap entries are immutable so they can be copied unlocked
+        return entry.getImage();
+    }
+
+    /**
+     * Adds an image to the cache, evicting the least recently used images if
+     * needed. Images larger than the whole cache are not cached.
+     *
+     * @param location
+     *            the location of the reference image file, see
+     *            {@link ReferenceStore#getLocation(String)}
+     * @param length
+     *            the size of the file when it was read
+     * @param lastModified
+     *            the modification time of the file when it was read
+     * @param image
+     *            the decoded image, which must not be modified afterwards
+     */
+    static void put(String location, long length, long lastModified,
+            BufferedImage image) {
+        final long budget = Parameters
+                .getScreenshotReferenceCacheMegabytes() * 1024L * 1024L;
+        if ((long) image.getWidth() * image.getHeight() * 4 > budget) {
+            return;
+        }
+        Entry entry = new Entry(length, lastModified, image,
+                Parameters.isScreenshotReferenceCacheOffHeap());
+        synchronized (entries) {
+            Entry previous = entries.put(location, entry);
+            if (previous != null) {
+                size -= previous.bytes;
+            }
+            size += entry.bytes;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (size > budget && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                size -= eldest.bytes;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes all images from the cache. The counters are not reset.
+     */
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public static long getHitCount() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of reads of images not in the cache or changed since
+     *         they were cached
+     */
+    public static long getMissCount() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return the number of images evicted to stay within the memory budget
+     */
+    public static long getEvictionCount() {
+        synchronized (entries) {
+            return evictions;
+        }
+    }
+
+    /**
+     * @return the memory used by the cached images, in bytes
+     */
+    public static long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * @return the number of cached images
+     */
+    public static int getImageCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return a summary of the counters, e.g. for logging at the end of a
+     *         test run
+     */
+    public static String getStatistics() {
+        synchronized (entries) {
+            return "Reference image cache: " + hits + " hits, " + misses
+                    + " misses, " + evictions + " evictions, "
+                    + entries.size() + " images, " + size / 1024 + " kB";
+        }
+    }
+}
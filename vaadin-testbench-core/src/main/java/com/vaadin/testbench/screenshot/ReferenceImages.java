@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.Capabilities;
+
+/**
+ * The reference images a screenshot is compared to, resolved once so that
+ * repeated comparisons to the same reference, e.g. when retrying
+ * {@link com.vaadin.testbench.commands.TestBenchCommands#compareScreen(String)}
+ * , do not list and decode the reference images again. Each image is decoded
+ * the first time it is compared to and kept until this object is discarded.
+ *
+ * @see ImageComparison#getReferenceImages(String, Capabilities)
+ */
+public class ReferenceImages {
+
+    private final String referenceFileId;
+    private final List<String> fileNames;
+    private final Map<String, DecodedImage> images = new LinkedHashMap<String, DecodedImage>();
+    private volatile String matchedFileName = null;
+
+    /**
+     * A reference image decoded on demand. Synchronized per image so that
+     * concurrently compared candidates are decoded in parallel.
+     */
+    private static class DecodedImage {
+        private final String fileName;
+        private BufferedImage image = null;
+
+        DecodedImage(String fileName) {
+            this.fileName = fileName;
+        }
+
+        synchronized BufferedImage get() throws IOException {
+            if (image == null) {
+                image = ImageFileUtil.readReferenceImage(fileName);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Creates the reference images of the given reference.
+     *
+     * @param referenceFileId
+     *            the id of the reference without .png extension
+     * @param fileNames
+     *            the names of the alternative reference image files, the last
+     *            one being the one used for error reports
+     */
+    public ReferenceImages(String referenceFileId, List<String> fileNames) {
+        this.referenceFileId = referenceFileId;
+        this.fileNames = Collections.unmodifiableList(new ArrayList<String>(
+                fileNames));
+        for (String fileName : fileNames) {
+            images.put(fileName, new DecodedImage(fileName));
+        }
+    }
+
+    /**
+     * @return the id of the reference without .png extension
+     */
+    public String getReferenceFileId() {
+        return referenceFileId;
+    }
+
+    /**
+     * @return the names of the reference image files, empty if there is no
+     *         reference image
+     */
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    /**
+     * @return the name of the reference image file that matched the latest
+     *         comparison, or null if no comparison to these reference images
+     *         has matched
+     */
+    public String getMatchedFileName() {
+        return matchedFileName;
+    }
+
+    void setMatchedFileName(String matchedFileName) {
+        this.matchedFileName = matchedFileName;
+    }
+
+    /**
+     * Returns the decoded reference image, decoding it if this is the first
+     * time it is needed.
+     *
+     * @param fileName
+     *            one of the {@link #getFileNames() reference image files}
+     * @return the reference image
+     * @throws IOException
+     *             if the reference image cannot be read
+     */
+    BufferedImage getImage(String fileName) throws IOException {
+        DecodedImage image = images.get(fileName);
+        if (image == null) {
+            return ImageFileUtil.readReferenceImage(fileName);
+        }
+        return image.get();
+    }
+
+    /**
+     * Returns the decoded reference image if it has already been decoded.
+     *
+     * @param fileName
+     *            one of the {@link #getFileNames() reference image files}
+     * @return the reference image or null if it has not been decoded
+     */
+    BufferedImage getDecodedImage(String fileName) {
+        DecodedImage image = images.get(fileName);
+        if (image == null) {
+            return null;
+        }
+        synchronized (image) {
+            return image.image;
+        }
+    }
+}
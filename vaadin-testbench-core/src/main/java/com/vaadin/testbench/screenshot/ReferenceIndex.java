@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * The names of the files in a reference directory, see
+ * {@link Parameters#isScreenshotReferenceIndex()}.
+ * <p>
+ * The directory is listed once and the listing is used for all lookups as
+ * long as the modification time of the directory does not change, so a
+ * lookup costs a single file system call however many names are checked.
+ * Reference images named {@code <id>_<platform>_<browser>_<version>.png}
+ * are also grouped by everything but the version, for finding the reference
+ * image of the newest older browser version without checking every version.
+ */
+class ReferenceIndex {
+
+    /**
+     * A listing is only trusted while the directory has not been modified
+     * for this long when it is listed, as a later modification could
+     * otherwise get the same modification time with coarse file system
+     * timestamps.
+     */
+    private static final long MODIFICATION_MARGIN = 2000;
+
+    private static final Map<String, ReferenceIndex> indexes = new HashMap<String, ReferenceIndex>();
+
+    private final File directory;
+    private long lastModified = 0;
+    private boolean trusted = false;
+    private Set<String> fileNames = Collections.emptySet();
+
+    /**
+     * Versions of the reference images by name without version, built when
+     * first needed.
+     */
+    private Map<String, TreeSet<Integer>> versions = null;
+
+    private ReferenceIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the index of the given directory, shared by all threads.
+     */
+    static ReferenceIndex get(File directory) {
+        String key = directory.getAbsolutePath();
+        synchronized (indexes) {
+            ReferenceIndex index = indexes.get(key);
+            if (index == null) {
+                index = new ReferenceIndex(directory.getAbsoluteFile());
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return true if the directory contains a file with the given name
+     */
+    synchronized boolean contains(String fileName) {
+        refresh();
+        return fileNames.contains(fileName);
+    }
+
+    /**
+     * Finds the newest version of a reference image older than the given
+     * version.
+     *
+     * @param name
+     *            the name of the reference image without the version and
+     *            extension, i.e. {@code <id>_<platform>_<browser>}
+     * @param version
+     *            the browser version
+     * @return the newest version, at least 1, for which there is a reference
+     *         image or -1 if there is none
+     */
+    synchronized int findOlderVersion(String name, int version) {
+        refresh();
+        if (versions == null) {
+            versions = groupVersions(fileNames);
+        }
+        TreeSet<Integer> nameVersions = versions.get(name);
+        if (nameVersions == null) {
+            return -1;
+        }
+        Integer older = nameVersions.lower(version);
+        return older != null && older > 0 ? older : -1;
+    }
+
+    private void refresh() {
+        final long modified = directory.lastModified();
+        if (trusted && modified == lastModified) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        String[] names = directory.list();
+        fileNames = names == null ? Collections.<String> emptySet()
+                : new HashSet<String>(Arrays.asList(names));
+        versions = null;
+        lastModified = modified;
+        trusted = names != null && now - modified > MODIFICATION_MARGIN;
+    }
+
+    private static Map<String, TreeSet<Integer>> groupVersions(
+            Set<String> fileNames) {
+        Map<String, TreeSet<Integer>> versions = new HashMap<String, TreeSet<Integer>>();
+        for (String fileName : fileNames) {
+            if (!fileName.endsWith(".png")) {
+                continue;
+            }
+            String base = fileName.substring(0, fileName.length() - 4);
+            int separator = base.lastIndexOf('_');
+            if (separator <= 0) {
+                continue;
+            }
+            int version = parseVersion(base.substring(separator + 1));
+            String name = base.substring(0, separator);
+            // Alternative reference images (name_1.png etc.) have a number
+            // after the version
+            if (version < 0
+                    || parseVersion(name.substring(name.lastIndexOf('_') + 1)) >= 0) {
+                continue;
+            }
+            TreeSet<Integer> nameVersions = versions.get(name);
+            if (nameVersions == null) {
+                nameVersions = new TreeSet<Integer>();
+                versions.put(name, nameVersions);
+            }
+            nameVersions.add(version);
+        }
+        return versions;
+    }
+
+    /**
+     * @return the version number or -1 if the string is not a version
+     *         number as written in reference image names
+     */
+    private static int parseVersion(String digits) {
+        if (digits.isEmpty() || digits.length() > 9
+                || (digits.length() > 1 && digits.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(digits);
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Reads the reference images of upcoming tests into the
+ * {@link ReferenceImageCache} in the background, see
+ * {@link Parameters#isScreenshotReferencePrefetch()}.
+ * <p>
+ * The reference images compared to by each test are recorded in a manifest,
+ * one record per test and reference image. When the tests are run again,
+ * their reference images are decoded by a background thread in the order the
+ * tests were listed, so that they are usually in the cache by the time the
+ * tests compare screenshots. Reference images that no longer exist are
+ * skipped when prefetching.
+ * <p>
+ * For a {@link DirectoryReferenceStore}, the manifest is stored in the
+ * {@link RecordFile} {@value #FILE_NAME} in its directory. For other
+ * reference stores the manifest is only kept in memory.
+ */
+public class ReferencePrefetcher {
+
+    static final String FILE_NAME = ".reference-manifest";
+
+    /**
+     * The reference images used by each test by reference store location,
+     * keyed by test.
+     */
+    private static final Map<String, Map<String, Set<String>>> stores = new HashMap<String, Map<String, Set<String>>>();
+
+    /**
+     * The locations of the reference images already queued for prefetching,
+     * so that tests listed several times are only prefetched once.
+     */
+    private static final Set<String> queued = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ThreadLocal<String> currentTest = new ThreadLocal<String>();
+
+    private static ExecutorService executor;
+
+    private ReferencePrefetcher() {
+        // Static utility methods only
+    }
+
+    /**
+     * Sets the test run by the current thread, for recording the reference
+     * images it uses.
+     *
+     * @param test
+     *            a name identifying the test and the browser it is run on,
+     *            or null when the thread no longer runs a test
+     */
+    public static void setCurrentTest(String test) {
+        if (test == null) {
+            currentTest.remove();
+        } else {
+            currentTest.set(test);
+        }
+    }
+
+    /**
+     * Records that the test run by the current thread compares to the given
+     * reference images. Failures to store the record are logged and otherwise
+     * ignored.
+     *
+     * @param references
+     *            the reference images compared to
+     */
+    public static void recordUsed(ReferenceImages references) {
+        final String test = currentTest.get();
+        if (test == null || !Parameters.isScreenshotReferencePrefetch()) {
+            return;
+        }
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        Map<String, Set<String>> manifest = getManifest(store);
+        List<String> records = new ArrayList<String>();
+        synchronized (manifest) {
+            Set<String> fileNames = manifest.get(test);
+            if (fileNames == null) {
+                fileNames = new LinkedHashSet<String>();
+                manifest.put(test, fileNames);
+            }
+            for (String fileName : references.getFileNames()) {
+                if (fileNames.add(fileName)) {
+                    records.add(toRecord(test, fileName));
+                }
+            }
+        }
+
+        RecordFile manifestFile = getManifestFile(store);
+        if (manifestFile != null && !records.isEmpty()) {
+            manifestFile.append(records);
+        }
+    }
+
+    /**
+     * Starts reading the reference images recorded for the given tests into
+     * the reference image cache in the background. Does nothing unless
+     * prefetching and the reference image cache are in use.
+     *
+     * @param tests
+     *            the tests about to be run, in the order they are run
+     * @return the number of reference images queued for prefetching
+     */
+    public static int prefetch(List<String> tests) {
+        if (!Parameters.isScreenshotReferencePrefetch()
+                || !ReferenceImageCache.isEnabled()) {
+            return 0;
+        }
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        Map<String, Set<String>> manifest = getManifest(store);
+        int count = 0;
+        for (String test : tests) {
+            String[] fileNames;
+            synchronized (manifest) {
+                Set<String> used = manifest.get(test);
+                if (used == null) {
+                    continue;
+                }
+                fileNames = used.toArray(new String[used.size()]);
+            }
+            for (final String fileName : fileNames) {
+                if (!queued.add(store.getLocation(fileName))) {
+                    continue;
+                }
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        read(fileName);
+                    }
+                });
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits until the reference images queued so far have been prefetched.
+     *
+     * @param timeoutMillis
+     *            the longest time to wait, in milliseconds
+     * @return true if the queued reference images have been prefetched,
+     *         false if the time ran out
+     */
+    static boolean awaitPrefetched(long timeoutMillis)
+            throws InterruptedException {
+        try {
+            getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    // Run after the queued reference images
+                }
+            }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Removes the loaded manifests from memory so that they are read again
+     * from the reference directory when needed, and allows prefetching the
+     * same reference images again. Manifests of other reference stores are
+     * lost.
+     */
+    public static void clear() {
+        synchronized (stores) {
+            stores.clear();
+        }
+        queued.clear();
+    }
+
+    private static void read(String fileName) {
+        try {
+            if (ImageFileUtil.getReferenceStore().exists(fileName)) {
+                ImageFileUtil.readReferenceImage(fileName);
+            }
+        } catch (IOException e) {
+            // The test reports the problem if it still uses the reference
+            getLogger().log(Level.FINE,
+                    "Could not prefetch reference image " + fileName, e);
+        } catch (RuntimeException e) {
+            getLogger().log(Level.FINE,
+                    "Could not prefetch reference image " + fileName, e);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "reference-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return the file the manifest of the store is kept in or null if it is
+     *         only kept in memory
+     */
+    private static RecordFile getManifestFile(ReferenceStore store) {
+        if (!(store instanceof DirectoryReferenceStore)) {
+            return null;
+        }
+        return new RecordFile(new File(
+                ((DirectoryReferenceStore) store).getDirectory(), FILE_NAME),
+                "reference image manifest");
+    }
+
+    private static Map<String, Set<String>> getManifest(ReferenceStore store) {
+        String key = store.getLocation(FILE_NAME);
+        synchronized (stores) {
+            Map<String, Set<String>> manifest = stores.get(key);
+            if (manifest == null) {
+                manifest = new HashMap<String, Set<String>>();
+                RecordFile manifestFile = getManifestFile(store);
+                if (manifestFile != null) {
+                    read(manifestFile, manifest);
+                }
+                stores.put(key, manifest);
+            }
+            return manifest;
+        }
+    }
+
+    private static void read(RecordFile manifestFile,
+            final Map<String, Set<String>> manifest) {
+        int lines = manifestFile.read(new RecordFile.RecordHandler() {
+            @Override
+            public void handle(String record) {
+                // test fileName
+                String[] fields = record.split("\t", 2);
+                if (fields.length != 2 || fields[1].isEmpty()) {
+                    return;
+                }
+                Set<String> fileNames = manifest.get(fields[0]);
+                if (fileNames == null) {
+                    fileNames = new LinkedHashSet<String>();
+                    manifest.put(fields[0], fileNames);
+                }
+                fileNames.add(fields[1]);
+            }
+        });
+        int liveRecords = 0;
+        for (Set<String> fileNames : manifest.values()) {
+            liveRecords += fileNames.size();
+        }
+        if (RecordFile.isMostlySuperseded(lines, liveRecords)) {
+            List<String> records = new ArrayList<String>();
+            for (Map.Entry<String, Set<String>> entry : manifest.entrySet()) {
+                for (String fileName : entry.getValue()) {
+                    records.add(toRecord(entry.getKey(), fileName));
+                }
+            }
+            manifestFile.rewrite(records);
+        }
+    }
+
+    private static String toRecord(String test, String fileName) {
+        return test + "\t" + fileName;
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ReferencePrefetcher.class.getName());
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The location reference images are read from. By default reference images
+ * are files in {@link com.vaadin.testbench.Parameters#getScreenshotReferenceDirectory()},
+ * see {@link DirectoryReferenceStore}. They can also be read from the
+ * classpath with {@link ClasspathReferenceStore} or from a single packed
+ * file with {@link ArchiveReferenceStore}.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @see com.vaadin.testbench.Parameters#getScreenshotReferenceStore()
+ * @see ImageFileUtil#setReferenceStore(ReferenceStore)
+ */
+public interface ReferenceStore {
+
+    /**
+     * @param fileName
+     *            the file name of a reference image, e.g.
+     *            {@code button_windows_firefox_45.png}
+     * @return true if the reference image exists
+     */
+    boolean exists(String fileName);
+
+    /**
+     * Opens a reference image for reading.
+     *
+     * @param fileName
+     *            the file name of the reference image
+     * @return the PNG data of the reference image, to be closed by the caller
+     * @throws IOException
+     *             if the reference image does not exist or cannot be read
+     */
+    InputStream open(String fileName) throws IOException;
+
+    /**
+     * @param fileName
+     *            the file name of the reference image
+     * @return the size of the reference image in bytes or 0 if it does not
+     *         exist
+     */
+    long getLength(String fileName);
+
+    /**
+     * Returns the modification time of the reference image. A reference
+     * image with the same length and modification time is assumed not to
+     * have changed, e.g. by caches of decoded reference images.
+     *
+     * @param fileName
+     *            the file name of the reference image
+     * @return the modification time in milliseconds since the epoch or 0 if
+     *         unknown
+     */
+    long getLastModified(String fileName);
+
+    /**
+     * @param fileName
+     *            the file name of the reference image
+     * @return a description of where the reference image is stored, unique
+     *         among all stores, e.g. its path
+     */
+    String getLocation(String fileName);
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+/**
+ * 64-bit hashes of pixel rows. Rows with different hashes always differ, rows
+ * with equal hashes are equal unless the hashes collide.
+ */
+class RowHashes {
+
+    private RowHashes() {
+        // Static utility methods only
+    }
+
+    /**
+     * Calculates the hash of a part of one row of the given image.
+     *
+     * @param image
+     *            the image
+     * @param y
+     *            the row
+     * @param firstColumn
+     *            the first column to include
+     * @param lastColumn
+     *            the column after the last column to include
+     * @return the hash of the pixels in the row
+     */
+    static long hashRow(PackedImage image, int y, int firstColumn,
+            int lastColumn) {
+        final int[] pixels = image.getPixels();
+        final int rowStart = image.getOffset() + y * image.getScanlineStride();
+        int index = rowStart + firstColumn;
+        final int end = rowStart + lastColumn;
+        long hash = 0;
+        while (index < end) {
+            hash = (hash + pixels[index++]) * 0x9e3779b97f4a7c15L;
+        }
+        return ImagePyramid.mix(hash);
+    }
+}
@@ -14,6 +14,7 @@ package com.vaadin.testbench.screenshot;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -25,16 +26,63 @@ import javax.imageio.ImageIO;
 
 public class ScreenShotFailureReporter {
     private final BufferedImage referenceImage;
-    private final boolean[][] falseBlocks;
+    private final BlockBitmap falseBlocks;
     private final int xBlocks;
     private final int yBlocks;
+    private final int blockSize;
+    private ImageShift imageShift;
 
+    /**
+     * @deprecated Use
+     *             {@link #ScreenShotFailureReporter(BufferedImage, BlockBitmap, int)}
+     */
+    @Deprecated
     public ScreenShotFailureReporter(BufferedImage referenceImage,
             boolean[][] falseBlocks) {
+        this(referenceImage, BlockBitmap.of(falseBlocks),
+                ImageComparisonUtil.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @deprecated Use
+     *             {@link #ScreenShotFailureReporter(BufferedImage, BlockBitmap, int)}
+     */
+    @Deprecated
+    public ScreenShotFailureReporter(BufferedImage referenceImage,
+            boolean[][] falseBlocks, int blockSize) {
+        this(referenceImage, BlockBitmap.of(falseBlocks), blockSize);
+    }
+
+    /**
+     * @param referenceImage
+     *            the reference image
+     * @param falseBlocks
+     *            the blocks that differ from the reference. The bitmap is
+     *            cleared while creating the report.
+     * @param blockSize
+     *            the size of the comparison blocks
+     */
+    public ScreenShotFailureReporter(BufferedImage referenceImage,
+            BlockBitmap falseBlocks, int blockSize) {
         this.referenceImage = referenceImage;
         this.falseBlocks = falseBlocks;
-        xBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getWidth());
-        yBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getHeight());
+        this.blockSize = blockSize;
+        xBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getWidth(),
+                blockSize);
+        yBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getHeight(),
+                blockSize);
+    }
+
+    /**
+     * Sets the shifted content found in the screenshot. The shifted area is
+     * outlined and described as one region, so the false blocks given to the
+     * reporter should not include the blocks explained by the shift.
+     *
+     * @param imageShift
+     *            the shift or null if no shifted content was found
+     */
+    void setImageShift(ImageShift imageShift) {
+        this.imageShift = imageShift;
     }
 
     public void createErrorImageAndHTML(String fileName,
@@ -50,10 +98,15 @@ public class ScreenShotFailureReporter {
         }
 
         // collect big error blocks of differences
-        List<ErrorBlock> errorAreas = collectErrorsToList(xBlocks, yBlocks);
+        List<ErrorBlock> errorAreas = collectErrorsToList(falseBlocks,
+                xBlocks, yBlocks);
 
         // Draw boxes around blocks that differ
-        drawErrorsToImage(errorAreas, screenshotImage);
+        drawErrorsToImage(errorAreas, screenshotImage, Color.MAGENTA);
+        if (imageShift != null) {
+            // The shifted content is outlined as a whole
+            drawShiftToImage(imageShift, screenshotImage);
+        }
 
         createDiffHtml(errorAreas, fileName, screenshotImage, referenceImage);
     }
@@ -67,10 +120,11 @@ public class ScreenShotFailureReporter {
      * @param yBlocks
      *            Amount of macroblocks in y direction
      * @param falseBlocks
-     *            Map of false blocks
+     *            Map of false blocks, cleared while collecting
      * @return List of ErrorBlocks
      */
-    private List<ErrorBlock> collectErrorsToList(int xBlocks, int yBlocks) {
+    private List<ErrorBlock> collectErrorsToList(BlockBitmap falseBlocks,
+            int xBlocks, int yBlocks) {
         List<ErrorBlock> errorAreas = new LinkedList<ErrorBlock>();
 
         // run through blocks for marked errors for macroblocks.
@@ -79,12 +133,12 @@ public class ScreenShotFailureReporter {
                 // if found error make new ErrorBlock and collect
                 // connected error blocks and mark them false so
                 // that they won't trigger new errors
-                if (falseBlocks[x][y]) {
+                if (falseBlocks.get(x, y)) {
                     ErrorBlock newBlock = new ErrorBlock();
-                    newBlock.setX(x * 16);
-                    newBlock.setY(y * 16);
+                    newBlock.setX(x * blockSize);
+                    newBlock.setY(y * blockSize);
                     int x1 = x, xmin = x, y1 = y, maxSteps = xBlocks * yBlocks, steps = 0;
-                    falseBlocks[x][y] = false;
+                    falseBlocks.clear(x, y);
 
                     // This'll confirm logic errors.
                     while (true) {
@@ -98,9 +152,9 @@ public class ScreenShotFailureReporter {
                         }
 
                         // if x1,y1 marked true add width to ErrorBlock
-                        if (falseBlocks[x1][y1]) {
+                        if (falseBlocks.get(x1, y1)) {
                             newBlock.addXBlock();
-                            falseBlocks[x1][y1] = false;
+                            falseBlocks.clear(x1, y1);
                         } else if (y1 < yBlocks) {
                             x1 = xmin;
 
@@ -113,7 +167,7 @@ public class ScreenShotFailureReporter {
                                     break;
                                 }
 
-                                if (falseBlocks[foundX][y1 + 1]) {
+                                if (falseBlocks.get(foundX, y1 + 1)) {
                                     foundConnectedBlock = true;
                                 }
                             }
@@ -128,11 +182,12 @@ public class ScreenShotFailureReporter {
                                 // row is false change block x
                                 // position
                                 if (x1 - 1 >= 0) {
-                                    while (falseBlocks[x1 - 1][y1]) {
-                                        falseBlocks[x1 - 1][y1] = false;
+                                    while (falseBlocks.get(x1 - 1, y1)) {
+                                        falseBlocks.clear(x1 - 1, y1);
                                         newBlock.addXBlock();
                                         x1 = x1 - 1;
-                                        newBlock.setX(newBlock.getX() - 16);
+                                        newBlock.setX(newBlock.getX()
+                                                - blockSize);
                                         if (x1 == 0) {
                                             break;
                                         }
@@ -144,15 +199,15 @@ public class ScreenShotFailureReporter {
                                 // block for this error
                                 x1 = x1 + newBlock.getXBlocks() - 1;
                             } else {
-                                x1 = newBlock.getX() / 16;
-                                y1 = newBlock.getY() / 16;
+                                x1 = newBlock.getX() / blockSize;
+                                y1 = newBlock.getY() / blockSize;
                                 // Set all blocks to false
                                 // inside found box
                                 for (int j = 0; j < newBlock.getYBlocks(); j++) {
                                     for (int i = 0; i < newBlock.getXBlocks(); i++) {
                                         if (x1 + i < xBlocks
                                                 && y1 + j < yBlocks) {
-                                            falseBlocks[x1 + i][y1 + j] = false;
+                                            falseBlocks.clear(x1 + i, y1 + j);
                                         }
                                     }
                                 }
@@ -174,11 +229,11 @@ public class ScreenShotFailureReporter {
     }
 
     private void drawErrorsToImage(List<ErrorBlock> errorAreas,
-            BufferedImage screenshotImage) {
+            BufferedImage screenshotImage, Color color) {
         // Draw lines around false ErrorBlocks before saving _diff
         // file.
         Graphics2D drawToPicture = screenshotImage.createGraphics();
-        drawToPicture.setColor(Color.MAGENTA);
+        drawToPicture.setColor(color);
 
         int width = screenshotImage.getWidth();
         int height = screenshotImage.getHeight();
@@ -191,13 +246,15 @@ public class ScreenShotFailureReporter {
             if (error.getY() > 0) {
                 offsetY = 1;
             }
-            int toX = error.getXBlocks() * 16 + offsetX;
-            int toY = error.getYBlocks() * 16 + offsetY;
+            int toX = error.getXBlocks() * blockSize + offsetX;
+            int toY = error.getYBlocks() * blockSize + offsetY;
             // Draw lines inside canvas
-            if ((error.getX() + (error.getXBlocks() * 16) + offsetX) > width) {
+            if ((error.getX() + (error.getXBlocks() * blockSize)
+                    + offsetX) > width) {
                 toX = width - error.getX();
             }
-            if ((error.getY() + (error.getYBlocks() * 16) + offsetY) > height) {
+            if ((error.getY() + (error.getYBlocks() * blockSize)
+                    + offsetY) > height) {
                 toY = height - error.getY();
             }
 
@@ -210,6 +267,16 @@ public class ScreenShotFailureReporter {
         drawToPicture.dispose();
     }
 
+    private void drawShiftToImage(ImageShift shift,
+            BufferedImage screenshotImage) {
+        Rectangle area = shift.getArea();
+        Graphics2D drawToPicture = screenshotImage.createGraphics();
+        drawToPicture.setColor(Color.ORANGE);
+        drawToPicture.drawRect(area.x, area.y, area.width - 1,
+                area.height - 1);
+        drawToPicture.dispose();
+    }
+
     /**
      * Build a small html file that has mouse over picture change for fast
      * checking of errors and click on picture to switch between reference and
@@ -228,6 +295,10 @@ public class ScreenShotFailureReporter {
             BufferedImage screenshotImage, BufferedImage referenceImage) {
         String image = ImageUtil.encodeImageToBase64(screenshotImage);
         String ref_image = ImageUtil.encodeImageToBase64(referenceImage);
+        String caption = "Image for this run";
+        if (imageShift != null) {
+            caption += ". " + imageShift;
+        }
         try {
             PrintWriter writer = new PrintWriter(
                     ImageFileUtil.getErrorScreenshotFile(fileId + ".html"));
@@ -244,7 +315,8 @@ public class ScreenShotFailureReporter {
 
             writer.println("<div id=\"diff\" style=\"display: block; position: absolute; top: 0px; left: 0px;\"><img src=\"data:image/png;base64,"
                     + image
-                    + "\"/><span style=\"position: absolute; top: 0px; left: 0px; opacity:0.4; filter: alpha(opacity=40); font-weight: bold;\">Image for this run</span></div>");
+                    + "\"/><span style=\"position: absolute; top: 0px; left: 0px; opacity:0.4; filter: alpha(opacity=40); font-weight: bold;\">"
+                    + caption + "</span></div>");
             writer.println("<div id=\"reference\" style=\"display: none; position: absolute; top: 0px; left: 0px; z-index: 999;\"><img src=\"data:image/png;base64,"
                     + ref_image + "\"/></div>");
 
@@ -264,9 +336,9 @@ public class ScreenShotFailureReporter {
                         + id
                         + "').style.display='block'\"  style=\"z-index: 66;position: absolute; top: 0px; left: 0px; clip: rect("
                         + (error.getY() - offsetY) + "px,"
-                        + (error.getX() + (error.getXBlocks() * 16) + 1)
+                        + (error.getX() + (error.getXBlocks() * blockSize) + 1)
                         + "px,"
-                        + (error.getY() + (error.getYBlocks() * 16) + 1)
+                        + (error.getY() + (error.getYBlocks() * blockSize) + 1)
                         + "px," + (error.getX() - offsetX)
                         + "px);\"><img src=\"data:image/png;base64," + image
                         + "\"/></div>");
@@ -276,9 +348,9 @@ public class ScreenShotFailureReporter {
                         + "\"  style=\"display: none; position: absolute; top: 0px; left: 0px; clip: rect("
                         + (error.getY() - offsetY)
                         + "px,"
-                        + (error.getX() + (error.getXBlocks() * 16) + 1)
+                        + (error.getX() + (error.getXBlocks() * blockSize) + 1)
                         + "px,"
-                        + (error.getY() + (error.getYBlocks() * 16) + 1)
+                        + (error.getY() + (error.getYBlocks() * blockSize) + 1)
                         + "px,"
                         + (error.getX() - offsetX)
                         + "px); z-index: "
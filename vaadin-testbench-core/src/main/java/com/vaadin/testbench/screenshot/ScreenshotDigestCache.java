@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Digests of screenshots that have matched a reference image, see
+ * {@link Parameters#isScreenshotDigestCache()}.
+ * <p>
+ * A screenshot whose PNG data is identical to a screenshot that has already
+ * matched a reference image matches it again, as long as the reference image
+ * file has not changed and the comparison settings are the same. Such
+ * screenshots are accepted by comparing the digest of the PNG data, without
+ * decoding or comparing the images.
+ * <p>
+ * For a {@link DirectoryReferenceStore}, the digests are stored in the
+ * {@link RecordFile} {@value #FILE_NAME} in its directory, one record per
+ * accepted screenshot and reference image. For other reference stores the
+ * digests are only kept in memory.
+ */
+public class ScreenshotDigestCache {
+
+    static final String FILE_NAME = ".screenshot-digests";
+
+    /**
+     * Accepted screenshots by reference store location, keyed by digest and
+     * reference file name.
+     */
+    private static final Map<String, Map<String, Entry>> stores = new HashMap<String, Map<String, Entry>>();
+
+    private static class Entry {
+        private final String settings;
+        private final long length;
+        private final long lastModified;
+
+        Entry(String settings, long length, long lastModified) {
+            this.settings = settings;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private ScreenshotDigestCache() {
+        // Static utility methods only
+    }
+
+    /**
+     * Checks whether an identical screenshot has already matched one of the
+     * given reference images with the current comparison settings.
+     *
+     * @param screenshotPng
+     *            the screenshot as PNG
+     * @param references
+     *            the reference images to compare to
+     * @param errorTolerance
+     *            the error tolerance the screenshot is compared with
+     * @return true if the screenshot is known to match, false if it needs to
+     *         be compared
+     */
+    public static boolean isAccepted(byte[] screenshotPng,
+            ReferenceImages references, double errorTolerance) {
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        Map<String, Entry> entries = getEntries(store);
+        if (entries.isEmpty()) {
+            return false;
+        }
+        final String digest = digest(screenshotPng);
+        final String settings = getSettings(errorTolerance);
+        for (String fileName : references.getFileNames()) {
+            Entry entry = entries.get(digest + " " + fileName);
+            if (entry != null && entry.settings.equals(settings)
+                    && store.getLength(fileName) == entry.length
+                    && store.getLastModified(fileName) == entry.lastModified) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the screenshot has matched a reference image, see
+     * {@link ReferenceImages#getMatchedFileName()}. Failures to store the
+     * digest are logged and otherwise ignored.
+     *
+     * @param screenshotPng
+     *            the screenshot as PNG
+     * @param referenceFileName
+     *            the name of the matched reference image file
+     * @param errorTolerance
+     *            the error tolerance the screenshot was compared with
+     */
+    public static void addAccepted(byte[] screenshotPng,
+            String referenceFileName, double errorTolerance) {
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        final long length = store.getLength(referenceFileName);
+        final long lastModified = store.getLastModified(referenceFileName);
+        // Without a modification time a changed reference image would not
+        // be noticed
+        if (length == 0 || lastModified == 0) {
+            return;
+        }
+        final String key = digest(screenshotPng) + " " + referenceFileName;
+        Entry entry = new Entry(getSettings(errorTolerance), length,
+                lastModified);
+        getEntries(store).put(key, entry);
+
+        RecordFile digestFile = getDigestFile(store);
+        if (digestFile != null) {
+            digestFile.append(Collections.singletonList(toRecord(key, entry)));
+        }
+    }
+
+    /**
+     * Removes the loaded digests from memory so that they are read again
+     * from the reference directory when needed. Digests of other reference
+     * stores are lost.
+     */
+    public static void clear() {
+        synchronized (stores) {
+            stores.clear();
+        }
+    }
+
+    /**
+     * @return the file the digests of the store are kept in or null if they
+     *         are only kept in memory
+     */
+    private static RecordFile getDigestFile(ReferenceStore store) {
+        if (!(store instanceof DirectoryReferenceStore)) {
+            return null;
+        }
+        return new RecordFile(new File(
+                ((DirectoryReferenceStore) store).getDirectory(), FILE_NAME),
+                "screenshot digests");
+    }
+
+    private static Map<String, Entry> getEntries(ReferenceStore store) {
+        String key = store.getLocation(FILE_NAME);
+        synchronized (stores) {
+            Map<String, Entry> entries = stores.get(key);
+            if (entries == null) {
+                entries = new ConcurrentHashMap<String, Entry>();
+                RecordFile digestFile = getDigestFile(store);
+                if (digestFile != null) {
+                    read(digestFile, entries);
+                }
+                stores.put(key, entries);
+            }
+            return entries;
+        }
+    }
+
+    private static void read(RecordFile digestFile,
+            final Map<String, Entry> entries) {
+        int lines = digestFile.read(new RecordFile.RecordHandler() {
+            @Override
+            public void handle(String record) {
+                // digest settings length lastModified name
+                String[] fields = record.split(" ", 5);
+                if (fields.length != 5) {
+                    return;
+                }
+                try {
+                    entries.put(fields[0] + " " + fields[4], new Entry(
+                            fields[1], Long.parseLong(fields[2]), Long
+                                    .parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    // Not written by this version
+                }
+            }
+        });
+        if (RecordFile.isMostlySuperseded(lines, entries.size())) {
+            List<String> records = new ArrayList<String>();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                records.add(toRecord(entry.getKey(), entry.getValue()));
+            }
+            digestFile.rewrite(records);
+        }
+    }
+
+    private static String toRecord(String key, Entry entry) {
+        int separator = key.indexOf(' ');
+        return key.substring(0, separator) + " " + entry.settings + " "
+                + entry.length + " " + entry.lastModified + " "
+                + key.substring(separator + 1);
+    }
+
+    /**
+     * Returns the settings that affect whether a screenshot matches a
+     * reference image. A screenshot is only accepted again with the same
+     * settings.
+     */
+    private static String getSettings(double errorTolerance) {
+        return errorTolerance + ","
+                + Parameters.isScreenshotComparisonCursorDetection() + ","
+                + Parameters.getScreenshotComparisonBlockSize() + ","
+                + Parameters.isScreenshotComparisonAdaptiveBlockSize() + ","
+                + Parameters.isScreenshotComparisonPyramid();
+    }
+
+    /**
+     * Returns the length, CRC-32 and Adler-32 checksums of the data. Both
+     * checksums are computed by the JVM at memory speed, which matters as
+     * the digest is computed for every screenshot. The screenshots are not
+     * adversarial, so the combined 64 bits and the length are enough to tell
+     * them apart.
+     */
+    private static String digest(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return Integer.toHexString(data.length) + "-"
+                + Long.toHexString(crc.getValue()) + "-"
+                + Long.toHexString(adler.getValue());
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+
+/**
+ * Finds the most likely vertical or horizontal translation of the content in
+ * an area of a screenshot by aligning row and column hashes of the screenshot
+ * with those of the reference image. The offsets found are only candidates
+ * and must be verified by comparing the pixels.
+ */
+class ShiftDetector {
+
+    private ShiftDetector() {
+        // Static utility methods only
+    }
+
+    /**
+     * Finds the vertical offset at which most rows of the given area of the
+     * reference are found in the screenshot. Only the columns of the area
+     * are hashed so content next to the area does not need to move along.
+     *
+     * @param reference
+     *            the reference image
+     * @param screenshot
+     *            the screenshot, of the same size as the reference
+     * @param area
+     *            the differing area
+     * @param maxShift
+     *            the largest offset to look for
+     * @return the offset, positive if the content has moved down, or 0 if no
+     *         offset matches more rows than the unshifted area
+     */
+    static int findVerticalShift(PackedImage reference,
+            PackedImage screenshot, Rectangle area, int maxShift) {
+        final int height = reference.getHeight();
+        final long[] refHashes = new long[height];
+        final long[] ssHashes = new long[height];
+        for (int y = 0; y < height; y++) {
+            refHashes[y] = RowHashes.hashRow(reference, y, area.x, area.x
+                    + area.width);
+            ssHashes[y] = RowHashes.hashRow(screenshot, y, area.x, area.x
+                    + area.width);
+        }
+        return findBestOffset(refHashes, ssHashes, area.y, area.y
+                + area.height, maxShift);
+    }
+
+    /**
+     * Finds the horizontal offset at which most columns of the given area of
+     * the reference are found in the screenshot. Only the rows of the area
+     * are hashed.
+     *
+     * @param reference
+     *            the reference image
+     * @param screenshot
+     *            the screenshot, of the same size as the reference
+     * @param area
+     *            the differing area
+     * @param maxShift
+     *            the largest offset to look for
+     * @return the offset, positive if the content has moved right, or 0 if no
+     *         offset matches more columns than the unshifted area
+     */
+    static int findHorizontalShift(PackedImage reference,
+            PackedImage screenshot, Rectangle area, int maxShift) {
+        final long[] refHashes = hashColumns(reference, area.y, area.y
+                + area.height);
+        final long[] ssHashes = hashColumns(screenshot, area.y, area.y
+                + area.height);
+        return findBestOffset(refHashes, ssHashes, area.x, area.x
+                + area.width, maxShift);
+    }
+
+    /**
+     * Calculates the hashes of all columns of the given rows. The image is
+     * read row by row.
+     */
+    private static long[] hashColumns(PackedImage image, int firstRow,
+            int lastRow) {
+        final int width = image.getWidth();
+        final int[] pixels = image.getPixels();
+        final long[] hashes = new long[width];
+        for (int y = firstRow; y < lastRow; y++) {
+            final int row = image.getOffset() + y * image.getScanlineStride();
+            for (int x = 0; x < width; x++) {
+                hashes[x] = (hashes[x] + pixels[row + x]) * 0x9e3779b97f4a7c15L;
+            }
+        }
+        for (int x = 0; x < width; x++) {
+            hashes[x] = ImagePyramid.mix(hashes[x]);
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds the offset d for which {@code reference[i] == screenshot[i + d]}
+     * holds for most i from {@code first} to {@code last}, preferring
+     * smaller offsets.
+     */
+    private static int findBestOffset(long[] reference, long[] screenshot,
+            int first, int last, int maxShift) {
+        int bestOffset = 0;
+        int bestMatches = countMatches(reference, screenshot, first, last, 0);
+        for (int distance = 1; distance <= maxShift; distance++) {
+            for (int offset : new int[] { distance, -distance }) {
+                int matches = countMatches(reference, screenshot, first,
+                        last, offset);
+                if (matches > bestMatches) {
+                    bestMatches = matches;
+                    bestOffset = offset;
+                }
+            }
+        }
+        return bestOffset;
+    }
+
+    private static int countMatches(long[] reference, long[] screenshot,
+            int first, int last, int offset) {
+        int matches = 0;
+        final int start = Math.max(first, -offset);
+        final int end = Math.min(last, screenshot.length - offset);
+        for (int i = start; i < end; i++) {
+            if (reference[i] == screenshot[i + offset]) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import com.vaadin.testbench.screenshot.ImageComparison.ComparisonParameters;
+
+/**
+ * Compares a PNG encoded screenshot to a reference image without decoding
+ * the images first. The images are decoded and compared one row of blocks
+ * at a time, so only a few rows of each image are in memory at once, and
+ * the comparison stops at the first row of blocks that differs.
+ */
+class StreamedComparison {
+
+    private final ImageComparison comparison;
+    private final double errorTolerance;
+
+    /**
+     * @param comparison
+     *            the comparison comparing the rows of blocks
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     */
+    StreamedComparison(ImageComparison comparison, double errorTolerance) {
+        this.comparison = comparison;
+        this.errorTolerance = errorTolerance;
+    }
+
+    /**
+     * Compares a reference image file to a screenshot row of blocks by row
+     * of blocks, stopping at the first row exceeding the error tolerance.
+     * Cursor detection is not done.
+     *
+     * @param references
+     *            the reference images
+     * @param referenceFileName
+     *            the reference image to compare to, read from the reference
+     *            store unless already decoded
+     * @param screenshotPng
+     *            the screenshot as PNG
+     * @return true if the images are equal, false if they differ or cannot
+     *         be decoded row by row
+     * @throws IOException
+     *             if the reference image cannot be read
+     */
+    boolean imagesEqual(ReferenceImages references, String referenceFileName,
+            byte[] screenshotPng) throws IOException {
+        BufferedImage referenceImage = references
+                .getDecodedImage(referenceFileName);
+        if (referenceImage != null) {
+            // Decoded by a previous comparison, only the screenshot is
+            // streamed
+            PngRowReader screenshot = PngRowReader
+                    .open(new ByteArrayInputStream(screenshotPng));
+            if (screenshot == null) {
+                return false;
+            }
+            try {
+                if (referenceImage.getWidth() != screenshot.getWidth()
+                        || referenceImage.getHeight() != screenshot
+                                .getHeight()) {
+                    return false;
+                }
+                return imagesEqual(null, referenceImage, screenshot);
+            } finally {
+                screenshot.close();
+            }
+        }
+
+        InputStream referenceStream = new BufferedInputStream(ImageFileUtil
+                .getReferenceStore().open(referenceFileName));
+        PngRowReader reference = null;
+        PngRowReader screenshot = null;
+        try {
+            reference = PngRowReader.open(referenceStream);
+            screenshot = PngRowReader.open(new ByteArrayInputStream(
+                    screenshotPng));
+            if (reference == null || screenshot == null
+                    || reference.getWidth() != screenshot.getWidth()
+                    || reference.getHeight() != screenshot.getHeight()) {
+                return false;
+            }
+            return imagesEqual(reference, null, screenshot);
+        } finally {
+            if (reference != null) {
+                reference.close();
+            }
+            if (screenshot != null) {
+                screenshot.close();
+            }
+            referenceStream.close();
+        }
+    }
+
+    /**
+     * Compares the rows of the reference, read either from the reference
+     * reader or the decoded reference image, to the rows of the screenshot.
+     */
+    private boolean imagesEqual(PngRowReader reference,
+            BufferedImage referenceImage, PngRowReader screenshot)
+            throws IOException {
+        final int width = screenshot.getWidth();
+        final int height = screenshot.getHeight();
+        final boolean referenceAlpha = reference != null ? reference
+                .hasAlpha() : referenceImage.getColorModel().hasAlpha();
+        // Same blocks as when comparing the whole images
+        final int blockSize = ImageComparison.getBlockSize(width, height);
+        final int[] referenceRows = new int[width * blockSize];
+        final int[] screenshotRows = new int[width * blockSize];
+        BufferedImage referenceBand = null;
+        BufferedImage screenshotBand = null;
+
+        // One context for all bands so its buffers are reused
+        final ComparisonContext context = ComparisonContext.acquire();
+        try {
+            for (int y = 0; y < height; y += blockSize) {
+                final int rows = Math.min(blockSize, height - y);
+                if (reference == null) {
+                    referenceImage.getRGB(0, y, width, rows, referenceRows,
+                            0, width);
+                }
+                for (int j = 0; j < rows; j++) {
+                    if (reference != null) {
+                        reference.readRow(referenceRows, j * width);
+                    }
+                    screenshot.readRow(screenshotRows, j * width);
+                }
+                if (referenceBand == null
+                        || referenceBand.getHeight() != rows) {
+                    // The bands share the row buffers, so only the last
+                    // band needs new images
+                    referenceBand = createBand(referenceRows, width, rows,
+                            referenceAlpha);
+                    screenshotBand = createBand(screenshotRows, width, rows,
+                            screenshot.hasAlpha());
+                }
+                // Bands are not whole reference images, so no derived data
+                // is cached for them
+                ComparisonParameters params = ImageComparison
+                        .createParameters(referenceBand, null,
+                                screenshotBand, null,
+                                Collections.<Rectangle> emptyList(),
+                                errorTolerance, blockSize, true, context);
+                if (!comparison.compareImageFailFast(params)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Wraps rows of ARGB pixels in an image without copying them.
+     */
+    private static BufferedImage createBand(int[] pixels, int width,
+            int rows, boolean alpha) {
+        DirectColorModel colorModel = alpha ? new DirectColorModel(32,
+                0xff0000, 0xff00, 0xff, 0xff000000) : new DirectColorModel(24,
+                0xff0000, 0xff00, 0xff);
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(
+                pixels, width * rows), width, rows, width,
+                colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}
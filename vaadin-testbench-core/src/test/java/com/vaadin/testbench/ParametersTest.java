@@ -20,6 +20,8 @@ public class ParametersTest {
         Assert.assertEquals(false, Parameters.isDebug());
         Assert.assertEquals(false,
                 Parameters.isScreenshotComparisonCursorDetection());
+        Assert.assertEquals(false,
+                Parameters.isScreenshotComparisonParallel());
     }
 
     @Test
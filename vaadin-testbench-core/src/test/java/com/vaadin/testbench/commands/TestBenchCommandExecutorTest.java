@@ -15,10 +15,12 @@ package com.vaadin.testbench.commands;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -29,8 +31,10 @@ import org.openqa.selenium.firefox.FirefoxDriver;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
 import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ComparisonResult;
 import com.vaadin.testbench.screenshot.ImageComparison;
 import com.vaadin.testbench.screenshot.ImageComparisonTest;
+import com.vaadin.testbench.screenshot.ReferenceImages;
 import com.vaadin.testbench.screenshot.ReferenceNameGenerator;
 import com.vaadin.testbench.testutils.ImageLoader;
 
@@ -121,6 +125,44 @@ public class TestBenchCommandExecutorTest {
         }
     }
 
+    @Test
+    public void testCompareScreenWithResult_retriesUntilEqual_returnsLastResult()
+            throws IOException {
+        Parameters.setMaxScreenshotRetries(4);
+        try {
+            WebDriver driver = mockScreenshotDriver(2, true);
+            ReferenceNameGenerator rngMock = mockReferenceNameGenerator("foo",
+                    "foo_bar_11");
+            ComparisonResult differs = createMock(ComparisonResult.class);
+            expect(differs.isEqual()).andReturn(false).anyTimes();
+            ComparisonResult equal = createMock(ComparisonResult.class);
+            expect(equal.isEqual()).andReturn(true).anyTimes();
+            ImageComparison icMock = createMock(ImageComparison.class);
+            ReferenceImages references = new ReferenceImages("foo_bar_11",
+                    Arrays.asList("foo_bar_11.png"));
+            expect(
+                    icMock.getReferenceImages(eq("foo_bar_11"),
+                            isA(Capabilities.class))).andReturn(references)
+                    .once();
+            expect(
+                    icMock.compareToReference(isA(BufferedImage.class),
+                            isNull(Rectangle.class),
+                            eq(Collections.<Rectangle> emptyList()),
+                            same(references),
+                            eq(Parameters.getScreenshotComparisonTolerance())))
+                    .andReturn(differs).andReturn(equal);
+            replay(driver, rngMock, differs, equal, icMock);
+
+            TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(
+                    driver, icMock, rngMock);
+            assertSame(equal, tbce.compareScreenWithResult("foo"));
+
+            verify(driver, rngMock, icMock);
+        } finally {
+            Parameters.setMaxScreenshotRetries(2);
+        }
+    }
+
     @Test
     public void testCompareScreen_acceptsFile() throws IOException {
         File referenceFile = ImageLoader.getImageFile(IMG_FOLDER,
@@ -241,12 +283,17 @@ public class TestBenchCommandExecutorTest {
     private ImageComparison mockImageComparison(int timesCalled,
             String referenceName, boolean expected) throws IOException {
         ImageComparison icMock = createMock(ImageComparison.class);
+        // The reference images are resolved once for all retries
+        ReferenceImages references = new ReferenceImages(referenceName,
+                Arrays.asList(referenceName + ".png"));
+        expect(
+                icMock.getReferenceImages(eq(referenceName),
+                        isA(Capabilities.class))).andReturn(references).once();
         expect(
                 icMock.imageEqualToReference(isA(BufferedImage.class),
-                        eq(referenceName),
-                        eq(Parameters.getScreenshotComparisonTolerance()),
-                        isA(Capabilities.class))).andReturn(expected).times(
-                timesCalled);
+                        same(references),
+                        eq(Parameters.getScreenshotComparisonTolerance())))
+                .andReturn(expected).times(timesCalled);
         return icMock;
     }
 
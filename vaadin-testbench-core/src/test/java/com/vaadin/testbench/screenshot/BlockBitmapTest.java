@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockBitmapTest {
+
+    @Test
+    public void setGetClear() {
+        BlockBitmap bitmap = new BlockBitmap(130, 3);
+        assertTrue(bitmap.isEmpty());
+        bitmap.set(0, 0);
+        bitmap.set(63, 1);
+        bitmap.set(64, 1);
+        bitmap.set(129, 2);
+        assertTrue(bitmap.get(0, 0));
+        assertTrue(bitmap.get(63, 1));
+        assertTrue(bitmap.get(64, 1));
+        assertTrue(bitmap.get(129, 2));
+        assertFalse(bitmap.get(129, 1));
+        assertFalse(bitmap.get(0, 1));
+        assertEquals(4, bitmap.cardinality());
+
+        bitmap.clear(63, 1);
+        assertFalse(bitmap.get(63, 1));
+        assertEquals(3, bitmap.cardinality());
+
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void nextSetBlockIteratesInRowMajorOrder() {
+        BlockBitmap bitmap = new BlockBitmap(70, 4);
+        bitmap.set(69, 0);
+        bitmap.set(2, 1);
+        bitmap.set(65, 1);
+        bitmap.set(0, 3);
+        assertEquals(69, bitmap.nextSetBlock(0));
+        assertEquals(69, bitmap.nextSetBlock(69));
+        assertEquals(70 + 2, bitmap.nextSetBlock(70));
+        assertEquals(70 + 65, bitmap.nextSetBlock(70 + 3));
+        assertEquals(3 * 70, bitmap.nextSetBlock(70 + 66));
+        assertEquals(-1, bitmap.nextSetBlock(3 * 70 + 1));
+    }
+
+    @Test
+    public void regions() {
+        BlockBitmap bitmap = new BlockBitmap(10, 10);
+        // An L shape
+        bitmap.set(1, 1);
+        bitmap.set(1, 2);
+        bitmap.set(2, 2);
+        bitmap.set(3, 2);
+        // A diagonal neighbour is a separate region
+        bitmap.set(4, 3);
+        // A block at the edge
+        bitmap.set(9, 9);
+
+        List<Rectangle> regions = bitmap.getRegions();
+        assertEquals(Arrays.asList(new Rectangle(1, 1, 3, 2), new Rectangle(
+                4, 3, 1, 1), new Rectangle(9, 9, 1, 1)), regions);
+        // The bitmap itself is not modified
+        assertEquals(6, bitmap.cardinality());
+    }
+
+    @Test
+    public void booleanArrayConversion() {
+        boolean[][] blocks = new boolean[5][3];
+        blocks[4][0] = true;
+        blocks[1][2] = true;
+        BlockBitmap bitmap = BlockBitmap.of(blocks);
+        assertEquals(5, bitmap.getXBlocks());
+        assertEquals(3, bitmap.getYBlocks());
+        assertTrue(bitmap.get(4, 0));
+        assertTrue(bitmap.get(1, 2));
+        assertEquals(2, bitmap.cardinality());
+
+        boolean[][] converted = bitmap.toArray();
+        for (int x = 0; x < blocks.length; x++) {
+            assertArrayEquals(blocks[x], converted[x]);
+        }
+    }
+
+    @Test
+    public void andNot() {
+        BlockBitmap bitmap = new BlockBitmap(3, 3);
+        bitmap.set(0, 0);
+        bitmap.set(1, 1);
+        BlockBitmap other = new BlockBitmap(3, 3);
+        other.set(1, 1);
+        other.set(2, 2);
+        bitmap.andNot(other);
+        assertTrue(bitmap.get(0, 0));
+        assertEquals(1, bitmap.cardinality());
+    }
+}
@@ -14,19 +14,37 @@ package com.vaadin.testbench.screenshot;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestName;
 
 import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ComparisonResult.CursorDetection;
 import com.vaadin.testbench.testutils.ImageLoader;
 
 public class ImageComparisonTest {
@@ -37,6 +55,9 @@ public class ImageComparisonTest {
     @Rule
     public TestName testName = new TestName();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private String previousScreenshotErrorDirectory;
     private String previousScreenshotReferenceDirectory;
     private boolean previousScreenshotComparisonCursorDetection;
@@ -321,6 +342,11 @@ public class ImageComparisonTest {
         assertEquals(2, ImageComparisonUtil.getNrBlocks(17));
         assertEquals(2, ImageComparisonUtil.getNrBlocks(31));
         assertEquals(2, ImageComparisonUtil.getNrBlocks(32));
+
+        assertEquals(0, ImageComparisonUtil.getNrBlocks(0, 64));
+        assertEquals(1, ImageComparisonUtil.getNrBlocks(64, 64));
+        assertEquals(2, ImageComparisonUtil.getNrBlocks(65, 64));
+        assertEquals(3, ImageComparisonUtil.getNrBlocks(17, 8));
     }
 
     @Test
@@ -372,6 +398,535 @@ public class ImageComparisonTest {
                 "cursor-off.png", 0));
     }
 
+    @Test
+    public void parallelComparison() throws IOException {
+        boolean previousParallel = Parameters.isScreenshotComparisonParallel();
+        int previousThreshold = Parameters
+                .getScreenshotComparisonParallelThreshold();
+        try {
+            Parameters.setScreenshotComparisonParallel(true);
+            Parameters.setScreenshotComparisonParallelThreshold(0);
+
+            testFullCompareImages("big-image.png", "big-image.png", true, 0);
+            testFullCompareImages("big-image.png", "big-image-ss.png", false,
+                    0.05);
+            testFullCompareImages("cursor2-on-outline-on.png",
+                    "cursor2-on-outline-off.png", true, 0.02);
+            testFullCompareImages("purple-border.png",
+                    "purple-border-top-left.png", false, 0.0);
+
+            Parameters.setScreenshotComparisonCursorDetection(true);
+            testFullCompareImages("cursor2-off-outline-on.png",
+                    "cursor2-on-outline-on.png", true, 0.0);
+        } finally {
+            Parameters.setScreenshotComparisonParallel(previousParallel);
+            Parameters
+                    .setScreenshotComparisonParallelThreshold(previousThreshold);
+        }
+    }
+
+    @Test
+    public void pyramidComparison() throws IOException {
+        Parameters.setScreenshotComparisonPyramid(true);
+        try {
+            testFullCompareImages("big-image.png", "big-image.png", true, 0);
+            testFullCompareImages("big-image.png", "big-image-ss.png", false,
+                    0.05);
+            testFullCompareImages("cursor2-on-outline-on.png",
+                    "cursor2-on-outline-off.png", true, 0.02);
+            testFullCompareImages("purple-border.png",
+                    "purple-border-top-left.png", false, 0.0);
+
+            Parameters.setScreenshotComparisonCursorDetection(true);
+            testFullCompareImages("cursor2-off-outline-on.png",
+                    "cursor2-on-outline-on.png", true, 0.0);
+            Parameters.setScreenshotComparisonCursorDetection(false);
+
+            // The pyramid of the reference is reused
+            BufferedImage reference = ImageLoader.loadImage(FOLDER,
+                    "big-image.png");
+            BufferedImage screenshot = ImageLoader.loadImage(FOLDER,
+                    "big-image-ss.png");
+            ImageComparison ic = new ImageComparison();
+            assertFalse(ic.compareImages(reference, screenshot, 0.0));
+            assertTrue(ic.compareImages(reference,
+                    ImageUtil.cloneImage(reference), 0.0));
+            assertFalse(ic.compareImages(reference, screenshot, 0.0));
+        } finally {
+            Parameters.setScreenshotComparisonPyramid(false);
+        }
+    }
+
+    @Test
+    public void shiftDetection() throws IOException {
+        Parameters.setScreenshotComparisonShiftDetection(true);
+        try {
+            BufferedImage reference = createNoiseImage(200, 160);
+            ImageComparison ic = new ImageComparison();
+
+            // Content below y=80 pushed down by 10 pixels
+            BufferedImage screenshot = ImageUtil.cloneImage(reference);
+            screenshot.getGraphics().drawImage(
+                    reference.getSubimage(0, 80, 200, 70), 0, 90, null);
+            screenshot.getGraphics().clearRect(0, 80, 200, 10);
+            assertFalse(ic.imageEqualToReference(screenshot, reference,
+                    "shift-down.png", 0));
+            assertTrue(readErrorHtml("shift-down.png").contains(
+                    "is shifted by 0,10 pixels"));
+
+            // Content right of x=100 moved 5 pixels left
+            screenshot = ImageUtil.cloneImage(reference);
+            screenshot.getGraphics().drawImage(
+                    reference.getSubimage(105, 0, 95, 160), 100, 0, null);
+            assertFalse(ic.imageEqualToReference(screenshot, reference,
+                    "shift-left.png", 0));
+            assertTrue(readErrorHtml("shift-left.png").contains(
+                    "is shifted by -5,0 pixels"));
+
+            // Blocks explained by the shift still fail but are reported as
+            // one region instead of block by block
+            screenshot = ImageUtil.cloneImage(reference);
+            screenshot.getGraphics().drawImage(
+                    reference.getSubimage(0, 80, 200, 70), 0, 90, null);
+            screenshot.getGraphics().clearRect(0, 80, 200, 10);
+            ComparisonResult result = ic.compareToReference(screenshot,
+                    reference, "shift-down.png", 0);
+            assertFalse(result.isEqual());
+            ImageShift shift = result.getImageShift();
+            assertNotNull(shift);
+            assertEquals(0, shift.getDx());
+            assertEquals(10, shift.getDy());
+            assertEquals(new Rectangle(0, 96, 200, 64), shift.getArea());
+            assertTrue(result.getFailedBlocks().get(0, 6));
+            // Only the cleared rows above the shifted content get a popup
+            String html = readErrorHtml("shift-down.png");
+            assertEquals(2, html.split("class=\"popUpDiv\"").length);
+            assertTrue(html.contains("clip: rect(79px,209px,97px,0px)"));
+
+            // Changed content is not a shift
+            screenshot = ImageUtil.cloneImage(reference);
+            screenshot.getGraphics().clearRect(20, 20, 50, 50);
+            assertFalse(ic.imageEqualToReference(screenshot, reference,
+                    "no-shift.png", 0));
+            assertFalse(readErrorHtml("no-shift.png").contains("shifted"));
+        } finally {
+            Parameters.setScreenshotComparisonShiftDetection(false);
+        }
+    }
+
+    @Test
+    public void booleanComparisonStopsAtErrorBudget() throws IOException {
+        BufferedImage reference = createNoiseImage(100, 60);
+        BufferedImage screenshot = ImageUtil.cloneImage(reference);
+        screenshot.getGraphics().clearRect(20, 20, 60, 30);
+
+        // Exact block errors are only computed for a ComparisonResult, so
+        // the block error buffer of this thread is left as it is
+        final int blocks = 7 * 4;
+        ComparisonContext context = ComparisonContext.acquire();
+        try {
+            Arrays.fill(context.getBlockErrors(blocks), -1);
+        } finally {
+            context.release();
+        }
+        assertFalse(new ImageComparison().imageEqualToReference(screenshot,
+                reference, "budget.png", 0.1));
+        context = ComparisonContext.acquire();
+        try {
+            int[] blockErrors = context.getBlockErrors(0);
+            for (int i = 0; i < blocks; i++) {
+                assertEquals(-1, blockErrors[i]);
+            }
+        } finally {
+            context.release();
+        }
+
+        ComparisonResult result = new ImageComparison().compareToReference(
+                screenshot, reference, "budget.png", 0.1);
+        assertTrue(result.getMaxBlockError() > 0.1);
+    }
+
+    @Test
+    public void comparisonResult() throws IOException {
+        BufferedImage reference = createNoiseImage(100, 60);
+        BufferedImage screenshot = ImageUtil.cloneImage(reference);
+        screenshot.getGraphics().clearRect(20, 20, 20, 8);
+
+        ComparisonResult result = new ImageComparison().compareToReference(
+                screenshot, reference, "result.png", 0.1);
+        assertFalse(result.isEqual());
+        assertEquals("result.png", result.getReferenceName());
+        assertFalse(result.isSizeMismatch());
+        assertEquals(7, result.getXBlocks());
+        assertEquals(4, result.getYBlocks());
+        assertEquals(0.0, result.getBlockError(0, 0), 0);
+        assertTrue(result.getBlockError(1, 1) > 0.1);
+        assertTrue(result.getMaxBlockError() > 0.1);
+        assertEquals(2, result.getFailedBlockCount());
+        assertEquals(Arrays.asList(new Rectangle(16, 16, 32, 16)),
+                result.getFailedRegions());
+        assertEquals(CursorDetection.NOT_CHECKED,
+                result.getCursorDetection());
+        assertTrue(result.getCompareNanos() > 0);
+        assertTrue(result.getReportNanos() > 0);
+
+        // The block errors are within the tolerance
+        result = new ImageComparison().compareToReference(screenshot,
+                reference, "result.png", result.getMaxBlockError());
+        assertTrue(result.isEqual());
+        assertEquals(0, result.getFailedBlockCount());
+        assertEquals(0, result.getReportNanos());
+
+        result = new ImageComparison().compareToReference(
+                screenshot.getSubimage(0, 0, 100, 50), reference,
+                "result.png", 1);
+        assertFalse(result.isEqual());
+        assertTrue(result.isSizeMismatch());
+        assertEquals(50, result.getHeight());
+    }
+
+    @Test
+    public void comparisonResultCursor() throws IOException {
+        Parameters.setScreenshotComparisonCursorDetection(true);
+        ComparisonResult result = new ImageComparison().compareToReference(
+                ImageLoader.loadImage(FOLDER, "cursor-on.png"),
+                ImageLoader.loadImage(FOLDER, "cursor-off.png"),
+                "cursor.png", 0);
+        assertTrue(result.isEqual());
+        assertEquals(CursorDetection.CURSOR_ONLY, result.getCursorDetection());
+        assertTrue(result.getFailedBlockCount() > 0);
+    }
+
+    @Test
+    public void comparisonResultMissingReference() throws IOException {
+        ComparisonResult result = new ImageComparison().compareToReference(
+                createNoiseImage(10, 10), null, "missing.png", 0);
+        assertFalse(result.isEqual());
+        assertNull(result.getReferenceName());
+    }
+
+    @Test
+    public void areaComparison() throws IOException {
+        BufferedImage page = createNoiseImage(300, 200);
+        Rectangle element = new Rectangle(50, 40, 60, 30);
+        BufferedImage reference = ImageUtil.cloneImage(page.getSubimage(
+                element.x, element.y, element.width, element.height));
+        ImageComparison ic = new ImageComparison();
+
+        assertTrue(ic.compareToReference(page, element, reference, null,
+                "area.png", 0).isEqual());
+        // Against the same area of a larger reference
+        assertTrue(ic.compareToReference(page, element, page, element,
+                "area.png", 0).isEqual());
+        assertFalse(ic.compareToReference(page, element, page,
+                new Rectangle(51, 40, 60, 30), "area.png", 0).isEqual());
+
+        // A different element size is a size mismatch
+        ComparisonResult result = ic.compareToReference(page, new Rectangle(
+                50, 40, 60, 20), reference, null, "area.png", 0);
+        assertFalse(result.isEqual());
+        assertTrue(result.isSizeMismatch());
+        assertEquals(20, result.getHeight());
+
+        // Writing the error files does not modify the screenshot
+        BufferedImage original = ImageUtil.cloneImage(page);
+        page.setRGB(60, 50, ~page.getRGB(60, 50));
+        assertFalse(ic.compareToReference(page, element, reference, null,
+                "area.png", 0).isEqual());
+        page.setRGB(60, 50, ~page.getRGB(60, 50));
+        assertTrue(ic.compareImages(original, page, 0));
+    }
+
+    @Test
+    public void ignoredAreas() throws IOException {
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage reference = createNoiseImage(200, 120);
+        ImageIO.write(reference, "png",
+                temporaryFolder.newFile("ignored.png"));
+
+        BufferedImage screenshot = ImageUtil.cloneImage(reference);
+        Graphics2D g = screenshot.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(30, 20, 50, 40);
+        g.fillRect(190, 110, 10, 10);
+        g.dispose();
+        List<Rectangle> ignoredAreas = Arrays.asList(new Rectangle(30, 20,
+                50, 40), new Rectangle(185, 105, 30, 30));
+        ImageComparison ic = new ImageComparison();
+
+        assertFalse(ic.compareImages(reference, screenshot, 0));
+        assertTrue(ic.compareToReference(screenshot, null, ignoredAreas,
+                "ignored", 0, null).isEqual());
+
+        // Pixels next to the ignored areas are still compared
+        screenshot.setRGB(80, 20, ~screenshot.getRGB(80, 20));
+        ComparisonResult result = ic.compareToReference(screenshot, null,
+                ignoredAreas, "ignored", 0, null);
+        assertFalse(result.isEqual());
+        assertEquals(1, result.getFailedBlockCount());
+    }
+
+    @Test
+    public void concurrentReferenceCandidates() throws IOException {
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage[] candidates = writeCandidates("concurrent", 4);
+        int previousParallelism = Parameters
+                .getScreenshotComparisonParallelism();
+        try {
+            Parameters.setScreenshotComparisonParallelCandidates(true);
+            Parameters.setScreenshotComparisonParallelism(4);
+            ImageComparison ic = new ImageComparison();
+
+            ComparisonResult result = ic.compareToReference(
+                    ImageUtil.cloneImage(candidates[2]), "concurrent", 0,
+                    null);
+            assertTrue(result.isEqual());
+            assertEquals("concurrent_2.png", result.getReferenceName());
+
+            // The error report is made using the last candidate
+            result = ic.compareToReference(createNoiseImage(100, 60),
+                    "concurrent", 0, null);
+            assertFalse(result.isEqual());
+            assertEquals("concurrent_3.png", result.getReferenceName());
+        } finally {
+            Parameters.setScreenshotComparisonParallelCandidates(false);
+            Parameters.setScreenshotComparisonParallelism(previousParallelism);
+        }
+    }
+
+    @Test
+    public void lastMatchedCandidateFirst() throws IOException {
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage[] candidates = writeCandidates("remembered", 3);
+        ImageComparison ic = new ImageComparison();
+        assertEquals("remembered_1.png",
+                ic.compareToReference(ImageUtil.cloneImage(candidates[1]),
+                        "remembered", 0, null).getReferenceName());
+
+        // The first candidate is no longer read once another one has matched
+        Files.write(new File(temporaryFolder.getRoot(), "remembered.png")
+                .toPath(), new byte[] { 1, 2, 3 });
+        ComparisonResult result = ic.compareToReference(
+                ImageUtil.cloneImage(candidates[1]), "remembered", 0, null);
+        assertTrue(result.isEqual());
+        assertEquals("remembered_1.png", result.getReferenceName());
+    }
+
+    @Test
+    public void streamingComparison() throws IOException {
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage[] candidates = writeCandidates("streaming", 2);
+        ImageComparison ic = new ImageComparison();
+
+        assertTrue(ic.imageEqualToReference(toPng(candidates[0]),
+                "streaming", 0, null));
+        assertTrue(ic.imageEqualToReference(toPng(candidates[1]),
+                "streaming", 0, null));
+
+        // A difference in the last row of blocks
+        BufferedImage screenshot = ImageUtil.cloneImage(candidates[1]);
+        screenshot.setRGB(99, 59, ~screenshot.getRGB(99, 59));
+        assertFalse(ic.imageEqualToReference(toPng(screenshot), "streaming",
+                0, null));
+        assertTrue(ImageFileUtil.getErrorScreenshotFile("streaming.png")
+                .exists());
+        assertTrue(ic.imageEqualToReference(toPng(screenshot), "streaming",
+                0.01, null));
+
+        // No reference
+        assertFalse(ic.imageEqualToReference(toPng(screenshot),
+                "streaming-missing", 0, null));
+    }
+
+    @Test
+    public void streamingComparisonLogsAllocationOnce() throws IOException {
+        Assume.assumeTrue(AllocationMeter.isSupported());
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage[] candidates = writeCandidates("logged", 1);
+        byte[] screenshotPng = toPng(candidates[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream systemOut = System.out;
+        boolean debug = Parameters.isDebug();
+        Parameters.setDebug(true);
+        System.setOut(new PrintStream(out, true));
+        try {
+            assertTrue(new ImageComparison().imageEqualToReference(
+                    screenshotPng, "logged", 0, null));
+        } finally {
+            System.setOut(systemOut);
+            Parameters.setDebug(debug);
+        }
+        // Every row of blocks is compared, but allocations are reported
+        // for the whole comparison
+        String log = out.toString();
+        assertEquals(log.indexOf("Comparison allocated"),
+                log.lastIndexOf("Comparison allocated"));
+        assertTrue(log.contains("Comparison allocated"));
+    }
+
+    @Test
+    public void referenceImagesDecodedOnce() throws IOException {
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.getRoot()
+                .getPath());
+        BufferedImage[] candidates = writeCandidates("resolved", 2);
+        ImageComparison ic = new ImageComparison();
+        ReferenceImages references = ic.getReferenceImages("resolved", null);
+        assertEquals(Arrays.asList("resolved.png", "resolved_1.png"),
+                references.getFileNames());
+        assertTrue(ic.imageEqualToReference(
+                ImageUtil.cloneImage(candidates[1]), references, 0));
+
+        // Both candidates have been decoded and are not read again
+        for (String fileName : references.getFileNames()) {
+            Files.write(new File(temporaryFolder.getRoot(), fileName)
+                    .toPath(), new byte[] { 1, 2, 3 });
+        }
+        assertTrue(ic.imageEqualToReference(
+                ImageUtil.cloneImage(candidates[0]), references, 0));
+        assertTrue(ic.imageEqualToReference(toPng(candidates[1]), references,
+                0));
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * Writes alternative reference images name.png, name_1.png, ... to the
+     * temporary folder.
+     */
+    private BufferedImage[] writeCandidates(String name, int count)
+            throws IOException {
+        BufferedImage[] candidates = new BufferedImage[count];
+        for (int i = 0; i < count; i++) {
+            candidates[i] = createNoiseImage(100, 60);
+            Graphics2D g = candidates[i].createGraphics();
+            g.setColor(Color.BLUE);
+            g.fillRect(10 * i, 0, 10, 10);
+            g.dispose();
+            ImageIO.write(candidates[i], "png", temporaryFolder
+                    .newFile(i == 0 ? name + ".png" : name + "_" + i + ".png"));
+        }
+        return candidates;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void areaOutsideScreenshot() throws IOException {
+        BufferedImage page = createNoiseImage(100, 100);
+        new ImageComparison().compareToReference(page, new Rectangle(90, 90,
+                20, 20), page, null, "area.png", 0);
+    }
+
+    @Test
+    public void repeatedComparisonReusesBuffers() {
+        Assume.assumeTrue(AllocationMeter.isSupported());
+        // Not INT_ARGB, so both images need to be converted for comparison
+        BufferedImage reference = new BufferedImage(300, 200,
+                BufferedImage.TYPE_3BYTE_BGR);
+        reference.getGraphics().drawImage(createNoiseImage(300, 200), 0, 0,
+                null);
+        BufferedImage screenshot = new BufferedImage(300, 200,
+                BufferedImage.TYPE_3BYTE_BGR);
+        screenshot.getGraphics().drawImage(reference, 0, 0, null);
+
+        ImageComparison ic = new ImageComparison();
+        assertTrue(ic.compareImages(reference, screenshot, 0));
+
+        long before = AllocationMeter.getAllocatedBytes();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ic.compareImages(reference, screenshot, 0));
+        }
+        long perComparison = (AllocationMeter.getAllocatedBytes() - before) / 10;
+        // Converting the images alone would allocate 2 * 4 * 300 * 200 bytes
+        assertTrue("Allocated " + perComparison + " bytes per comparison",
+                perComparison < 4096);
+    }
+
+    private BufferedImage createNoiseImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private String readErrorHtml(String fileName) throws IOException {
+        return new String(Files.readAllBytes(ImageFileUtil
+                .getErrorScreenshotFile(fileName + ".html").toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void configurableBlockSize() throws IOException {
+        int previousBlockSize = Parameters.getScreenshotComparisonBlockSize();
+        try {
+            for (int blockSize : new int[] { 8, 32, 64 }) {
+                Parameters.setScreenshotComparisonBlockSize(blockSize);
+                testFullCompareImages("big-image.png", "big-image.png", true,
+                        0);
+                testFullCompareImages("big-image.png", "big-image-ss.png",
+                        false, 0.0);
+                testFullCompareImages("purple-border.png",
+                        "purple-border-top-left.png", false, 0.0);
+                testFullCompareImages("red.png", "black.png", true, 0.334);
+                testFullCompareImages("red.png", "black.png", false, 0.3);
+
+                Parameters.setScreenshotComparisonCursorDetection(true);
+                testFullCompareImages("cursor-off.png", "cursor-on.png", true,
+                        0.0);
+                testFullCompareImages("cursor3-ref.png", "cursor3-new.png",
+                        false, 0.0);
+                Parameters.setScreenshotComparisonCursorDetection(false);
+            }
+        } finally {
+            Parameters.setScreenshotComparisonBlockSize(previousBlockSize);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedBlockSize() {
+        Parameters.setScreenshotComparisonBlockSize(12);
+    }
+
+    @Test
+    public void adaptiveBlockSize() {
+        Parameters.setScreenshotComparisonAdaptiveBlockSize(true);
+        try {
+            assertEquals(8, ImageComparison.getBlockSize(200, 40));
+            assertEquals(16, ImageComparison.getBlockSize(1024, 768));
+            assertEquals(32, ImageComparison.getBlockSize(1920, 1080));
+            assertEquals(64, ImageComparison.getBlockSize(2560, 1440));
+        } finally {
+            Parameters.setScreenshotComparisonAdaptiveBlockSize(false);
+        }
+        assertEquals(16, ImageComparison.getBlockSize(2560, 1440));
+    }
+
+    @Test
+    public void errorBudgetMatchesTolerance() {
+        double max = 16 * 16 * 255 * 3;
+        double[] tolerances = { 0, 0.001, 0.01, 0.025, 0.1, 0.16, 0.333,
+                0.334, 0.5, 0.99999999, 1, 2, -0.1 };
+        for (double tolerance : tolerances) {
+            int budget = ImageComparison.getErrorBudget(tolerance, 16 * 16);
+            for (int sum = 0; sum <= max; sum++) {
+                assertEquals("tolerance " + tolerance + ", sum " + sum,
+                        sum / max > tolerance, sum > budget);
+            }
+        }
+    }
+
     @Test
     public void testCursorComparisonAt0x15() throws IOException {
         Parameters.setScreenshotComparisonCursorDetection(true);
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class OpacityMaskTest {
+
+    @Test
+    public void opaqueImage() {
+        BufferedImage image = new BufferedImage(40, 20,
+                BufferedImage.TYPE_INT_ARGB);
+        fill(image, 0xff123456);
+        OpacityMask mask = OpacityMask.of(PackedImage.of(image), 16);
+        assertTrue(mask.isOpaque());
+        assertSame(mask,
+                mask.withIgnoredAreas(Collections.<Rectangle> emptyList()));
+        assertSame(mask, mask.withIgnoredAreas(Arrays.asList(new Rectangle(
+                50, 0, 10, 10))));
+    }
+
+    @Test
+    public void ignoredAreas() {
+        OpacityMask mask = OpacityMask.opaque(40, 20, 16).withIgnoredAreas(
+                Arrays.asList(new Rectangle(0, 0, 16, 16), new Rectangle(20,
+                        2, 3, 30)));
+        assertFalse(mask.isOpaque());
+        assertEquals(OpacityMask.MASKED, mask.getState(0, 0));
+        assertEquals(OpacityMask.MIXED, mask.getState(1, 0));
+        assertEquals(OpacityMask.OPAQUE, mask.getState(2, 0));
+        assertEquals(OpacityMask.OPAQUE, mask.getState(0, 1));
+        assertEquals(OpacityMask.MIXED, mask.getState(1, 1));
+
+        assertEquals(0xffff, mask.getRowMask(1, 0, 1));
+        assertEquals(0xffff & ~0x70, mask.getRowMask(1, 0, 2));
+        assertFalse(mask.isCompared(21, 10));
+        assertTrue(mask.isCompared(23, 10));
+        assertFalse(mask.isCompared(15, 15));
+        assertTrue(mask.isCompared(15, 16));
+    }
+
+    @Test
+    public void ignoredAreaInTransparentImage() {
+        BufferedImage image = new BufferedImage(32, 16,
+                BufferedImage.TYPE_INT_ARGB);
+        fill(image, 0xff000000);
+        image.setRGB(0, 0, 0);
+        OpacityMask mask = OpacityMask.of(PackedImage.of(image), 16)
+                .withIgnoredAreas(
+                        Arrays.asList(new Rectangle(1, 0, 15, 16),
+                                new Rectangle(0, 1, 1, 15), new Rectangle(
+                                        16, 0, 1, 1)));
+        assertEquals(OpacityMask.MASKED, mask.getState(0, 0));
+        assertEquals(OpacityMask.MIXED, mask.getState(1, 0));
+        assertEquals(0xfffe, mask.getRowMask(1, 0, 0));
+    }
+
+    private static void fill(BufferedImage image, int argb) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class PackedImageTest {
+
+    private static final String FOLDER = PackedImageTest.class.getPackage()
+            .getName().replace('.', '/');
+
+    @Test
+    public void intArgbImageIsNotCopied() {
+        BufferedImage image = new BufferedImage(20, 10,
+                BufferedImage.TYPE_INT_ARGB);
+        PackedImage packed = PackedImage.of(image);
+        assertSame(((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData(), packed.getPixels());
+    }
+
+    @Test
+    public void subimageUsesParentPixels() {
+        BufferedImage image = new BufferedImage(20, 10,
+                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(5, 3, 0xff123456);
+        PackedImage packed = PackedImage.of(image.getSubimage(4, 2, 10, 5));
+        assertEquals(0xff123456, packed.getRGB(1, 1));
+        assertEquals(10, packed.getWidth());
+        assertEquals(5, packed.getHeight());
+    }
+
+    @Test
+    public void areaOfImage() throws IOException {
+        BufferedImage source = ImageLoader.loadImage(FOLDER, "text-red.png");
+        Rectangle area = new Rectangle(3, 4, 20, 10);
+        int[] types = { BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY };
+        for (int type : types) {
+            BufferedImage image = new BufferedImage(source.getWidth(),
+                    source.getHeight(), type);
+            image.getGraphics().drawImage(source, 0, 0, null);
+            PackedImage packed = PackedImage.of(image, area);
+            assertEquals(20, packed.getWidth());
+            assertEquals(10, packed.getHeight());
+            for (int y = 0; y < area.height; y++) {
+                for (int x = 0; x < area.width; x++) {
+                    assertEquals(image.getRGB(area.x + x, area.y + y),
+                            packed.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void areaOutsideImage() {
+        PackedImage.of(new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB),
+                new Rectangle(15, 0, 10, 10));
+    }
+
+    @Test
+    public void samePixelsAsImageForAllTypes() throws IOException {
+        assertSamePixels(ImageLoader.loadImage(FOLDER, "cursor-off.png"));
+        assertSamePixels(ImageLoader.loadImage(FOLDER, "text-red.png"));
+        assertSamePixels(ImageLoader.loadImage(FOLDER + "/masking",
+                "google1-masked.png"));
+        assertSamePixels(ImageLoader.loadImage(FOLDER,
+                "white-33x33-cursor-15x1-cursoron.png"));
+
+        BufferedImage source = ImageLoader.loadImage(FOLDER, "text-red.png");
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR,
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY };
+        for (int type : types) {
+            BufferedImage converted = new BufferedImage(source.getWidth(),
+                    source.getHeight(), type);
+            converted.getGraphics().drawImage(source, 0, 0, null);
+            assertSamePixels(converted);
+            assertSamePixels(converted.getSubimage(3, 4, 20, 10));
+        }
+    }
+
+    private void assertSamePixels(BufferedImage image) {
+        PackedImage packed = PackedImage.of(image);
+        int[] block = new int[16 * 16];
+        ImageUtil.ImageProperties properties = ImageUtil
+                .getImageProperties(image);
+        for (int y = 0; y < image.getHeight(); y += 16) {
+            for (int x = 0; x < image.getWidth(); x += 16) {
+                ImageUtil.getBlock(properties, x, y, block, null);
+                int width = Math.min(16, image.getWidth() - x);
+                int height = Math.min(16, image.getHeight() - y);
+                for (int j = 0; j < height; j++) {
+                    for (int i = 0; i < width; i++) {
+                        assertEquals(block[j * width + i],
+                                packed.getRGB(x + i, y + j));
+                    }
+                }
+            }
+        }
+    }
+}
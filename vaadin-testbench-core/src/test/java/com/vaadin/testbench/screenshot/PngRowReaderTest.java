@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class PngRowReaderTest {
+
+    private static final String FOLDER = PngRowReaderTest.class.getPackage()
+            .getName().replace('.', '/');
+
+    @Test
+    public void rowsEqualImageIO() throws IOException {
+        File folder = ImageLoader.getImageFile(FOLDER, "black.png")
+                .getParentFile();
+        int supported = 0;
+        for (File file : folder.listFiles()) {
+            if (file.getName().endsWith(".png")
+                    && assertRowsEqualImageIO(Files.readAllBytes(file
+                            .toPath()))) {
+                supported++;
+            }
+        }
+        assertTrue(supported > 0);
+    }
+
+    @Test
+    public void allFilterTypes() throws IOException {
+        // The PNG writer chooses the filter of each row adaptively, which for
+        // noise and gradients results in all filter types being used
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB }) {
+            BufferedImage image = new BufferedImage(97, 61, type);
+            Random random = new Random(97);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int argb = y < 30 ? random.nextInt() : (x * 2 << 24)
+                            | (x + y) << 16 | (x * y) << 8 | y;
+                    image.setRGB(x, y, argb);
+                }
+            }
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            assertTrue(assertRowsEqualImageIO(png.toByteArray()));
+        }
+    }
+
+    @Test
+    public void unsupportedFormat() throws IOException {
+        BufferedImage image = new BufferedImage(10, 10,
+                BufferedImage.TYPE_BYTE_GRAY);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        assertNull(PngRowReader.open(new ByteArrayInputStream(png
+                .toByteArray())));
+    }
+
+    /**
+     * @return false if the image format is not supported
+     */
+    private static boolean assertRowsEqualImageIO(byte[] png)
+            throws IOException {
+        PngRowReader reader = PngRowReader.open(new ByteArrayInputStream(png));
+        if (reader == null) {
+            return false;
+        }
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(image.getWidth(), reader.getWidth());
+            assertEquals(image.getHeight(), reader.getHeight());
+            assertEquals(image.getColorModel().hasAlpha(), reader.hasAlpha());
+            int[] row = new int[reader.getWidth()];
+            for (int y = 0; y < reader.getHeight(); y++) {
+                reader.readRow(row, 0);
+                assertArrayEquals(image.getRGB(0, y, image.getWidth(), 1,
+                        null, 0, image.getWidth()), row);
+            }
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+}
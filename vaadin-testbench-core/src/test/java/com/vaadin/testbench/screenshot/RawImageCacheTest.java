@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class RawImageCacheTest extends ReferenceDirectoryFixture {
+
+    @Before
+    public void setup() {
+        Parameters.setScreenshotReferenceRawCache(true);
+    }
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceRawCache(false);
+        Parameters.setScreenshotReferenceCacheDirectory(null);
+    }
+
+    @Test
+    public void cachedNextToReference() throws IOException {
+        // Larger than the read buffer
+        File png = writeReference("reference.png", 200, 100,
+                BufferedImage.TYPE_INT_RGB);
+        File cacheFile = new File(png.getPath() + ".argb");
+
+        BufferedImage decoded = ImageFileUtil
+                .readReferenceImage("reference.png");
+        assertTrue(cacheFile.isFile());
+        BufferedImage cached = ImageFileUtil.readReferenceImage("reference.png");
+        // Compared without converting
+        assertTrue(PackedImage.canShare(cached));
+        assertSamePixels(decoded, cached);
+    }
+
+    @Test
+    public void cachedInCacheDirectory() throws IOException {
+        File cacheDirectory = new File(temporaryFolder.getRoot(), "cache");
+        Parameters.setScreenshotReferenceCacheDirectory(cacheDirectory
+                .getPath());
+        writeReference("alpha.png", 20, 20, BufferedImage.TYPE_INT_ARGB);
+
+        BufferedImage decoded = ImageFileUtil.readReferenceImage("alpha.png");
+        assertEquals(1, cacheDirectory.list().length);
+        BufferedImage cached = ImageFileUtil.readReferenceImage("alpha.png");
+        assertTrue(cached.getColorModel().hasAlpha());
+        assertSamePixels(decoded, cached);
+    }
+
+    @Test
+    public void changedReferenceInvalidatesCache() throws IOException {
+        File png = writeReference("changed.png", 40, 30,
+                BufferedImage.TYPE_INT_RGB);
+        ImageFileUtil.readReferenceImage("changed.png");
+
+        writeReference("changed.png", 30, 40, BufferedImage.TYPE_INT_RGB);
+        png.setLastModified(png.lastModified() + 2000);
+        BufferedImage image = ImageFileUtil.readReferenceImage("changed.png");
+        assertEquals(30, image.getWidth());
+        assertSamePixels(ImageIO.read(png), image);
+    }
+
+    @Test
+    public void corruptCacheIsIgnored() throws IOException {
+        File png = writeReference("corrupt.png", 10, 10,
+                BufferedImage.TYPE_INT_RGB);
+        File cacheFile = new File(png.getPath() + ".argb");
+        assertTrue(cacheFile.createNewFile());
+        assertFalse(cacheFile.length() > 0);
+
+        assertSamePixels(ImageIO.read(png),
+                ImageFileUtil.readReferenceImage("corrupt.png"));
+        assertTrue(cacheFile.length() > 0);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Base class for tests reading reference images from a temporary reference
+ * directory. The reference and error directories are restored after each
+ * test.
+ */
+public abstract class ReferenceDirectoryFixture {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String previousScreenshotReferenceDirectory;
+    private String previousScreenshotErrorDirectory;
+
+    @Before
+    public void setupReferenceDirectory() {
+        previousScreenshotReferenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        previousScreenshotErrorDirectory = Parameters
+                .getScreenshotErrorDirectory();
+        Parameters.setScreenshotReferenceDirectory(getReferenceDirectory()
+                .getPath());
+        Parameters.setScreenshotErrorDirectory(new File(temporaryFolder
+                .getRoot(), "errors").getPath());
+    }
+
+    @After
+    public void restoreReferenceDirectory() {
+        Parameters
+                .setScreenshotReferenceDirectory(previousScreenshotReferenceDirectory);
+        Parameters
+                .setScreenshotErrorDirectory(previousScreenshotErrorDirectory);
+    }
+
+    protected File getReferenceDirectory() {
+        return temporaryFolder.getRoot();
+    }
+
+    /**
+     * Writes an RGB image of random pixels, seeded by the name, to the
+     * reference directory.
+     */
+    protected File writeReference(String name, int width, int height)
+            throws IOException {
+        return writeReference(name, width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    protected File writeReference(String name, int width, int height, int type)
+            throws IOException {
+        return writeReference(name, createNoiseImage(name, width, height, type));
+    }
+
+    protected File writeReference(String name, BufferedImage image)
+            throws IOException {
+        return writeReference(getReferenceDirectory(), name, image);
+    }
+
+    protected static File writeReference(File directory, String name,
+            BufferedImage image) throws IOException {
+        File png = new File(directory, name);
+        ImageIO.write(image, "png", png);
+        return png;
+    }
+
+    protected static BufferedImage createNoiseImage(String seed, int width,
+            int height) {
+        return createNoiseImage(seed, width, height,
+                BufferedImage.TYPE_INT_RGB);
+    }
+
+    protected static BufferedImage createNoiseImage(String seed, int width,
+            int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(seed.hashCode());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    protected static void assertSamePixels(BufferedImage expected,
+            BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getRGB(0, 0, expected.getWidth(),
+                expected.getHeight(), null, 0, expected.getWidth()),
+                actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(),
+                        null, 0, actual.getWidth()));
+    }
+}
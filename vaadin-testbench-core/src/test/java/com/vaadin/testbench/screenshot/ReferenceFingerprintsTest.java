@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferenceFingerprintsTest extends ReferenceDirectoryFixture {
+
+    @Before
+    public void setup() {
+        ReferenceFingerprints.clear();
+    }
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceFingerprints(false);
+        Parameters.setScreenshotReferenceFingerprintMaxDistance(0);
+        ImageFileUtil.setReferenceStore(null);
+        ReferenceFingerprints.clear();
+    }
+
+    @Test
+    public void similarImagesHaveCloseFingerprints() {
+        BufferedImage image = gradient(64, 48, true);
+        BufferedImage changed = gradient(64, 48, true);
+        for (int y = 20; y < 23; y++) {
+            for (int x = 30; x < 33; x++) {
+                changed.setRGB(x, y, 0xff0000);
+            }
+        }
+        ImageFingerprint fingerprint = ImageFingerprint.of(PackedImage
+                .of(image));
+        assertEquals(0, fingerprint.distance(ImageFingerprint
+                .of(PackedImage.of(changed))));
+        assertEquals(32, fingerprint.distance(ImageFingerprint
+                .of(PackedImage.of(gradient(64, 48, false)))));
+        assertFalse(fingerprint.sameSize(ImageFingerprint.of(PackedImage
+                .of(gradient(48, 64, true)))));
+
+        // An area is fingerprinted like the same image on its own
+        BufferedImage larger = gradient(100, 100, false);
+        larger.getGraphics().drawImage(image, 10, 20, null);
+        assertEquals(0, fingerprint.distance(ImageFingerprint.of(PackedImage
+                .of(larger, new Rectangle(10, 20, 64, 48)))));
+    }
+
+    @Test
+    public void fingerprintsStoredInReferenceDirectory() throws IOException {
+        writeReference("stored.png", gradient(40, 30, true));
+        assertEquals(1, ReferenceFingerprints.update());
+        assertEquals(0, ReferenceFingerprints.update());
+        File fingerprintFile = new File(temporaryFolder.getRoot(),
+                ReferenceFingerprints.FILE_NAME);
+        assertEquals(1, Files.readAllLines(fingerprintFile.toPath()).size());
+
+        ReferenceFingerprints.clear();
+        ImageFingerprint fingerprint = ReferenceFingerprints.get("stored.png");
+        assertNotNull(fingerprint);
+        assertEquals(40, fingerprint.getWidth());
+        assertEquals(30, fingerprint.getHeight());
+
+        File reference = new File(temporaryFolder.getRoot(), "stored.png");
+        reference.setLastModified(reference.lastModified() + 2000);
+        assertNull(ReferenceFingerprints.get("stored.png"));
+    }
+
+    @Test
+    public void supersededLinesRemoved() throws IOException {
+        BufferedImage image = gradient(40, 30, true);
+        writeReference("superseded.png", image);
+        File reference = new File(temporaryFolder.getRoot(), "superseded.png");
+        long lastModified = reference.lastModified();
+        // A reference image changed over and over again
+        for (int i = 0; i < 300; i++) {
+            reference.setLastModified(lastModified + i * 2000);
+            ReferenceFingerprints.add("superseded.png", image);
+        }
+        File fingerprintFile = new File(temporaryFolder.getRoot(),
+                ReferenceFingerprints.FILE_NAME);
+        assertEquals(300, Files.readAllLines(fingerprintFile.toPath()).size());
+
+        // Rewritten when read
+        ReferenceFingerprints.clear();
+        assertNotNull(ReferenceFingerprints.get("superseded.png"));
+        assertEquals(1, Files.readAllLines(fingerprintFile.toPath()).size());
+        ReferenceFingerprints.clear();
+        assertNotNull(ReferenceFingerprints.get("superseded.png"));
+    }
+
+    @Test
+    public void fingerprintsOfOtherStoresKeptInMemory() throws IOException {
+        File directory = temporaryFolder.newFolder("references");
+        writeReference(directory, "archived.png", gradient(40, 30, true));
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+        ArchiveReferenceStore.pack(directory, archive);
+        ImageFileUtil.setReferenceStore(ArchiveReferenceStore.open(archive));
+
+        assertEquals(1, ReferenceFingerprints.update());
+        assertNotNull(ReferenceFingerprints.get("archived.png"));
+        assertFalse(new File(temporaryFolder.getRoot(),
+                ReferenceFingerprints.FILE_NAME).exists());
+        assertFalse(new File(directory, ReferenceFingerprints.FILE_NAME)
+                .exists());
+
+        // Not mixed up with the reference directory
+        ImageFileUtil.setReferenceStore(null);
+        assertNull(ReferenceFingerprints.get("archived.png"));
+    }
+
+    @Test
+    public void candidatesChosenByFingerprint() throws IOException {
+        BufferedImage screenshot = gradient(40, 30, true);
+        writeReference("page.png", gradient(40, 30, false));
+        writeReference("page_1.png", gradient(20, 20, true));
+        writeReference("page_2.png", screenshot);
+        writeReference("page_3.png", gradient(40, 30, false));
+        ReferenceFingerprints.update();
+        Parameters.setScreenshotReferenceFingerprints(true);
+        ImageComparison ic = new ImageComparison();
+
+        // The most similar reference image is compared first
+        ReferenceImages references = createReferences();
+        assertTrue(ic.imageEqualToReference(screenshot, references, 0.01));
+        assertEquals("page_2.png", references.getMatchedFileName());
+        assertNull(references.getDecodedImage("page.png"));
+
+        // A reference image of a different size is not compared
+        references = createReferences();
+        assertFalse(ic.imageEqualToReference(gradient(40, 30, true, 0xff),
+                references, 0.01));
+        assertNotNull(references.getDecodedImage("page.png"));
+        assertNull(references.getDecodedImage("page_1.png"));
+    }
+
+    @Test
+    public void distantCandidatesComparedWhenPartlyIgnored()
+            throws IOException {
+        BufferedImage screenshot = gradient(40, 30, true);
+        writeReference("distant.png", gradient(40, 30, false));
+        BufferedImage transparent = new BufferedImage(40, 30,
+                BufferedImage.TYPE_INT_ARGB);
+        transparent.getGraphics().drawImage(gradient(40, 30, false), 0, 0,
+                null);
+        transparent.setRGB(0, 0, 0);
+        writeReference("transparent.png", transparent);
+        writeReference("last.png", gradient(40, 30, true, 0xff));
+        ReferenceFingerprints.update();
+        assertTrue(ReferenceFingerprints.get("transparent.png").isMasked());
+        assertFalse(ReferenceFingerprints.get("distant.png").isMasked());
+        Parameters.setScreenshotReferenceFingerprints(true);
+        Parameters.setScreenshotReferenceFingerprintMaxDistance(8);
+        ImageComparison ic = new ImageComparison();
+        List<Rectangle> noIgnoredAreas = Collections.emptyList();
+
+        ReferenceImages references = new ReferenceImages("distant",
+                Arrays.asList("distant.png", "last.png"));
+        assertFalse(ic.compareToReference(screenshot, null, noIgnoredAreas,
+                references, 0.01).isEqual());
+        assertNull(references.getDecodedImage("distant.png"));
+
+        // Ignored areas are not covered by the fingerprints
+        references = new ReferenceImages("distant", Arrays.asList(
+                "distant.png", "last.png"));
+        assertFalse(ic.compareToReference(screenshot, null,
+                Arrays.asList(new Rectangle(0, 0, 5, 5)), references, 0.01)
+                .isEqual());
+        assertNotNull(references.getDecodedImage("distant.png"));
+
+        // Neither are transparent pixels of the reference image
+        references = new ReferenceImages("transparent", Arrays.asList(
+                "transparent.png", "last.png"));
+        assertFalse(ic.compareToReference(screenshot, null, noIgnoredAreas,
+                references, 0.01).isEqual());
+        assertNotNull(references.getDecodedImage("transparent.png"));
+    }
+
+    private ReferenceImages createReferences() {
+        return new ReferenceImages("fingerprinted", Arrays.asList("page.png",
+                "page_1.png", "page_2.png", "page_3.png"));
+    }
+
+    private static BufferedImage gradient(int width, int height,
+            boolean horizontal) {
+        return gradient(width, height, horizontal, 0);
+    }
+
+    /**
+     * Creates a gray gradient from dark to light, left to right or top to
+     * bottom, with the given blue value.
+     */
+    private static BufferedImage gradient(int width, int height,
+            boolean horizontal, int blue) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int gray = horizontal ? x * 255 / width : y * 255 / height;
+                image.setRGB(x, y, gray << 16 | gray << 8 | blue);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferenceImageCacheTest extends ReferenceDirectoryFixture {
+
+    @Before
+    public void setup() {
+        Parameters.setScreenshotReferenceCacheMegabytes(1);
+        ReferenceImageCache.clear();
+    }
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceCacheMegabytes(0);
+        Parameters.setScreenshotReferenceCacheOffHeap(false);
+        ReferenceImageCache.clear();
+    }
+
+    @Test
+    public void cachedImageReused() throws IOException {
+        writeReference("reference.png", 40, 30);
+        final long hits = ReferenceImageCache.getHitCount();
+        final long misses = ReferenceImageCache.getMissCount();
+
+        BufferedImage first = ImageFileUtil.readReferenceImage("reference.png");
+        BufferedImage second = ImageFileUtil
+                .readReferenceImage("reference.png");
+        assertSame(first, second);
+        assertEquals(hits + 1, ReferenceImageCache.getHitCount());
+        assertEquals(misses + 1, ReferenceImageCache.getMissCount());
+        assertEquals(40 * 30 * 4, ReferenceImageCache.getSize());
+    }
+
+    @Test
+    public void changedReferenceReadAgain() throws IOException {
+        File png = writeReference("changed.png", 40, 30);
+        ImageFileUtil.readReferenceImage("changed.png");
+
+        writeReference("changed.png", 30, 40);
+        png.setLastModified(png.lastModified() + 2000);
+        BufferedImage image = ImageFileUtil.readReferenceImage("changed.png");
+        assertSamePixels(ImageIO.read(png), image);
+        assertEquals(1, ReferenceImageCache.getImageCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws IOException {
+        // 1 MB fits two of these images but not three
+        writeReference("a.png", 400, 300);
+        writeReference("b.png", 400, 300);
+        writeReference("c.png", 400, 300);
+        final long evictions = ReferenceImageCache.getEvictionCount();
+
+        BufferedImage a = ImageFileUtil.readReferenceImage("a.png");
+        ImageFileUtil.readReferenceImage("b.png");
+        assertSame(a, ImageFileUtil.readReferenceImage("a.png"));
+        ImageFileUtil.readReferenceImage("c.png");
+
+        assertEquals(evictions + 1, ReferenceImageCache.getEvictionCount());
+        assertEquals(2, ReferenceImageCache.getImageCount());
+        assertSame(a, ImageFileUtil.readReferenceImage("a.png"));
+        assertTrue(ReferenceImageCache.getSize() <= 1024 * 1024);
+    }
+
+    @Test
+    public void offHeap() throws IOException {
+        Parameters.setScreenshotReferenceCacheOffHeap(true);
+        File png = writeReference("offheap.png", 50, 20);
+
+        BufferedImage first = ImageFileUtil.readReferenceImage("offheap.png");
+        BufferedImage second = ImageFileUtil
+                .readReferenceImage("offheap.png");
+        assertNotSame(first, second);
+        assertSamePixels(ImageIO.read(png), second);
+        assertEquals(1, ReferenceImageCache.getImageCount());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferenceIndexTest extends ReferenceDirectoryFixture {
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceIndex(false);
+    }
+
+    @Test
+    public void olderVersionSameAsWithoutIndex() throws IOException {
+        createFiles("test_windows_chrome_100.png", "test_windows_chrome_98.png",
+                "test_windows_chrome_99_1.png", "test_windows_chrome_07.png",
+                "test_windows_firefox_45.png");
+        ImageFileUtil.ImageFileUtilImpl impl = new ImageFileUtil.ImageFileUtilImpl();
+        for (int version : new int[] { 120, 101, 100, 99, 98, 50, 1, 0 }) {
+            String fileName = "test_windows_chrome_" + version + ".png";
+            Parameters.setScreenshotReferenceIndex(false);
+            String expected = impl.findOldReferenceScreenshot("chrome",
+                    version, fileName);
+            Parameters.setScreenshotReferenceIndex(true);
+            assertEquals(expected,
+                    impl.findOldReferenceScreenshot("chrome", version, fileName));
+        }
+        assertEquals("test_windows_chrome_100.png",
+                impl.findOldReferenceScreenshot("chrome", 120,
+                        "test_windows_chrome_120.png"));
+    }
+
+    @Test
+    public void alternativeReferenceImages() throws IOException {
+        Parameters.setScreenshotReferenceIndex(true);
+        createFiles("alt.png", "alt_1.png", "alt_2.png", "alt_4.png");
+        assertEquals(Arrays.asList("alt.png", "alt_1.png", "alt_2.png"),
+                ImageFileUtil.getReferenceImageFileNames("alt.png", null));
+    }
+
+    @Test
+    public void changesToDirectorySeen() throws IOException {
+        File directory = temporaryFolder.getRoot();
+        createFiles("a.png");
+        // Old enough for the listing to be kept
+        assertTrue(directory.setLastModified(System.currentTimeMillis() - 10000));
+        ReferenceIndex index = ReferenceIndex.get(directory);
+        assertTrue(index.contains("a.png"));
+        assertFalse(index.contains("b.png"));
+
+        createFiles("b.png");
+        assertTrue(index.contains("b.png"));
+        assertTrue(new File(directory, "a.png").delete());
+        assertFalse(index.contains("a.png"));
+    }
+
+    private void createFiles(String... names) throws IOException {
+        for (String name : names) {
+            assertTrue(new File(temporaryFolder.getRoot(), name)
+                    .createNewFile());
+        }
+    }
+}
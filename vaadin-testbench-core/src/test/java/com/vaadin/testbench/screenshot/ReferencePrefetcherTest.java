@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferencePrefetcherTest extends ReferenceDirectoryFixture {
+
+    private static final String TEST = "com.example.PageIT#page[linux_chrome_60]";
+
+    private int previousCacheMegabytes;
+
+    @Before
+    public void setup() {
+        previousCacheMegabytes = Parameters
+                .getScreenshotReferenceCacheMegabytes();
+        Parameters.setScreenshotReferencePrefetch(true);
+        ReferencePrefetcher.clear();
+        ReferenceImageCache.clear();
+    }
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceCacheMegabytes(previousCacheMegabytes);
+        Parameters.setScreenshotReferencePrefetch(false);
+        ReferencePrefetcher.setCurrentTest(null);
+        ImageFileUtil.setReferenceStore(null);
+        ReferencePrefetcher.clear();
+        ReferenceImageCache.clear();
+    }
+
+    @Test
+    public void usedReferencesRecorded() throws IOException {
+        ReferenceImages references = new ReferenceImages("page",
+                Arrays.asList("page.png", "page_1.png"));
+        // Not run by a test
+        ReferencePrefetcher.recordUsed(references);
+        File manifestFile = new File(temporaryFolder.getRoot(),
+                ReferencePrefetcher.FILE_NAME);
+        assertFalse(manifestFile.exists());
+
+        ReferencePrefetcher.setCurrentTest(TEST);
+        ReferencePrefetcher.recordUsed(references);
+        ReferencePrefetcher.recordUsed(references);
+        List<String> lines = Files.readAllLines(manifestFile.toPath());
+        assertEquals(2, lines.size());
+        // Each record follows its checksum
+        assertTrue(lines.get(0).endsWith(" " + TEST + "\tpage.png"));
+        assertTrue(lines.get(1).endsWith(" " + TEST + "\tpage_1.png"));
+    }
+
+    @Test
+    public void manifestsOfOtherStoresKeptInMemory() throws Exception {
+        File directory = temporaryFolder.newFolder("references");
+        writeReference(directory, "archived.png", createNoiseImage(
+                "archived.png", 40, 30, BufferedImage.TYPE_INT_RGB));
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+        ArchiveReferenceStore.pack(directory, archive);
+        ImageFileUtil.setReferenceStore(ArchiveReferenceStore.open(archive));
+
+        ReferencePrefetcher.setCurrentTest(TEST);
+        ReferencePrefetcher.recordUsed(new ReferenceImages("archived", Arrays
+                .asList("archived.png")));
+        assertFalse(new File(temporaryFolder.getRoot(),
+                ReferencePrefetcher.FILE_NAME).exists());
+        assertFalse(new File(directory, ReferencePrefetcher.FILE_NAME)
+                .exists());
+        Parameters.setScreenshotReferenceCacheMegabytes(10);
+        assertEquals(1,
+                ReferencePrefetcher.prefetch(Collections.singletonList(TEST)));
+        assertTrue(ReferencePrefetcher.awaitPrefetched(10000));
+
+        // Not mixed up with the reference directory
+        ImageFileUtil.setReferenceStore(null);
+        assertEquals(0,
+                ReferencePrefetcher.prefetch(Collections.singletonList(TEST)));
+    }
+
+    @Test
+    public void recordedReferencesPrefetched() throws Exception {
+        writeReference("page.png", 40, 30);
+        ReferencePrefetcher.setCurrentTest(TEST);
+        ReferencePrefetcher.recordUsed(new ReferenceImages("page", Arrays
+                .asList("page.png", "removed.png")));
+        ReferencePrefetcher.setCurrentTest(null);
+        ReferencePrefetcher.clear();
+
+        // Only prefetched into the reference image cache
+        assertEquals(0,
+                ReferencePrefetcher.prefetch(Collections.singletonList(TEST)));
+        Parameters.setScreenshotReferenceCacheMegabytes(10);
+        assertEquals(0, ReferencePrefetcher.prefetch(Collections
+                .singletonList("com.example.OtherIT#other[linux_chrome_60]")));
+        assertEquals(2, ReferencePrefetcher.prefetch(Arrays.asList(TEST, TEST)));
+        assertTrue(ReferencePrefetcher.awaitPrefetched(10000));
+        assertEquals(1, ReferenceImageCache.getImageCount());
+
+        long hits = ReferenceImageCache.getHitCount();
+        new ReferenceImages("page", Arrays.asList("page.png"))
+                .getImage("page.png");
+        assertEquals(hits + 1, ReferenceImageCache.getHitCount());
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferenceStoreTest extends ReferenceDirectoryFixture {
+
+    private static final String FOLDER = ReferenceStoreTest.class.getPackage()
+            .getName().replace('.', '/');
+
+    @After
+    public void teardown() {
+        Parameters.setScreenshotReferenceStore(null);
+        ImageFileUtil.setReferenceStore(null);
+    }
+
+    @Test
+    public void archiveContainsReferenceImages() throws IOException {
+        File directory = temporaryFolder.newFolder("references");
+        writeReference(directory, "a.png", createNoiseImage("a", 30, 20));
+        writeReference(directory, "b_windows_firefox_45.png",
+                createNoiseImage("b", 20, 30));
+        assertTrue(new File(directory, "notes.txt").createNewFile());
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+
+        assertEquals(2, ArchiveReferenceStore.pack(directory, archive));
+        ArchiveReferenceStore store = ArchiveReferenceStore.open(archive);
+        assertEquals(
+                new HashSet<String>(Arrays.asList("a.png",
+                        "b_windows_firefox_45.png")), store.getFileNames());
+        assertFalse(store.exists("notes.txt"));
+        for (String fileName : store.getFileNames()) {
+            File file = new File(directory, fileName);
+            assertEquals(file.length(), store.getLength(fileName));
+            assertEquals(file.lastModified(), store.getLastModified(fileName));
+            assertArrayEquals(Files.readAllBytes(file.toPath()),
+                    readFully(store.open(fileName)));
+        }
+    }
+
+    @Test
+    public void compareToArchive() throws IOException {
+        File directory = temporaryFolder.newFolder("references");
+        BufferedImage reference = createNoiseImage("page", 60, 40);
+        writeReference(directory, "page.png", reference);
+        BufferedImage alternative = createNoiseImage("page_1", 60, 40);
+        writeReference(directory, "page_1.png", alternative);
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+        ArchiveReferenceStore.pack(directory, archive);
+        // Nothing is read from the reference directory
+        Parameters.setScreenshotReferenceDirectory(temporaryFolder.newFolder(
+                "empty").getPath());
+        Parameters.setScreenshotReferenceStore("archive:" + archive.getPath());
+
+        ImageComparison ic = new ImageComparison();
+        assertTrue(ic.imageEqualToReference(reference, "page", 0, null));
+        assertTrue(ic.imageEqualToReference(alternative, "page", 0, null));
+        assertTrue(ic.imageEqualToReference(toPng(alternative), "page", 0,
+                null));
+        assertFalse(ic.imageEqualToReference(reference, "missing", 0, null));
+    }
+
+    @Test
+    public void archiveStoresSameContentOnce() throws IOException {
+        File directory = temporaryFolder.newFolder("references");
+        File original = new File(directory, "page_windows_chrome_40.png");
+        writeReference(directory, original.getName(),
+                createNoiseImage("original", 80, 60));
+        File copy = new File(directory, "page_windows_chrome_41.png");
+        Files.copy(original.toPath(), copy.toPath());
+        File other = new File(directory, "other.png");
+        writeReference(directory, other.getName(),
+                createNoiseImage("other", 80, 60));
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+
+        assertEquals(3, ArchiveReferenceStore.pack(directory, archive));
+        // The copy only adds an entry to the table of contents
+        assertTrue(archive.length() < original.length() + other.length()
+                + 1024);
+        ArchiveReferenceStore store = ArchiveReferenceStore.open(archive);
+        assertEquals(store.getContentHash(original.getName()),
+                store.getContentHash(copy.getName()));
+        assertFalse(store.getContentHash(original.getName()).equals(
+                store.getContentHash("other.png")));
+        assertArrayEquals(Files.readAllBytes(copy.toPath()),
+                readFully(store.open(copy.getName())));
+
+        // Decoded once for both names
+        int previousCacheMegabytes = Parameters
+                .getScreenshotReferenceCacheMegabytes();
+        Parameters.setScreenshotReferenceCacheMegabytes(10);
+        ReferenceImageCache.clear();
+        try {
+            ImageFileUtil.setReferenceStore(store);
+            assertSame(ImageFileUtil.readReferenceImage(original.getName()),
+                    ImageFileUtil.readReferenceImage(copy.getName()));
+            assertEquals(1, ReferenceImageCache.getImageCount());
+        } finally {
+            ReferenceImageCache.clear();
+            Parameters
+                    .setScreenshotReferenceCacheMegabytes(previousCacheMegabytes);
+        }
+    }
+
+    @Test
+    public void classpath() throws IOException {
+        ClasspathReferenceStore store = new ClasspathReferenceStore(getClass()
+                .getClassLoader(), "/" + FOLDER);
+        assertTrue(store.exists("black.png"));
+        assertFalse(store.exists("missing.png"));
+        assertTrue(store.getLength("black.png") > 0);
+        assertTrue(store.getLastModified("black.png") > 0);
+        assertEquals(0, store.getLength("missing.png"));
+
+        ImageFileUtil.setReferenceStore(store);
+        assertEquals(Arrays.asList("black.png"),
+                ImageFileUtil.getReferenceImageFileNames("black.png", null));
+        BufferedImage image = ImageFileUtil.readReferenceImage("black.png");
+        assertEquals(ImageIO.read(getClass().getClassLoader().getResource(
+                FOLDER + "/black.png")).getWidth(), image.getWidth());
+    }
+
+    @Test
+    public void directoryStoreReused() throws IOException {
+        ReferenceStore store = ImageFileUtil.getReferenceStore();
+        assertEquals(temporaryFolder.getRoot(),
+                ((DirectoryReferenceStore) store).getDirectory());
+        assertSame(store, ImageFileUtil.getReferenceStore());
+
+        File other = temporaryFolder.newFolder("other");
+        Parameters.setScreenshotReferenceDirectory(other.getPath());
+        store = ImageFileUtil.getReferenceStore();
+        assertEquals(other, ((DirectoryReferenceStore) store).getDirectory());
+        assertSame(store, ImageFileUtil.getReferenceStore());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownReferenceStore() {
+        Parameters.setScreenshotReferenceStore("ftp://example.com/references");
+        ImageFileUtil.getReferenceStore();
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ScreenshotDigestCacheTest extends ReferenceDirectoryFixture {
+
+    @Before
+    public void setup() {
+        ScreenshotDigestCache.clear();
+    }
+
+    @After
+    public void teardown() {
+        ScreenshotDigestCache.clear();
+    }
+
+    @Test
+    public void identicalScreenshotAccepted() throws IOException {
+        byte[] png = writeReference("page.png");
+        ReferenceImages references = new ReferenceImages("page",
+                Arrays.asList("page.png"));
+        assertFalse(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+
+        ScreenshotDigestCache.addAccepted(png, "page.png", 0.01);
+        assertTrue(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+        assertFalse(ScreenshotDigestCache.isAccepted(png, references, 0));
+        byte[] other = png.clone();
+        other[other.length - 20] ^= 1;
+        assertFalse(ScreenshotDigestCache.isAccepted(other, references, 0.01));
+        assertFalse(ScreenshotDigestCache.isAccepted(png, new ReferenceImages(
+                "other", Arrays.asList("other.png")), 0.01));
+    }
+
+    @Test
+    public void onlyVerdictSettingsCompared() throws IOException {
+        byte[] png = writeReference("settings.png");
+        ReferenceImages references = new ReferenceImages("settings",
+                Arrays.asList("settings.png"));
+        ScreenshotDigestCache.addAccepted(png, "settings.png", 0.01);
+
+        Parameters.setScreenshotComparisonShiftDetection(true);
+        try {
+            // Shift detection only changes the error report
+            assertTrue(ScreenshotDigestCache.isAccepted(png, references,
+                    0.01));
+        } finally {
+            Parameters.setScreenshotComparisonShiftDetection(false);
+        }
+        Parameters.setScreenshotComparisonPyramid(true);
+        try {
+            assertFalse(ScreenshotDigestCache.isAccepted(png, references,
+                    0.01));
+        } finally {
+            Parameters.setScreenshotComparisonPyramid(false);
+        }
+    }
+
+    @Test
+    public void digestsStoredInReferenceDirectory() throws IOException {
+        byte[] png = writeReference("stored.png");
+        ReferenceImages references = new ReferenceImages("stored",
+                Arrays.asList("stored.png"));
+        ScreenshotDigestCache.addAccepted(png, "stored.png", 0.01);
+        File digestFile = new File(temporaryFolder.getRoot(),
+                ScreenshotDigestCache.FILE_NAME);
+        assertEquals(1, countLines(digestFile));
+
+        ScreenshotDigestCache.clear();
+        assertTrue(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+    }
+
+    @Test
+    public void digestsOfOtherStoresKeptInMemory() throws IOException {
+        File directory = temporaryFolder.newFolder("references");
+        byte[] png = Files.readAllBytes(writeReference(directory,
+                "archived.png", createNoiseImage("archived", 40, 30))
+                .toPath());
+        File archive = new File(temporaryFolder.getRoot(), "references.tbref");
+        ArchiveReferenceStore.pack(directory, archive);
+        ReferenceImages references = new ReferenceImages("archived",
+                Arrays.asList("archived.png"));
+        ImageFileUtil.setReferenceStore(ArchiveReferenceStore.open(archive));
+        try {
+            ScreenshotDigestCache.addAccepted(png, "archived.png", 0.01);
+            assertTrue(ScreenshotDigestCache.isAccepted(png, references,
+                    0.01));
+            assertFalse(new File(temporaryFolder.getRoot(),
+                    ScreenshotDigestCache.FILE_NAME).exists());
+            assertFalse(new File(directory, ScreenshotDigestCache.FILE_NAME)
+                    .exists());
+        } finally {
+            ImageFileUtil.setReferenceStore(null);
+        }
+
+        // Not mixed up with the reference directory
+        writeReference("archived.png", createNoiseImage("archived", 40, 30));
+        assertFalse(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+    }
+
+    @Test
+    public void corruptLinesSkipped() throws IOException {
+        byte[] png = writeReference("torn.png");
+        byte[] other = png.clone();
+        other[other.length - 20] ^= 1;
+        ReferenceImages references = new ReferenceImages("torn",
+                Arrays.asList("torn.png"));
+        ScreenshotDigestCache.addAccepted(other, "torn.png", 0.01);
+        File digestFile = new File(temporaryFolder.getRoot(),
+                ScreenshotDigestCache.FILE_NAME);
+        String line = Files.readAllLines(digestFile.toPath()).get(0);
+        ScreenshotDigestCache.addAccepted(png, "torn.png", 0.01);
+        String accepted = Files.readAllLines(digestFile.toPath()).get(1);
+
+        // A line cut short and lines merged by concurrent appends
+        Files.write(digestFile.toPath(), Arrays.asList(
+                accepted.substring(0, accepted.length() - 1),
+                line.substring(0, 20) + accepted));
+        ScreenshotDigestCache.clear();
+        assertFalse(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+        assertFalse(ScreenshotDigestCache.isAccepted(other, references, 0.01));
+    }
+
+    @Test
+    public void supersededLinesRemoved() throws IOException {
+        byte[] png = writeReference("superseded.png");
+        ReferenceImages references = new ReferenceImages("superseded",
+                Arrays.asList("superseded.png"));
+        for (int i = 0; i < 300; i++) {
+            ScreenshotDigestCache.addAccepted(png, "superseded.png", 0.01);
+        }
+        File digestFile = new File(temporaryFolder.getRoot(),
+                ScreenshotDigestCache.FILE_NAME);
+        assertEquals(300, countLines(digestFile));
+
+        // Rewritten when read
+        ScreenshotDigestCache.clear();
+        assertTrue(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+        assertEquals(1, countLines(digestFile));
+        ScreenshotDigestCache.clear();
+        assertTrue(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+    }
+
+    @Test
+    public void changedReferenceNotAccepted() throws IOException {
+        byte[] png = writeReference("changed.png");
+        ReferenceImages references = new ReferenceImages("changed",
+                Arrays.asList("changed.png"));
+        ScreenshotDigestCache.addAccepted(png, "changed.png", 0.01);
+
+        File reference = new File(temporaryFolder.getRoot(), "changed.png");
+        reference.setLastModified(reference.lastModified() + 2000);
+        assertFalse(ScreenshotDigestCache.isAccepted(png, references, 0.01));
+    }
+
+    /**
+     * @return the reference image as PNG, used as an identical screenshot
+     */
+    private byte[] writeReference(String name) throws IOException {
+        return Files.readAllBytes(writeReference(name, 40, 30).toPath());
+    }
+
+    private static int countLines(File file) throws IOException {
+        return Files.readAllLines(file.toPath()).size();
+    }
+}